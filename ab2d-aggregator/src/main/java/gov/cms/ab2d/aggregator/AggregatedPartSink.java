@@ -0,0 +1,65 @@
+package gov.cms.ab2d.aggregator;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Where the aggregator writes the parts it combines. The finished files of a part are streamed straight into the
+ * sink, so parts that end up in object storage don't have to be written to local disk first and read again to be
+ * copied there. A part only becomes available to readers once it is sealed, a part that is closed without being
+ * sealed (because combining it failed) is thrown away.
+ *
+ * Parts are written in parallel, so create can be called from several threads at once. Each PartOutput is only
+ * used by the thread that created it.
+ */
+public interface AggregatedPartSink {
+
+    /**
+     * Start writing a part. A part of the same name that is already there is replaced when this one is sealed.
+     *
+     * @param partName - the part's file name, without path
+     * @return where to write the part
+     * @throws IOException if the part can't be started
+     */
+    PartOutput create(String partName) throws IOException;
+
+    /**
+     * @param partName - the part's file name, without path
+     * @return where the part is once it is sealed, for logging
+     */
+    String getLocation(String partName);
+
+    /**
+     * A part being written
+     */
+    interface PartOutput extends Closeable {
+
+        /**
+         * @return the channel to write the part's data to. Don't close it, close the PartOutput instead
+         */
+        WritableByteChannel getChannel();
+
+        /**
+         * @return the number of bytes written so far
+         * @throws IOException if the size can't be found
+         */
+        long getSize() throws IOException;
+
+        /**
+         * Make the part available to readers, after all of its data has been written
+         *
+         * @param durable - the part has to survive a crash once this returns
+         * @throws IOException if the part can't be made available
+         */
+        void seal(boolean durable) throws IOException;
+
+        /**
+         * Finish with the part, throwing it away if it wasn't sealed
+         *
+         * @throws IOException if the part can't be thrown away
+         */
+        @Override
+        void close() throws IOException;
+    }
+}
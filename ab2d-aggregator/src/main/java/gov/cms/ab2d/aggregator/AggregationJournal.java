@@ -0,0 +1,160 @@
+package gov.cms.ab2d.aggregator;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * An append only record of the parts the aggregator writes for a job, kept in the job directory. Before a part is
+ * written, the journal records its name and the finished files that go into it. Once the part is safely on disk,
+ * the journal records that it is complete, and only then are the finished files deleted. If the aggregator dies in
+ * the middle of the job, a new one can read the journal (see Aggregator.resume) and knows exactly which parts to
+ * write again, which finished files were already used, and what number the next part gets.
+ *
+ * Each entry is one tab separated line and is forced to disk before the method returns. A line cut off by a crash
+ * is ignored when the journal is read and dropped when it is opened again.
+ */
+@Slf4j
+public class AggregationJournal implements AutoCloseable {
+    public static final String FILE_NAME = "aggregation.journal";
+
+    private static final String PLANNED = "PLANNED";
+    private static final String COMPLETED = "COMPLETED";
+    private static final String SEPARATOR = "\t";
+
+    @Getter
+    private final Path file;
+    private final FileChannel channel;
+
+    /**
+     * A part found in the journal
+     */
+    @Getter
+    @AllArgsConstructor
+    public static class JournaledPart {
+        private final FileOutputType type;
+        // The part's file name, without path
+        private final String partName;
+        // The names of the finished files going into the part, without path
+        private final List<String> inputs;
+        private final boolean completed;
+    }
+
+    /**
+     * Open the journal, creating it if this is the first time the job has been aggregated
+     *
+     * @param file - where the journal is kept
+     * @throws IOException if the journal can't be opened
+     */
+    public AggregationJournal(Path file) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file, CREATE, WRITE, APPEND);
+        // Drop a line cut off by a crash so the next entry starts on a line of its own
+        byte[] content = Files.readAllBytes(file);
+        int end = content.length;
+        while (end > 0 && content[end - 1] != '\n') {
+            end--;
+        }
+        if (end < content.length) {
+            log.warn("Dropping the incomplete last line of aggregation journal {}", file);
+            channel.truncate(end);
+        }
+    }
+
+    /**
+     * Record that a part is about to be written
+     *
+     * @param type - the type of the part
+     * @param partFileName - the part's file name, with or without location
+     * @param inputs - the finished files going into the part
+     * @throws IOException if the entry can't be written
+     */
+    public synchronized void partPlanned(FileOutputType type, String partFileName, List<File> inputs) throws IOException {
+        StringBuilder line = new StringBuilder(PLANNED).append(SEPARATOR).append(type.name())
+                .append(SEPARATOR).append(new File(partFileName).getName());
+        for (File input : inputs) {
+            line.append(SEPARATOR).append(input.getName());
+        }
+        append(line);
+    }
+
+    /**
+     * Record that a part has been written. The part itself should already be on disk
+     *
+     * @param partFileName - the part's file name, with or without location
+     * @throws IOException if the entry can't be written
+     */
+    public synchronized void partCompleted(String partFileName) throws IOException {
+        append(new StringBuilder(COMPLETED).append(SEPARATOR).append(new File(partFileName).getName()));
+    }
+
+    /**
+     * Read back every part in the journal in the order they were planned. A part that was planned more than once
+     * (because it was written again after a crash) is only returned once.
+     *
+     * @return the parts in the journal
+     * @throws IOException if the journal can't be read
+     */
+    public List<JournaledPart> read() throws IOException {
+        String content = Files.readString(file, StandardCharsets.UTF_8);
+        // Anything after the last new line was cut off part way through
+        int end = content.lastIndexOf('\n');
+        if (end < 0) {
+            return new ArrayList<>();
+        }
+        Map<String, JournaledPart> parts = new LinkedHashMap<>();
+        for (String line : content.substring(0, end).split("\n")) {
+            String[] fields = line.split(SEPARATOR);
+            if (fields.length >= 3 && PLANNED.equals(fields[0])) {
+                List<String> inputs = Arrays.asList(fields).subList(3, fields.length);
+                parts.put(fields[2], new JournaledPart(FileOutputType.valueOf(fields[1]), fields[2], inputs, false));
+            } else if (fields.length == 2 && COMPLETED.equals(fields[0]) && parts.containsKey(fields[1])) {
+                JournaledPart planned = parts.get(fields[1]);
+                parts.put(fields[1], new JournaledPart(planned.getType(), planned.getPartName(), planned.getInputs(), true));
+            } else {
+                log.warn("Ignoring unexpected line in aggregation journal {}: {}", file, line);
+            }
+        }
+        return new ArrayList<>(parts.values());
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Close and remove the journal once the job has been completely aggregated
+     *
+     * @throws IOException if the journal can't be removed
+     */
+    public synchronized void delete() throws IOException {
+        channel.close();
+        Files.deleteIfExists(file);
+    }
+
+    private void append(CharSequence line) throws IOException {
+        ByteBuffer buffer = StandardCharsets.UTF_8.encode(line + "\n");
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        channel.force(false);
+    }
+}
@@ -0,0 +1,431 @@
+package gov.cms.ab2d.aggregator;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lets aggregators on several nodes drain the finished directory of one job on a shared file system at the same
+ * time. Each node has a lease, a file in the job's claims directory that it touches on every pass, and its own claim
+ * directory. Before combining a part a node claims its finished files by renaming them into its claim directory.
+ * Renames are atomic, so each file is claimed by exactly one node. Files another node got to first are simply left
+ * out of the part. Part numbers come from a shared allocator that creates one marker file per number, which is also
+ * atomic, so two nodes never write the same part.
+ *
+ * jobDir/claims/node1.lease             touched by node1 while it is alive
+ * jobDir/claims/node1/pending-3/        files claimed for a part that doesn't have a number yet
+ * jobDir/claims/node1/Z0001_0007.ndjson/  files being combined into Z0001_0007.ndjson
+ * jobDir/claims/node1/Z0001_0006.ndjson.done/  Z0001_0006.ndjson is written, these are being deleted
+ * jobDir/claims/parts/DATA-7            part 7 of the DATA parts has been taken
+ *
+ * If a node's lease isn't renewed for leaseMillis, any other node puts its claimed files back in the finished
+ * directory and deletes the parts it hadn't finished. Its part numbers are not reused, so the parts of a job whose
+ * node died can have gaps in their numbering. A node that comes back with the same id recovers its own claims the
+ * same way. The lease has to be a lot longer than the wait between passes. While a part is being written the lease
+ * is renewed every third of leaseMillis, and the claim is checked before the part is sealed. A node that loses its
+ * claim anyway deletes the part instead of keeping data that another node will aggregate again.
+ *
+ * Give each node's AggregatorCallable its own lease. The callable recovers expired leases, finishes the job only
+ * once no node has files claimed and closes the lease when it is done. The last node to finish deletes the claims
+ * directory, leaving only the parts in the job directory. Leases replace the journal and oversize
+ * files aren't split, since splitting rewrites files another node may be claiming.
+ */
+@Getter
+@Slf4j
+public class AggregationLease implements Closeable {
+    public static final String CLAIMS_DIR = "claims";
+    public static final long DEFAULT_LEASE_MILLIS = 5 * 60 * 1000L;
+
+    private static final String LEASE_SUFFIX = ".lease";
+    private static final String DONE_SUFFIX = ".done";
+    private static final String PENDING_PREFIX = "pending-";
+    private static final String PART_NUMBERS = "parts";
+
+    private final String nodeId;
+    private final Path jobDir;
+    private final Path finishedDir;
+    private final Path claimsDir;
+    private final Path nodeDir;
+    private final Path leaseFile;
+    private final long leaseMillis;
+    private final JobDirLayout layout;
+
+    @Getter(AccessLevel.NONE)
+    private final AtomicInteger pendingClaims = new AtomicInteger();
+    // The lowest part number that might still be free for each type, so we don't start from 1 every time
+    @Getter(AccessLevel.NONE)
+    private final Map<FileOutputType, AtomicInteger> nextPartNumbers = new ConcurrentHashMap<>();
+    // The parts being written, the lease is renewed on a timer while there are any
+    @Getter(AccessLevel.NONE)
+    private final AtomicInteger partsWriting = new AtomicInteger();
+    @Getter(AccessLevel.NONE)
+    private final ScheduledExecutorService renewer;
+
+    /**
+     * Take out a lease on a job, recovering anything left claimed by an earlier node with the same id
+     *
+     * @param jobDir - the job directory (the base directory plus the job id)
+     * @param finishedDir - the finished directory, under the job directory
+     * @param nodeId - a name for this node, unique among the nodes aggregating the job
+     * @param leaseMillis - how long the lease lasts without being renewed
+     * @throws IOException if the claims directories can't be set up
+     */
+    public AggregationLease(String jobDir, String finishedDir, String nodeId, long leaseMillis) throws IOException {
+        if (nodeId.isEmpty() || nodeId.equals(PART_NUMBERS) || nodeId.contains(File.separator)) {
+            throw new IllegalArgumentException("Bad node id " + nodeId);
+        }
+        this.nodeId = nodeId;
+        this.jobDir = Path.of(jobDir).toAbsolutePath();
+        this.finishedDir = this.jobDir.resolve(finishedDir);
+        this.claimsDir = this.jobDir.resolve(CLAIMS_DIR);
+        this.nodeDir = claimsDir.resolve(nodeId);
+        this.leaseFile = claimsDir.resolve(nodeId + LEASE_SUFFIX);
+        this.leaseMillis = leaseMillis;
+        this.layout = JobDirLayout.forJob(jobDir);
+        Files.createDirectories(claimsDir.resolve(PART_NUMBERS));
+        recoverNode(nodeDir);
+        Files.createDirectories(nodeDir);
+        renew();
+        this.renewer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "aggregation-lease-" + nodeId);
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1, leaseMillis / 3);
+        renewer.scheduleAtFixedRate(this::renewWhileWriting, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    private void renewWhileWriting() {
+        if (partsWriting.get() == 0) {
+            return;
+        }
+        try {
+            renew();
+        } catch (IOException ex) {
+            log.error("Unable to renew the lease of node " + nodeId + " on " + jobDir.getFileName(), ex);
+        }
+    }
+
+    /**
+     * Keep the lease renewed while a part is being written, however long that takes
+     *
+     * @return closed once the part is written or has failed
+     */
+    Closeable keepAlive() {
+        partsWriting.incrementAndGet();
+        AtomicBoolean closed = new AtomicBoolean();
+        return () -> {
+            if (closed.compareAndSet(false, true)) {
+                partsWriting.decrementAndGet();
+            }
+        };
+    }
+
+    /**
+     * Tell the other nodes we are still alive
+     *
+     * @throws IOException if the lease file can't be touched
+     */
+    public void renew() throws IOException {
+        try {
+            Files.setLastModifiedTime(leaseFile, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (NoSuchFileException ex) {
+            Files.createFile(leaseFile);
+        }
+    }
+
+    /**
+     * Claim the files of a planned part and, if we got any, a number for the part
+     *
+     * @param part - the part as planned from the finished directory
+     * @param outputType - the type of the part
+     * @param contractNumber - the contract number, for the part's name
+     * @return the claimed part, empty if other nodes claimed all the files first
+     * @throws IOException if a file can't be claimed
+     */
+    ClaimedPart claim(PlannedPart part, FileOutputType outputType, String contractNumber) throws IOException {
+        renew();
+        Path pending = nodeDir.resolve(PENDING_PREFIX + pendingClaims.incrementAndGet());
+        Files.createDirectories(pending);
+        List<FileReferenceHolder> claimed = new ArrayList<>();
+        for (FileReferenceHolder reference : part.getReferences()) {
+            Path file = reference.getFile().toPath();
+            try {
+                Files.move(file, pending.resolve(file.getFileName()), StandardCopyOption.ATOMIC_MOVE);
+                claimed.add(reference);
+            } catch (NoSuchFileException ex) {
+                // Another node claimed it
+                log.debug("{} was claimed by another node", file.getFileName());
+            }
+        }
+        if (claimed.isEmpty()) {
+            Files.delete(pending);
+            return new ClaimedPart(null, null, new PlannedPart());
+        }
+        String partName = Aggregator.getPartFileName(contractNumber, reservePartNumber(outputType), outputType);
+        Path claimDir = Files.move(pending, nodeDir.resolve(partName), StandardCopyOption.ATOMIC_MOVE);
+        PlannedPart claimedPart = new PlannedPart();
+        for (FileReferenceHolder reference : claimed) {
+            claimedPart.add(new FileReferenceHolder(claimDir.resolve(reference.getFile().getName()).toFile(),
+                    reference.getSize(), reference.getDiskSize()));
+        }
+        return new ClaimedPart(partName, claimDir, claimedPart);
+    }
+
+    /**
+     * Take the lowest part number not taken by any node
+     */
+    private int reservePartNumber(FileOutputType type) throws IOException {
+        AtomicInteger next = nextPartNumbers.computeIfAbsent(type, t -> new AtomicInteger(1));
+        Path numbers = claimsDir.resolve(PART_NUMBERS);
+        while (true) {
+            int number = next.getAndIncrement();
+            try {
+                Files.createFile(numbers.resolve(type.name() + "-" + number));
+                return number;
+            } catch (FileAlreadyExistsException ex) {
+                // Taken by another node, or by us on another thread
+            }
+        }
+    }
+
+    /**
+     * @param claimed - the part
+     * @return true if the part's files are still claimed by this node, false if another node took the claim back
+     *      because our lease expired
+     */
+    boolean isHeld(ClaimedPart claimed) {
+        return Files.isDirectory(claimed.claimDir);
+    }
+
+    /**
+     * The claim on a part was lost, so its files are back in the finished directory or already in another node's
+     * part. Delete whatever we wrote of the part so that its data isn't in the job twice
+     *
+     * @param claimed - the part
+     * @throws IOException if the part can't be deleted
+     */
+    void abandon(ClaimedPart claimed) throws IOException {
+        log.warn("Node {} lost its claim on {}, deleting the part", nodeId, claimed.partName);
+        Files.deleteIfExists(jobDir.resolve(claimed.partName));
+        Files.deleteIfExists(jobDir.resolve(PartIndex.getSidecarName(claimed.partName)));
+    }
+
+    /**
+     * The part has been sealed, from now on a node recovering our claims must not put its files back
+     *
+     * @param claimed - the part
+     * @throws IOException if the claim can't be marked
+     */
+    void partWritten(ClaimedPart claimed) throws IOException {
+        Path done = Files.move(claimed.claimDir, nodeDir.resolve(claimed.partName + DONE_SUFFIX),
+                StandardCopyOption.ATOMIC_MOVE);
+        claimed.claimDir = done;
+    }
+
+    /**
+     * The part's files have been deleted, drop the claim
+     *
+     * @param claimed - the part
+     * @throws IOException if the claim directory can't be deleted
+     */
+    void partFinished(ClaimedPart claimed) throws IOException {
+        FileUtils.deleteAllInDir(claimed.claimDir.toFile());
+    }
+
+    /**
+     * The part couldn't be written, give its files back so that it can be tried again
+     *
+     * @param claimed - the part
+     * @throws IOException if the files can't be put back
+     */
+    void release(ClaimedPart claimed) throws IOException {
+        if (claimed.claimDir.getFileName().toString().endsWith(DONE_SUFFIX)) {
+            // The part is written, only deleting its files failed
+            partFinished(claimed);
+            return;
+        }
+        returnFiles(claimed.claimDir);
+    }
+
+    /**
+     * Recover the claims of every node whose lease has expired
+     *
+     * @return the number of nodes recovered
+     * @throws IOException if the claims can't be read or the files put back
+     */
+    public int recoverExpired() throws IOException {
+        renew();
+        long expired = System.currentTimeMillis() - leaseMillis;
+        int recovered = 0;
+        for (Path lease : list(claimsDir)) {
+            String name = lease.getFileName().toString();
+            String node = name.substring(0, Math.max(0, name.length() - LEASE_SUFFIX.length()));
+            if (!name.endsWith(LEASE_SUFFIX) || node.equals(nodeId)) {
+                continue;
+            }
+            try {
+                if (Files.getLastModifiedTime(lease).toMillis() >= expired) {
+                    continue;
+                }
+                log.warn("The lease of node {} on {} expired, recovering its claims", node, jobDir.getFileName());
+                recoverNode(claimsDir.resolve(node));
+                Files.deleteIfExists(lease);
+                recovered++;
+            } catch (NoSuchFileException ex) {
+                // Recovered by another node while we were looking
+                log.debug("The lease of node {} was already recovered", node);
+            }
+        }
+        return recovered;
+    }
+
+    /**
+     * Put back the claims of a node that is gone. Finished parts keep their files, which are deleted, unfinished
+     * parts are deleted and their files go back to the finished directory
+     */
+    private void recoverNode(Path node) throws IOException {
+        if (!Files.isDirectory(node)) {
+            return;
+        }
+        for (Path claim : list(node)) {
+            String name = claim.getFileName().toString();
+            if (name.endsWith(DONE_SUFFIX)) {
+                FileUtils.deleteAllInDir(claim.toFile());
+                continue;
+            }
+            if (!name.startsWith(PENDING_PREFIX)) {
+                Files.deleteIfExists(jobDir.resolve(name));
+                Files.deleteIfExists(jobDir.resolve(PartIndex.getSidecarName(name)));
+            }
+            returnFiles(claim);
+        }
+        if (!node.equals(nodeDir)) {
+            Files.deleteIfExists(node);
+        }
+    }
+
+    private void returnFiles(Path claim) throws IOException {
+        for (Path file : list(claim)) {
+            try {
+                File finished = layout.locate(finishedDir.toFile(), file.getFileName().toString());
+                Files.move(file, finished.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (NoSuchFileException ex) {
+                // Another node is recovering the same claim
+                log.debug("{} was already given back", file.getFileName());
+            }
+        }
+        Files.deleteIfExists(claim);
+    }
+
+    /**
+     * @return true if no node, including this one, has finished files claimed
+     * @throws IOException if the claims directory can't be read
+     */
+    public boolean isDrained() throws IOException {
+        for (Path node : list(claimsDir)) {
+            String name = node.getFileName().toString();
+            if (Files.isDirectory(node) && !name.equals(PART_NUMBERS) && !list(node).isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static List<Path> list(Path dir) throws IOException {
+        List<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            stream.forEach(paths::add);
+        } catch (NoSuchFileException ex) {
+            return paths;
+        }
+        return paths;
+    }
+
+    /**
+     * Give up the lease because the job is aggregated, no node has files claimed. If no other node's lease is still
+     * alive we are the last node, and the claims directory with its part number markers is deleted. Leases that
+     * have expired are deleted along the way, they have nothing left to recover
+     *
+     * @throws IOException if the claims directory can't be read
+     */
+    public void jobAggregated() throws IOException {
+        close();
+        long expired = System.currentTimeMillis() - leaseMillis;
+        boolean othersAlive = false;
+        for (Path lease : list(claimsDir)) {
+            if (!lease.getFileName().toString().endsWith(LEASE_SUFFIX)) {
+                continue;
+            }
+            try {
+                if (Files.getLastModifiedTime(lease).toMillis() >= expired) {
+                    othersAlive = true;
+                } else {
+                    Files.deleteIfExists(lease);
+                }
+            } catch (NoSuchFileException ex) {
+                // That node just finished as well
+                log.debug("{} was already given up", lease.getFileName());
+            }
+        }
+        if (!othersAlive) {
+            log.info("Node {} is the last to finish {}, deleting its claims", nodeId, jobDir.getFileName());
+            FileUtils.deleteAllInDir(claimsDir.toFile());
+        }
+    }
+
+    /**
+     * Give up the lease. If claims are still held the lease is left to expire, so that another node recovers them
+     *
+     * @throws IOException if the lease can't be removed
+     */
+    @Override
+    public void close() throws IOException {
+        renewer.shutdownNow();
+        if (list(nodeDir).isEmpty()) {
+            Files.deleteIfExists(nodeDir);
+            Files.deleteIfExists(leaseFile);
+        }
+    }
+
+    /**
+     * The finished files claimed for one part and the part's name
+     */
+    static final class ClaimedPart {
+        @Getter
+        private final String partName;
+        private Path claimDir;
+        @Getter
+        private final PlannedPart part;
+
+        private ClaimedPart(String partName, Path claimDir, PlannedPart part) {
+            this.partName = partName;
+            this.claimDir = claimDir;
+            this.part = part;
+        }
+
+        boolean isEmpty() {
+            return part.getReferences().isEmpty();
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package gov.cms.ab2d.aggregator;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the aggregation of many jobs on a small shared pool of threads instead of giving each job an
+ * AggregatorCallable thread that spends most of its time asleep. Each job is aggregated one pass at a time. After a
+ * pass the job gives up its thread until its wait interval is up or, with the IN_PROCESS trigger mode, until its
+ * JobSignal fires, whichever comes first. The passes of one job never overlap, but different jobs are aggregated at
+ * the same time.
+ *
+ * Submitting a job returns a future that completes with the number of aggregations performed once the job is
+ * completely aggregated, so the worker can wait on it instead of watching for the finished directory to go away:
+ *
+ * AggregationScheduler scheduler = new AggregationScheduler(4);
+ * CompletableFuture&lt;Integer&gt; done = scheduler.submit(callable);
+ * ... stream the data and call JobHelper.workerFinishJob ...
+ * done.get();
+ *
+ * The WATCH_SERVICE trigger mode has no way of waking a job up early here, its events are picked up at the start of
+ * the next timed pass. Each job still uses its own parallelism and compression threads when it combines parts.
+ */
+@Slf4j
+public class AggregationScheduler implements AutoCloseable {
+    // The states of a job's passes
+    private static final int IDLE = 0;
+    private static final int RUNNING = 1;
+    private static final int PENDING = 2;
+
+    private final ScheduledExecutorService pool;
+    private final Map<String, ScheduledJob> jobs = new ConcurrentHashMap<>();
+
+    /**
+     * @param threads - the number of threads shared by all the jobs
+     */
+    public AggregationScheduler(int threads) {
+        this.pool = Executors.newScheduledThreadPool(threads, new SchedulerThreadFactory());
+    }
+
+    /**
+     * Start aggregating a job. The callable's settings (trigger mode, wait interval, packing, compression,
+     * journal, ...) are used just like when it is called on its own thread.
+     *
+     * @param callable - the job to aggregate
+     * @return a future that completes with the number of aggregations performed when the job is aggregated
+     * @throws IOException if the job can't be set up
+     */
+    public CompletableFuture<Integer> submit(AggregatorCallable callable) throws IOException {
+        String jobId = callable.getJobId();
+        if (jobs.containsKey(jobId)) {
+            throw new IllegalStateException("Job " + jobId + " is already being aggregated");
+        }
+        ScheduledJob job = new ScheduledJob(callable, callable.start());
+        if (jobs.putIfAbsent(jobId, job) != null) {
+            job.run.close();
+            throw new IllegalStateException("Job " + jobId + " is already being aggregated");
+        }
+        job.future.whenComplete((result, ex) -> jobs.remove(jobId, job));
+        AggregationTrigger trigger = job.run.getTrigger();
+        if (trigger instanceof JobSignal) {
+            ((JobSignal) trigger).setListener(job::wake);
+        }
+        job.wake();
+        return job.future;
+    }
+
+    /**
+     * @param jobId - the job id
+     * @return the future of the job if it is still being aggregated
+     */
+    public Optional<CompletableFuture<Integer>> getCompletion(String jobId) {
+        return Optional.ofNullable(jobs.get(jobId)).map(job -> job.future);
+    }
+
+    /**
+     * @return the number of jobs still being aggregated
+     */
+    public int getJobCount() {
+        return jobs.size();
+    }
+
+    /**
+     * Stop aggregating. Passes that are running are interrupted and waited for, then jobs that aren't done yet are
+     * cancelled and their futures complete exceptionally.
+     */
+    @Override
+    public void close() {
+        pool.shutdownNow();
+        try {
+            if (!pool.awaitTermination(1, TimeUnit.MINUTES)) {
+                log.warn("Aggregation passes are still running after the scheduler was closed");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        jobs.values().forEach(job -> job.finish(null, new IllegalStateException("The aggregation scheduler was closed")));
+    }
+
+    /**
+     * A job and what it takes to run its passes one at a time
+     */
+    private final class ScheduledJob implements Runnable {
+        private final AggregatorCallable callable;
+        private final AggregatorCallable.Run run;
+        private final CompletableFuture<Integer> future = new CompletableFuture<>();
+        // IDLE, RUNNING or PENDING (running, and woken again since the pass started)
+        private final AtomicInteger state = new AtomicInteger(IDLE);
+        private final AtomicBoolean wakeQueued = new AtomicBoolean();
+        private volatile ScheduledFuture<?> timer;
+
+        private ScheduledJob(AggregatorCallable callable, AggregatorCallable.Run run) {
+            this.callable = callable;
+            this.run = run;
+        }
+
+        /**
+         * Run a pass as soon as a thread is free. Wake ups that arrive before the pass starts are rolled into it
+         */
+        private void wake() {
+            if (future.isDone() || !wakeQueued.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                pool.execute(() -> {
+                    wakeQueued.set(false);
+                    run();
+                });
+            } catch (RejectedExecutionException ex) {
+                // The scheduler is shutting down
+                wakeQueued.set(false);
+            }
+        }
+
+        @Override
+        public void run() {
+            if (state.getAndUpdate(current -> current == IDLE ? RUNNING : PENDING) != IDLE) {
+                // Another thread is in the middle of a pass, have it go again when it's done
+                return;
+            }
+            try {
+                if (future.isDone()) {
+                    // Woken up before the job finished, but its run is closed now
+                    return;
+                }
+                // If nothing new was signalled, have the index double check the finished directory, the same
+                // as when a callable's wait times out. This also picks up any file system events
+                if (!run.getTrigger().await(0)) {
+                    run.getAggregator().getIndex().markStale();
+                }
+                if (run.pass()) {
+                    finish(run.getNumAggregations(), null);
+                    return;
+                }
+                if (timer != null) {
+                    timer.cancel(false);
+                }
+                timer = pool.schedule(this, run.getWaitMillis(), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                if (pool.isShutdown()) {
+                    log.debug("Pass of job {} interrupted, the scheduler is closing", callable.getJobId());
+                } else {
+                    finish(null, ex);
+                }
+            } catch (RejectedExecutionException ex) {
+                // The scheduler is shutting down, close will cancel the job
+                log.debug("Not scheduling the next pass of job {}", callable.getJobId());
+            } catch (IOException | RuntimeException ex) {
+                log.error("Aggregating job {} failed", callable.getJobId(), ex);
+                finish(null, ex);
+            } finally {
+                // Anything that woke the job during the pass left it PENDING, so it can't be missed here
+                if (state.getAndSet(IDLE) == PENDING) {
+                    wake();
+                }
+            }
+        }
+
+        private synchronized void finish(Integer numAggregations, Throwable failure) {
+            if (future.isDone()) {
+                return;
+            }
+            if (timer != null) {
+                timer.cancel(false);
+            }
+            try {
+                run.close();
+            } catch (IOException ex) {
+                log.error("Unable to clean up after aggregating job {}", callable.getJobId(), ex);
+            }
+            if (failure == null) {
+                future.complete(numAggregations);
+            } else {
+                future.completeExceptionally(failure);
+            }
+        }
+    }
+
+    private static final class SchedulerThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "aggregation-scheduler-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
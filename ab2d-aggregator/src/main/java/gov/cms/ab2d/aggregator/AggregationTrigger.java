@@ -0,0 +1,36 @@
+package gov.cms.ab2d.aggregator;
+
+/**
+ * Decides how long the aggregator waits between aggregation passes. The aggregator calls await after each
+ * pass and starts the next pass as soon as it returns. Implementations can return early when they know
+ * something has changed (a finished file appeared or the worker is done streaming) so the aggregator does not
+ * have to sit out a full wait interval.
+ */
+@FunctionalInterface
+public interface AggregationTrigger extends AutoCloseable {
+
+    /**
+     * Wait for something to happen to the job or for the timeout to elapse, whichever comes first
+     *
+     * @param timeoutMillis - the maximum time to wait in milliseconds
+     * @return true if we were woken up by a change to the job, false if the timeout elapsed
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    boolean await(long timeoutMillis) throws InterruptedException;
+
+    @Override
+    default void close() {
+    }
+
+    /**
+     * The original behavior - just sleep for the timeout and let the aggregator check the file system again
+     *
+     * @return a trigger that always waits the full timeout
+     */
+    static AggregationTrigger polling() {
+        return timeoutMillis -> {
+            Thread.sleep(timeoutMillis);
+            return false;
+        };
+    }
+}
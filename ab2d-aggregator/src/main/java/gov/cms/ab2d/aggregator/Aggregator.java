@@ -1,30 +1,42 @@
 package gov.cms.ab2d.aggregator;
 
 import lombok.Getter;
+import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Comparator;
-import java.util.HashMap;
+import java.util.EnumMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
 import static gov.cms.ab2d.aggregator.Aggregator.AggregatorResult.NOT_PERFORMED;
 import static gov.cms.ab2d.aggregator.FileOutputType.DATA;
-import static gov.cms.ab2d.aggregator.FileOutputType.ERROR;
+import static gov.cms.ab2d.aggregator.FileOutputType.DATA_COMPRESSED;
 import static gov.cms.ab2d.aggregator.FileUtils.cleanUpFiles;
+import static gov.cms.ab2d.aggregator.FileUtils.DEFAULT_GZIP_BLOCK_SIZE;
 import static gov.cms.ab2d.aggregator.FileUtils.combineFiles;
-import static gov.cms.ab2d.aggregator.FileUtils.getSizeOfFileOrDirectory;
-import static gov.cms.ab2d.aggregator.FileUtils.getSizeOfFiles;
-import static gov.cms.ab2d.aggregator.FileUtils.listFiles;
+import static gov.cms.ab2d.aggregator.FileUtils.combineFilesCompressed;
+import static gov.cms.ab2d.aggregator.FileUtils.combineFilesWithSummary;
 
 /**
  * Does the work of aggregating files
@@ -38,7 +50,18 @@ public class Aggregator {
         NOT_PERFORMED
     }
 
+    /**
+     * What maxMegaBytes limits when the output is compressed
+     */
+    public enum SizeBasis {
+        /** The data going into a part, the same as for uncompressed output */
+        UNCOMPRESSED,
+        /** The size of the compressed part itself, estimated from the compression seen so far */
+        COMPRESSED
+    }
+
     public static final int ONE_MEGA_BYTE = 1024 * 1024;
+    public static final int DEFAULT_MIN_SEAL_PERCENT = 25;
 
     private final String jobId;
     private final String mainDirectory;
@@ -48,7 +71,97 @@ public class Aggregator {
     private final int maxMegaBytes;
     private final int multiplier;
 
-    private Map<FileOutputType, Integer> fileCounts = new HashMap<>();
+    // The number of the next part for each type of file. Parts can be combined in parallel so these are atomic
+    private final Map<FileOutputType, AtomicInteger> fileCounts = new EnumMap<>(FileOutputType.class);
+
+    // What's in the finished directory, so we don't have to go to the file system for every decision
+    private final FinishedFileIndex index;
+
+    // How finished files are grouped into output files
+    @Setter
+    private PackingStrategy packingStrategy = new GreedyPackingStrategy();
+
+    private final PackingReport packingReport;
+
+    // Write gzip parts (DATA_COMPRESSED, ERROR_COMPRESSED) instead of plain ndjson
+    @Setter
+    private boolean compressed;
+
+    @Setter
+    private SizeBasis sizeBasis = SizeBasis.UNCOMPRESSED;
+
+    // Where the blocks of compressed parts are compressed, null to compress on the thread writing the part
+    @Setter
+    private ExecutorService compressionExecutor;
+
+    // Work out the checksum and record count of each plain part while it is written, see combineFilesWithSummary
+    @Setter
+    private boolean summarizeParts;
+
+    // The summary of each plain part written, by the part's file name (without path)
+    private final Map<String, CombineResult> partSummaries = new ConcurrentHashMap<>();
+
+    // The ids of the EOBs written so far, used to leave duplicate EOBs out of the data parts. Null to keep them all
+    @Setter
+    private EobIdSet seenEobIds;
+
+    // Split plain finished files bigger than a part at record boundaries instead of writing them as oversized parts
+    @Setter
+    private boolean splitOversizeFiles = true;
+
+    // Files too big for a part that are a single record, so there's no point looking at them again
+    private final Set<File> unsplittable = ConcurrentHashMap.newKeySet();
+
+    // Whether splits interrupted by an earlier aggregator have been cleaned up
+    private boolean splitsRecovered;
+
+    // Write a PartIndex sidecar next to each plain part, sampling every indexInterval'th record. 0 for no index
+    @Setter
+    private int indexInterval;
+
+    // Also index where each patient's records start in the part
+    @Setter
+    private boolean indexPatients;
+
+    // How the worker says it is done streaming and the aggregator says it is done aggregating, the directories
+    // by default
+    @Setter
+    private JobCoordinator coordinator;
+
+    // Where the parts are written, the job directory unless the parts go straight to object storage
+    @Setter
+    private AggregatedPartSink partSink;
+
+    // Shares the job with aggregators on other nodes, which claim finished files before combining them. Null if
+    // this is the job's only aggregator
+    @Setter
+    private AggregationLease lease;
+
+    // Seal a part early once the oldest finished file waiting for one is older than this, instead of waiting for
+    // multiplier parts' worth of data. 0 to always wait
+    @Setter
+    private long maxPendingMillis;
+
+    // How full, as a percentage of a part, a part sealed early has to be
+    @Setter
+    private int minSealPercent = DEFAULT_MIN_SEAL_PERCENT;
+
+    // The parts sealed early because their data had waited maxPendingMillis
+    private final AtomicLong partsSealedForAge = new AtomicLong();
+
+    // Where the parts written are recorded so that the job can be resumed after a crash, null if not journaled
+    private AggregationJournal journal;
+
+    // What goes into the stats snapshot
+    private final AtomicLong bytesCombined = new AtomicLong();
+    private final AtomicLong combiningNanos = new AtomicLong();
+    private final AtomicLong waitingNanos = new AtomicLong();
+    private volatile long streamEndedMillis;
+    private volatile long aggregatedMillis;
+
+    // Totals for the compressed parts written so far, used to estimate how much data fits in a compressed part
+    private final AtomicLong bytesBeforeCompression = new AtomicLong();
+    private final AtomicLong bytesAfterCompression = new AtomicLong();
 
     /**
      * Define the Aggregator for the job
@@ -72,10 +185,14 @@ public class Aggregator {
         this.maxMegaBytes = maxMegaBytes;
         this.finishedDir = finishedDir;
         this.multiplier = multiplier;
+        this.index = new FinishedFileIndex(this.mainDirectory + File.separator + finishedDir);
+        this.packingReport = new PackingReport(getMaxFileSize());
+        this.coordinator = new FileSystemJobCoordinator(mainDirectory, streamDir, finishedDir);
+        this.partSink = new LocalPartSink(Path.of(this.mainDirectory));
 
         FileOutputType[] fileOutputValues = FileOutputType.values();
         for (FileOutputType type : fileOutputValues) {
-            fileCounts.put(type, 1);
+            fileCounts.put(type, new AtomicInteger(1));
         }
 
         // The worker should do this by default, but just in case, set up all the directories. If there is an error
@@ -98,23 +215,411 @@ public class Aggregator {
      * @throws IOException if one of this file manipulations fails
      */
     public AggregatorResult aggregate(FileOutputType fileType) throws IOException {
+        // Bring the index of finished files up to date, everything after this works off of the index
+        index.refresh();
+
         // remove any empty files
-        removeEmptyFiles();
+        deleteEmptyFiles();
+        splitOversizeInputs(fileType);
+
+        FileOutputType outputType = getOutputType(fileType);
+        while (true) {
+            List<PlannedPart> parts;
+            boolean sealedForAge = false;
+            if (isFullEnough(fileType)) {
+                parts = planParts(fileType);
+            } else {
+                List<FileReferenceHolder> aged = getAgedOutFiles(index.getSortedFiles(getInputTypes(fileType)));
+                if (aged.isEmpty()) {
+                    return NOT_PERFORMED;
+                }
+                parts = packingStrategy.plan(aged, getPlanningFileSize());
+                sealedForAge = true;
+            }
+            if (parts.isEmpty() || parts.get(0).getReferences().isEmpty()) {
+                return NOT_PERFORMED;
+            }
+            PlannedPart part = parts.get(0);
+            if (lease != null) {
+                AggregationLease.ClaimedPart claimed = claim(outputType, part);
+                if (claimed.isEmpty()) {
+                    // Other nodes claimed all of it, plan again with what's left
+                    continue;
+                }
+                writeClaimedPart(outputType, claimed);
+            } else {
+                String fileName = getNextFileName(outputType);
+                if (fileName == null) {
+                    return NOT_PERFORMED;
+                }
+                writePart(outputType, part, fileName);
+                index.remove(part.getFiles());
+            }
+            countSealedForAge(sealedForAge);
+            return AggregatorResult.PERFORMED;
+        }
+    }
+
+    /**
+     * Claim the files of a planned part for this node. Whether we got them or another node did, they are no longer
+     * in the finished directory
+     *
+     * @param outputType - the type of the output file
+     * @param part - the part as planned
+     * @return the files we got and the part's name
+     * @throws IOException if the files can't be claimed
+     */
+    private AggregationLease.ClaimedPart claim(FileOutputType outputType, PlannedPart part) throws IOException {
+        AggregationLease.ClaimedPart claimed = lease.claim(part, outputType, contractNumber);
+        index.remove(part.getFiles());
+        return claimed;
+    }
+
+    /**
+     * Write a part claimed through the lease, keeping the lease renewed while it is written. If it can't be written
+     * its files are given back, and if another node took the claim back in the meantime the part is deleted
+     *
+     * @param outputType - the type of the output file
+     * @param claimed - the claimed part
+     * @throws IOException if the part can't be written
+     */
+    private void writeClaimedPart(FileOutputType outputType, AggregationLease.ClaimedPart claimed) throws IOException {
+        Closeable renewing = lease.keepAlive();
+        try {
+            writePart(outputType, claimed.getPart(), Path.of(mainDirectory, claimed.getPartName()).toString(), claimed);
+        } catch (IOException | RuntimeException ex) {
+            if (lease.isHeld(claimed)) {
+                lease.release(claimed);
+            } else {
+                lease.abandon(claimed);
+            }
+            index.markStale();
+            throw ex;
+        } finally {
+            renewing.close();
+        }
+    }
+
+    private void writePart(FileOutputType outputType, PlannedPart part, String fileName) throws IOException {
+        writePart(outputType, part, fileName, null);
+    }
+
+    /**
+     * Combine the files of a part into the part sink, compressing if need be, and delete them
+     *
+     * @param outputType - the type of the output file
+     * @param part - the part to write
+     * @param fileName - the output file name with location, only the name is used if the sink isn't local
+     * @param claimed - the claim on the files if they were claimed through the lease, otherwise null
+     * @throws IOException if the files can't be combined
+     */
+    private void writePart(FileOutputType outputType, PlannedPart part, String fileName,
+                           AggregationLease.ClaimedPart claimed) throws IOException {
+        List<File> files = part.getFiles();
+        String partName = new File(fileName).getName();
+        long partSize = part.getSize();
+        if (journal != null) {
+            journal.partPlanned(outputType, fileName, files);
+        }
+        // Only EOBs are de-duplicated, errors are kept as they are
+        EobIdSet seen = outputType == DATA || outputType == DATA_COMPRESSED ? seenEobIds : null;
+        long started = System.nanoTime();
+        IndexingChannel indexing = null;
+        try (AggregatedPartSink.PartOutput output = partSink.create(partName)) {
+            WritableByteChannel out = output.getChannel();
+            // Offsets in a gzip part don't help a reader, so only plain parts are indexed
+            if (indexInterval > 0 && !outputType.isCompressed()) {
+                indexing = new IndexingChannel(out, indexInterval, indexPatients);
+                out = indexing;
+            }
+            if (outputType.isCompressed()) {
+                long compressedSize = combineFilesCompressed(files, out, compressionExecutor, DEFAULT_GZIP_BLOCK_SIZE, seen);
+                bytesBeforeCompression.addAndGet(part.getSize());
+                bytesAfterCompression.addAndGet(compressedSize);
+                if (sizeBasis == SizeBasis.COMPRESSED) {
+                    partSize = compressedSize;
+                }
+            } else if (summarizeParts) {
+                CombineResult summary = combineFilesWithSummary(files, out, seen);
+                partSummaries.put(partName, summary);
+                if (seen != null) {
+                    partSize = summary.getByteCount();
+                }
+            } else {
+                combineFiles(files, out, seen);
+                if (seen != null) {
+                    partSize = output.getSize();
+                }
+            }
+            if (claimed != null && !lease.isHeld(claimed)) {
+                // Our lease expired and another node is aggregating these files again, don't seal a duplicate
+                throw new IOException("Lost the claim on " + partName + " of job " + jobId);
+            }
+            // The finished files are deleted next, so with a journal the part has to survive a crash before we say
+            // it's complete
+            output.seal(journal != null);
+        }
+        if (indexing != null) {
+            writeIndex(indexing.toIndex(), partName);
+        }
+        combiningNanos.addAndGet(System.nanoTime() - started);
+        bytesCombined.addAndGet(part.getSize());
+        if (journal != null) {
+            journal.partCompleted(fileName);
+        }
+        if (claimed != null) {
+            lease.partWritten(claimed);
+        }
+        packingReport.partWritten(outputType, partSize);
+        cleanUpFiles(files);
+        if (claimed != null) {
+            lease.partFinished(claimed);
+        }
+        DiskBudget.filesAggregated(mainDirectory, part.getDiskSize());
+    }
+
+    /**
+     * Write the sidecar index of a part through the part sink, next to the part
+     *
+     * @param partIndex - the index
+     * @param partName - the part's file name
+     * @throws IOException if the index can't be written
+     */
+    private void writeIndex(PartIndex partIndex, String partName) throws IOException {
+        try (AggregatedPartSink.PartOutput output = partSink.create(PartIndex.getSidecarName(partName))) {
+            partIndex.write(Channels.newOutputStream(output.getChannel()));
+            output.seal(journal != null);
+        }
+    }
+
+    /**
+     * Pick up a job where an earlier aggregator left off, then record the parts written from now on in the
+     * journal. Parts the journal says are complete are kept and any of their finished files that weren't
+     * deleted yet are deleted. Parts that were started but not completed are written again, with the same
+     * name, from the same finished files. Part numbering carries on after the last part in the journal.
+     *
+     * @param journal - the job's journal, empty if the job is starting for the first time
+     * @return the number of parts that were written again
+     * @throws IOException if the journal can't be read or a part can't be written
+     */
+    public int resume(AggregationJournal journal) throws IOException {
+        this.journal = journal;
+        File finished = new File(mainDirectory, finishedDir);
+        JobDirLayout layout = JobDirLayout.forJob(mainDirectory);
+        int rewritten = 0;
+        for (AggregationJournal.JournaledPart journaled : journal.read()) {
+            FileOutputType type = journaled.getType();
+            String partName = journaled.getPartName();
+            int partNumber = getPartNumber(partName, type);
+            fileCounts.get(type).accumulateAndGet(partNumber + 1, Math::max);
+
+            List<File> remaining = journaled.getInputs().stream()
+                    .map(input -> layout.locate(finished, input))
+                    .filter(File::exists)
+                    .collect(Collectors.toList());
+            if (journaled.isCompleted()) {
+                cleanUpFiles(remaining);
+                continue;
+            }
+            if (remaining.size() < journaled.getInputs().size()) {
+                log.warn("Only {} of the {} files planned for {} are left, writing it with those",
+                        remaining.size(), journaled.getInputs().size(), partName);
+            }
+            log.info("Writing part {} of job {} again after an interrupted aggregation", partName, jobId);
+            // The sink replaces whatever was written of the part last time
+            PlannedPart part = new PlannedPart();
+            for (File file : remaining) {
+                // Parts are planned with the uncompressed size, a gzip file has to be read to know it
+                long diskSize = file.length();
+                long size = FileOutputType.getFileType(file.getName()).isCompressed() && diskSize > 0
+                        ? FileUtils.getUncompressedSize(file) : diskSize;
+                part.add(new FileReferenceHolder(file, size, diskSize));
+            }
+            writePart(type, part, Path.of(mainDirectory, partName).toString());
+            rewritten++;
+        }
+        index.markStale();
+        return rewritten;
+    }
+
+    private int getPartNumber(String partName, FileOutputType type) {
+        String number = partName.substring(contractNumber.length() + 1, partName.length() - type.getSuffix().length());
+        return Integer.parseInt(number);
+    }
+
+    /**
+     * Files written by a compressed ClaimsStream are aggregated along with the plain files of the same kind
+     *
+     * @param type - the type of the files being aggregated
+     * @return the types of finished files that go into it
+     */
+    static FileOutputType[] getInputTypes(FileOutputType type) {
+        if (type.isCompressed() || type == type.getCompressedType()) {
+            return new FileOutputType[] {type};
+        }
+        return new FileOutputType[] {type, type.getCompressedType()};
+    }
+
+    /**
+     * @param type - the type of the files being aggregated
+     * @return the type of the file they are aggregated into
+     */
+    FileOutputType getOutputType(FileOutputType type) {
+        return compressed ? type.getCompressedType() : type;
+    }
+
+    /**
+     * Aggregate several parts at the same time. For each type of file, this plans up to maxParts parts the same way
+     * repeated calls to aggregate would (stopping once there isn't enough data left to aggregate), names them in
+     * that order and then combines all the parts of all the types at once on the executor. The executor bounds how
+     * many parts are actually combined concurrently.
+     *
+     * @param executor - where to combine the parts
+     * @param maxParts - the most parts to plan for each type of file
+     * @param types - the types of files to aggregate
+     * @return the number of parts written, 0 if there wasn't enough data to aggregate
+     * @throws IOException if combining any of the parts failed. The other parts are still written
+     * @throws InterruptedException if interrupted while waiting for the parts to be combined
+     */
+    public int aggregateParts(ExecutorService executor, int maxParts, FileOutputType... types)
+            throws IOException, InterruptedException {
+        index.refresh();
+        deleteEmptyFiles();
+
+        for (FileOutputType type : types) {
+            splitOversizeInputs(type);
+        }
+
+        List<Future<PlannedPart>> futures = new ArrayList<>();
+        for (FileOutputType type : types) {
+            Set<PlannedPart> sealedForAge = new HashSet<>();
+            for (PlannedPart part : selectParts(type, maxParts, sealedForAge)) {
+                FileOutputType outputType = getOutputType(type);
+                boolean aged = sealedForAge.contains(part);
+                if (lease != null) {
+                    AggregationLease.ClaimedPart claimed = claim(outputType, part);
+                    if (!claimed.isEmpty()) {
+                        futures.add(executor.submit(() -> {
+                            writeClaimedPart(outputType, claimed);
+                            countSealedForAge(aged);
+                            return claimed.getPart();
+                        }));
+                    }
+                    continue;
+                }
+                // Names are handed out here, in plan order, so numbering doesn't depend on which part finishes first
+                String fileName = getNextFileName(outputType);
+                futures.add(executor.submit(() -> {
+                    writePart(outputType, part, fileName);
+                    countSealedForAge(aged);
+                    return part;
+                }));
+            }
+        }
 
-        if (!okayToDoAggregation(fileType)) {
-            return NOT_PERFORMED;
+        int written = 0;
+        IOException failure = null;
+        for (Future<PlannedPart> future : futures) {
+            try {
+                index.remove(future.get().getFiles());
+                written++;
+            } catch (ExecutionException ex) {
+                log.error("Unable to combine a part of job " + jobId, ex.getCause());
+                if (failure == null) {
+                    failure = new IOException("Unable to combine a part of job " + jobId, ex.getCause());
+                }
+            } catch (InterruptedException ex) {
+                // Parts may still be finishing without us, let the index find out what is left for itself
+                index.markStale();
+                throw ex;
+            }
         }
-        List<File> bestFiles = getBestFiles(fileType);
-        if (bestFiles.isEmpty()) {
-            return NOT_PERFORMED;
+        if (failure != null) {
+            throw failure;
         }
-        String fileName = getNextFileName(fileType);
-        if (fileName == null) {
-            return NOT_PERFORMED;
+        return written;
+    }
+
+    /**
+     * Pick the parts to write next for a type of file. Each part is the first part of a new plan of the
+     * files not already picked, and we stop when there's no longer enough data to aggregate, exactly as if
+     * aggregate had been called again after each part. Once there isn't, parts may still be sealed early from the
+     * files that have waited too long.
+     *
+     * @param type - type of file
+     * @param maxParts - the most parts to pick
+     * @param sealedForAge - the parts picked because their files waited too long are added to this
+     * @return the parts to write
+     */
+    private List<PlannedPart> selectParts(FileOutputType type, int maxParts, Set<PlannedPart> sealedForAge) {
+        List<PlannedPart> selected = new ArrayList<>();
+        List<FileReferenceHolder> remaining = index.getSortedFiles(getInputTypes(type));
+        long pending = remaining.stream().mapToLong(FileReferenceHolder::getSize).sum();
+        boolean aggregateAll = isJobDoneStreamingData() || DiskBudget.isDraining(mainDirectory);
+        while (selected.size() < maxParts && !remaining.isEmpty()) {
+            boolean fullEnough = aggregateAll || pending > this.multiplier * getPlanningFileSize();
+            List<FileReferenceHolder> candidates = fullEnough ? remaining : getAgedOutFiles(remaining);
+            if (candidates.isEmpty()) {
+                break;
+            }
+            List<PlannedPart> plan = packingStrategy.plan(candidates, getPlanningFileSize());
+            if (plan.isEmpty() || plan.get(0).getReferences().isEmpty()) {
+                break;
+            }
+            PlannedPart part = plan.get(0);
+            if (!fullEnough) {
+                sealedForAge.add(part);
+            }
+            selected.add(part);
+            pending -= part.getSize();
+            Set<FileReferenceHolder> used = new HashSet<>(part.getReferences());
+            remaining.removeIf(used::contains);
+        }
+        return selected;
+    }
+
+    private void countSealedForAge(boolean aged) {
+        if (aged) {
+            partsSealedForAge.incrementAndGet();
+        }
+    }
+
+    /**
+     * Split the plain finished files of a type that are bigger than a part (see FileUtils.splitAtRecords) and
+     * put the pieces in the index, so the packing strategy never has to plan an oversized part. Compressed finished
+     * files can't be cut at a byte position and are left as they are.
+     *
+     * @param type - type of file
+     * @throws IOException if a file can't be split
+     */
+    private void splitOversizeInputs(FileOutputType type) throws IOException {
+        // Splitting rewrites finished files, which other nodes could be claiming at the same time
+        if (!splitOversizeFiles || type.isCompressed() || lease != null) {
+            return;
+        }
+        if (!splitsRecovered) {
+            for (File dir : JobDirLayout.forJob(mainDirectory).getDirectories(new File(mainDirectory, finishedDir))) {
+                List<File> recovered = FileUtils.recoverSplits(dir);
+                recovered.forEach(piece -> index.fileFinished(piece, piece.length()));
+            }
+            splitsRecovered = true;
+        }
+        long limit = getPlanningFileSize();
+        for (FileReferenceHolder reference : index.getSortedFiles(type)) {
+            File file = reference.getFile();
+            if (reference.getSize() <= limit || unsplittable.contains(file)) {
+                continue;
+            }
+            List<File> pieces = FileUtils.splitAtRecords(file, limit);
+            if (pieces.isEmpty()) {
+                unsplittable.add(file);
+                continue;
+            }
+            // The pieces have been waiting as long as the file they were cut from
+            index.fileFinished(file, file.length(), reference.getFinishedMillis());
+            pieces.forEach(piece -> index.fileFinished(piece, piece.length(), reference.getFinishedMillis()));
+            log.info("Split {} of job {} into {} files at record boundaries", file.getName(), jobId, pieces.size() + 1);
         }
-        combineFiles(bestFiles, fileName);
-        cleanUpFiles(bestFiles);
-        return AggregatorResult.PERFORMED;
     }
 
     /**
@@ -122,20 +627,12 @@ public class Aggregator {
      * have no EOBs.
      */
     void removeEmptyFiles() {
-        String fDir = this.mainDirectory + File.separator + this.finishedDir;
-        List<File> availableFiles = listFiles(fDir, DATA);
-        availableFiles.addAll(listFiles(fDir, ERROR));
-        List<File> emptyFiles = availableFiles.stream()
-                .filter(f -> {
-                            long size;
-                            try {
-                                size = getSizeOfFileOrDirectory(f.getAbsolutePath());
-                            } catch (IOException e) {
-                                size = 0L;
-                            }
-                            return size == 0;
-                        }).collect(Collectors.toList());
-        emptyFiles.forEach(File::delete);
+        index.refresh();
+        deleteEmptyFiles();
+    }
+
+    private void deleteEmptyFiles() {
+        index.removeEmptyFiles().forEach(File::delete);
     }
 
     /**
@@ -156,9 +653,18 @@ public class Aggregator {
      * @return the file name
      */
     String getNextFilePart(FileOutputType type) {
-        int currentVal = fileCounts.get(type);
-        var paddedPartitionNo = StringUtils.leftPad("" + currentVal, 4, '0');
-        fileCounts.put(type, ++currentVal);
+        return getPartFileName(contractNumber, fileCounts.get(type).getAndIncrement(), type);
+    }
+
+    /**
+     * Provide the file name (without path) of a numbered part
+     * @param contractNumber - the contract number
+     * @param partNumber - the number of the part, starting at 1
+     * @param type - the file output type
+     * @return the file name
+     */
+    static String getPartFileName(String contractNumber, int partNumber, FileOutputType type) {
+        var paddedPartitionNo = StringUtils.leftPad("" + partNumber, 4, '0');
         return contractNumber +
                 "_" +
                 paddedPartitionNo +
@@ -173,61 +679,96 @@ public class Aggregator {
      * @return - true if we have enough files or the worker is done writing out files
      */
     boolean okayToDoAggregation(FileOutputType type) {
-        long size = getSizeOfFiles(this.mainDirectory + File.separator + this.finishedDir, type);
-        return (size > ((long) this.multiplier * getMaxFileSize())) || isJobDoneStreamingData();
+        index.refresh();
+        return hasEnoughData(type);
+    }
+
+    private boolean hasEnoughData(FileOutputType type) {
+        return isFullEnough(type) || !getAgedOutFiles(index.getSortedFiles(getInputTypes(type))).isEmpty();
+    }
+
+    private boolean isFullEnough(FileOutputType type) {
+        long size = index.getSize(getInputTypes(type));
+        // Writers waiting on the disk budget won't write more until we've aggregated what's there
+        return (size > this.multiplier * getPlanningFileSize()) || isJobDoneStreamingData()
+                || DiskBudget.isDraining(mainDirectory);
     }
 
     /**
-     * We attempt to find the best combination of files to aggregate. This isn't a complicated
-     * algorithm. It sorts the files by size and grabs files from largest to smallest. If it gets
-     * to a file that will make it exceed the max size, it skips that file and goes to the next file
-     * and attempts to include that. It continues down the entire list.
-     *
-     * For example, if we * had a list with file sizes: 9, 5, 3, 2 and we had a max size of 13,
-     * we'd first grab 9, but 5 would put us over the top so we skip it, we'd keep 3 because that
-     * wouldn't be more than * 13, but the next value 2 puts us over the top. There are probably
-     * better algorithms but this gets the job done in a reasonably efficient manner.
+     * The files to seal a part from early, if the oldest file has waited longer than maxPendingMillis. These are the
+     * files that have waited longest, as many as fit in one part, and together they have to fill at least
+     * minSealPercent of a part. A file too big for a part on its own is always taken.
      *
-     * @param type type of file
-     * @return the list of "best" files to combine to optimize fullness of individual files
+     * @param files - the files waiting for a part, smallest first
+     * @return the files to plan the part from, smallest first, empty if no part should be sealed early
      */
-    List<File> getBestFiles(FileOutputType type) {
-        // Get all the files and their sizes in sorted order
-        List<FileReferenceHolder> sortedFiles = getSortedFileReferences(type);
-
-        // If there are no files, return an empty list
-        if (sortedFiles == null || sortedFiles.isEmpty()) {
+    private List<FileReferenceHolder> getAgedOutFiles(List<FileReferenceHolder> files) {
+        List<FileReferenceHolder> aged = new ArrayList<>();
+        if (maxPendingMillis <= 0 || files.isEmpty()) {
+            return aged;
+        }
+        List<FileReferenceHolder> oldestFirst = new ArrayList<>(files);
+        oldestFirst.sort(Comparator.comparingLong(FileReferenceHolder::getFinishedMillis));
+        if (System.currentTimeMillis() - oldestFirst.get(0).getFinishedMillis() < maxPendingMillis) {
+            return aged;
+        }
+        long partSize = getPlanningFileSize();
+        long size = 0;
+        for (FileReferenceHolder file : oldestFirst) {
+            if (!aged.isEmpty() && size + file.getSize() > partSize) {
+                break;
+            }
+            aged.add(file);
+            size += file.getSize();
+        }
+        if (size * 100 < partSize * minSealPercent) {
             return new ArrayList<>();
         }
+        aged.sort(Comparator.comparingLong(FileReferenceHolder::getSize));
+        return aged;
+    }
 
-        // If there is only one file, return it - we have no other choice
-        if (sortedFiles.size() == 1) {
-            return List.of(sortedFiles.get(0).getFile());
+    /**
+     * How long until a part could be sealed early because the oldest finished file has waited maxPendingMillis, so
+     * that an aggregator waiting for more data can wake up in time
+     *
+     * @return the milliseconds until then, Long.MAX_VALUE if parts aren't sealed early, nothing is waiting or the
+     *      oldest file has already waited that long and the part would be too empty
+     */
+    public long getMillisUntilSealing() {
+        if (maxPendingMillis <= 0) {
+            return Long.MAX_VALUE;
         }
-
-        // If the largest file is larger than the max file size, it's not great but should
-        // be returned
-        if (sortedFiles.get(sortedFiles.size() - 1).getSize() > getMaxFileSize()) {
-            return List.of(sortedFiles.get(sortedFiles.size() - 1).getFile());
+        long oldest = index.getOldestFinishedMillis(FileOutputType.DATA, FileOutputType.DATA_COMPRESSED,
+                FileOutputType.ERROR, FileOutputType.ERROR_COMPRESSED);
+        long waited = System.currentTimeMillis() - oldest;
+        if (oldest == 0 || waited >= maxPendingMillis) {
+            return Long.MAX_VALUE;
         }
+        return maxPendingMillis - waited;
+    }
 
-        List<FileReferenceHolder> bestFiles = new ArrayList<>();
-        long totalFileSize = 0L;
-
-        // Add the large files first - iterate backwards until we're over the top on the next item
-        // Remove items as we go. Find the first next biggest files that will add up to the max file size
-        ListIterator<FileReferenceHolder> bigIter = sortedFiles.listIterator(sortedFiles.size());
-        while (bigIter.hasPrevious()) {
-            FileReferenceHolder fd = bigIter.previous();
-            if (totalFileSize + fd.getSize() > getMaxFileSize()) {
-                continue;
-            }
-            totalFileSize += fd.getSize();
-            bestFiles.add(fd);
-            bigIter.remove();
-        }
+    /**
+     * Find the best combination of files to aggregate into the next output file. What "best" means is up to the
+     * packing strategy, by default the GreedyPackingStrategy.
+     *
+     * @param type type of file
+     * @return the list of "best" files to combine to optimize fullness of individual files
+     */
+    List<File> getBestFiles(FileOutputType type) {
+        index.refresh();
+        List<PlannedPart> parts = planParts(type);
+        return parts.isEmpty() ? new ArrayList<>() : parts.get(0).getFiles();
+    }
 
-        return bestFiles.stream().map(FileReferenceHolder::getFile).collect(Collectors.toList());
+    /**
+     * Plan output parts from the files currently in the index using the packing strategy
+     *
+     * @param type type of file
+     * @return the planned parts, the one to write next first
+     */
+    List<PlannedPart> planParts(FileOutputType type) {
+        return packingStrategy.plan(index.getSortedFiles(getInputTypes(type)), getPlanningFileSize());
     }
 
     /**
@@ -248,41 +789,94 @@ public class Aggregator {
      * file size without having to check with the file system each time
      *
      * @param type - type of file
-     * @return the list of file descriptors with the relevant extensions
+     * @return the list of file descriptors with the relevant extensions ordered by file size
      */
     List<FileReferenceHolder> getSortedFileReferences(FileOutputType type) {
-        List<File> availableFiles = listFiles(this.mainDirectory + File.separator + this.finishedDir, type);
-
-        List<FileReferenceHolder> files = new ArrayList<>();
-        availableFiles.forEach(f -> {
-            long size;
-            try {
-                size = getSizeOfFileOrDirectory(f.getAbsolutePath());
-            } catch (IOException e) {
-                size = 0L;
-            }
-            files.add(new FileReferenceHolder(f, size));
-        });
-
-        // Order the files by file size
-        return orderBySize(files);
+        index.refresh();
+        return index.getSortedFiles(type);
     }
 
     /**
-     * Returns true if the job has finished streaming data. You know this because the streaming directory
-     * no longer exists
+     * Returns true if the job has finished streaming data, as told by the job's coordinator. By default you know
+     * this because the streaming directory no longer exists
      *
      * @return if the job is done writing data
      */
     public boolean isJobDoneStreamingData() {
-        String streamingDir = this.mainDirectory + File.separator + this.streamDir;
-        boolean fileExists = dirExists(streamingDir);
-        // Job is done if dir doesn't exist
-        return !fileExists;
+        boolean done = coordinator.isStreamingDone();
+        if (done && streamEndedMillis == 0) {
+            streamEndedMillis = System.currentTimeMillis();
+        }
+        return done;
     }
 
-    private boolean dirExists(String dir) {
-        return Files.exists(Path.of(dir));
+    /**
+     * Take a snapshot of how the aggregation is going. This only looks at the streaming directory, everything
+     * else is already in memory, so it is cheap enough to poll
+     *
+     * @return the stats as of now
+     */
+    public AggregatorStats getStats() {
+        boolean doneStreaming = isJobDoneStreamingData();
+        long combining = combiningNanos.get();
+        long combined = bytesCombined.get();
+        long streamEnded = streamEndedMillis;
+        long aggregated = aggregatedMillis;
+        long streamEndToAggregated = -1;
+        if (streamEnded != 0) {
+            streamEndToAggregated = (aggregated != 0 ? aggregated : System.currentTimeMillis()) - streamEnded;
+        }
+        DiskBudget budget = DiskBudget.forJob(mainDirectory);
+        long oldestPending = index.getOldestFinishedMillis(FileOutputType.DATA, FileOutputType.DATA_COMPRESSED,
+                FileOutputType.ERROR, FileOutputType.ERROR_COMPRESSED);
+        return AggregatorStats.builder()
+                .jobId(jobId)
+                .bytesPendingFinished(index.getSize(FileOutputType.DATA, FileOutputType.DATA_COMPRESSED,
+                        FileOutputType.ERROR, FileOutputType.ERROR_COMPRESSED))
+                .bytesPendingStreaming(doneStreaming ? 0 : getStreamingSize())
+                .partsWritten(packingReport.getParts())
+                .bytesCombined(combined)
+                .bytesCombinedPerSecond(combining == 0 ? 0 : combined * 1e9 / combining)
+                .duplicatesDropped(seenEobIds == null ? 0 : seenEobIds.getDuplicates())
+                .fillRatio(packingReport.getFillRatio())
+                .partsSealedForAge(partsSealedForAge.get())
+                .oldestPendingMillis(oldestPending == 0 ? 0 : System.currentTimeMillis() - oldestPending)
+                .waitingMillis(TimeUnit.NANOSECONDS.toMillis(waitingNanos.get()))
+                .combiningMillis(TimeUnit.NANOSECONDS.toMillis(combining))
+                .doneStreaming(doneStreaming)
+                .aggregated(aggregated != 0)
+                .streamEndToAggregatedMillis(streamEndToAggregated)
+                .budgetUsedBytes(budget == null ? 0 : budget.getUsedBytes())
+                .writersBlockedMillis(budget == null ? 0 : budget.getBlockedMillis())
+                .build();
+    }
+
+    /**
+     * Count time spent waiting for more data between aggregation passes
+     *
+     * @param nanos - how long we waited
+     */
+    void waited(long nanos) {
+        waitingNanos.addAndGet(nanos);
+    }
+
+    /**
+     * Note that the job has been completely aggregated
+     */
+    void jobAggregated() {
+        aggregatedMillis = System.currentTimeMillis();
+    }
+
+    private long getStreamingSize() {
+        AtomicLong size = new AtomicLong();
+        try {
+            JobDirLayout.forJob(mainDirectory).forEachFile(new File(mainDirectory, streamDir),
+                    file -> size.addAndGet(file.toFile().length()));
+            return size.get();
+        } catch (IOException | UncheckedIOException ex) {
+            // The worker finished while we were looking
+            return 0;
+        }
     }
 
     /**
@@ -292,15 +886,26 @@ public class Aggregator {
      * This will always be false if the worker is not done streaming
      */
     public boolean isJobAggregated() {
-        // If job isn't done, we can't be done aggregating
-        if (dirExists(this.mainDirectory + File.separator + this.streamDir)) {
-            return false;
-        }
-        // Look for the files in the done writing directory
-        return !dirExists(this.mainDirectory + File.separator + this.finishedDir);
+        return coordinator.isAggregationDone();
     }
 
     public int getMaxFileSize() {
         return this.maxMegaBytes * ONE_MEGA_BYTE;
     }
+
+    /**
+     * The amount of finished data that goes into a part. This is the max file size unless we're limiting the
+     * compressed size of parts, in which case it is scaled up by the compression ratio of the parts written so far.
+     * Until a compressed part has been written we have nothing to go on and assume no compression.
+     *
+     * @return the most bytes of finished files to put in a part
+     */
+    public long getPlanningFileSize() {
+        long before = bytesBeforeCompression.get();
+        long after = bytesAfterCompression.get();
+        if (!compressed || sizeBasis != SizeBasis.COMPRESSED || before == 0 || after == 0) {
+            return getMaxFileSize();
+        }
+        return (long) (getMaxFileSize() * ((double) before / after));
+    }
 }
@@ -1,11 +1,16 @@
 package gov.cms.ab2d.aggregator;
 
+import lombok.AccessLevel;
 import lombok.Getter;
+import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 
-import java.io.File;
 import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import static gov.cms.ab2d.aggregator.Aggregator.AggregatorResult.PERFORMED;
 import static gov.cms.ab2d.aggregator.FileOutputType.DATA;
@@ -18,6 +23,21 @@ import static gov.cms.ab2d.aggregator.FileOutputType.ERROR;
 @Getter
 @Slf4j
 public class AggregatorCallable implements Callable<Integer> {
+
+    /**
+     * How the callable finds out there may be more work to do
+     */
+    public enum TriggerMode {
+        /** Check the file system every waitMillis */
+        POLLING,
+        /** Woken up directly by ClaimsStream and JobHelper running in the same JVM */
+        IN_PROCESS,
+        /** Woken up by file system events on the job directories, for workers running in another JVM */
+        WATCH_SERVICE
+    }
+
+    public static final long DEFAULT_WAIT_MILLIS = 1000;
+
     private final String jobId;
     private final String contractId;
     private final String baseDir;
@@ -26,6 +46,92 @@ public class AggregatorCallable implements Callable<Integer> {
     private final int maxMegaBytes;
     private final int multiplier;
 
+    @Setter
+    private TriggerMode triggerMode = TriggerMode.POLLING;
+
+    // In the event driven modes this is only a safety net in case an event is missed
+    @Setter
+    private long waitMillis = DEFAULT_WAIT_MILLIS;
+
+    @Setter
+    private PackingStrategy packingStrategy = new GreedyPackingStrategy();
+
+    // How many parts to combine at the same time. With more than one, data and error parts are also combined together
+    @Setter
+    private int parallelism = 1;
+
+    // Write gzip compressed parts
+    @Setter
+    private boolean compressed;
+
+    @Setter
+    private Aggregator.SizeBasis sizeBasis = Aggregator.SizeBasis.UNCOMPRESSED;
+
+    // How many threads compress the blocks of each compressed part
+    @Setter
+    private int compressionThreads = 1;
+
+    // Checksum and count the records of each plain part as it is written
+    @Setter
+    private boolean summarizeParts;
+
+    // The summary of each part written, by file name, once the job has been aggregated
+    private Map<String, CombineResult> partSummaries = Map.of();
+
+    // Leave EOBs already written (by retried BFD requests or re-queued batches) out of the data parts
+    @Setter
+    private boolean deduplicateEobs;
+
+    // About how many EOBs the job has, so the de-duplication table doesn't have to grow
+    @Setter
+    private int expectedEobs = EobIdSet.DEFAULT_EXPECTED_IDS;
+
+    // Split finished files too big for a part at record boundaries so that no part is oversized
+    @Setter
+    private boolean splitOversizeFiles = true;
+
+    // Write a PartIndex sidecar for each plain part, sampling every indexInterval'th record. 0 for no index
+    @Setter
+    private int indexInterval;
+
+    // Also index where each patient's records start in the parts
+    @Setter
+    private boolean indexPatients;
+
+    // Seal a part once its oldest data has waited this long, even with less than multiplier parts' worth waiting.
+    // 0 to always wait. The aggregator wakes up in time for it whatever waitMillis is
+    @Setter
+    private long maxPendingMillis;
+
+    // How full, as a percentage of a part, a part sealed early has to be
+    @Setter
+    private int minSealPercent = Aggregator.DEFAULT_MIN_SEAL_PERCENT;
+
+    // How the worker and the aggregator tell each other they are done, null for the directories
+    @Setter
+    private JobCoordinator coordinator;
+
+    // Where to write the parts, null for the job directory
+    @Setter
+    private AggregatedPartSink partSink;
+
+    // Limits how much data the workers can stream out ahead of the aggregator, null for no limit
+    @Setter
+    private DiskBudget diskBudget;
+
+    // Share the job with aggregators on other nodes, see AggregationLease. Null if this is the job's only aggregator.
+    // The callable closes the lease once the job is aggregated
+    @Setter
+    private AggregationLease lease;
+
+    // Keep an aggregation journal in the job directory so that a restarted callable carries on where this one left off
+    @Setter
+    private boolean journaled;
+
+    // The aggregator of the current (or last) run, for the stats
+    @Getter(AccessLevel.NONE)
+    private volatile Aggregator aggregator;
+
     public AggregatorCallable(String baseDir, String jobId, String contractId, int maxMegaBytes, String streamDir,
                               String finishedDir, int multiplier) {
         this.jobId = jobId;
@@ -39,42 +145,274 @@ public class AggregatorCallable implements Callable<Integer> {
 
     @Override
     public Integer call() throws Exception {
-        int numAggregations = 0;
-        // Create a new aggregator for the job
-        Aggregator aggregator = new Aggregator(jobId, contractId, baseDir, maxMegaBytes, streamDir, finishedDir, multiplier);
-        // While the worker isn't done with streaming files
-        while (!aggregator.isJobDoneStreamingData()) {
-            // aggregate data files
+        try (Run run = start()) {
+            while (!run.pass()) {
+                // Wait until there is something new or it's time to check again. If nothing woke us up, have
+                // the index double check the finished directory in case we missed something
+                if (!run.getTrigger().await(run.getWaitMillis())) {
+                    run.getAggregator().getIndex().markStale();
+                }
+            }
+            return run.getNumAggregations();
+        }
+    }
+
+    /**
+     * Set up everything needed to aggregate the job, picking up where an earlier run left off if journaled. The
+     * callable drives the run from its own thread, the AggregationScheduler drives it from a shared pool.
+     *
+     * @return the run, which must be closed when it is done
+     * @throws IOException if the journal can't be resumed or the job's directories can't be watched
+     */
+    Run start() throws IOException {
+        return new Run();
+    }
+
+    /**
+     * Take a snapshot of how the job's aggregation is going. Safe to call from any thread at any time
+     *
+     * @return the stats, all zero if aggregation hasn't started
+     */
+    public AggregatorStats getStats() {
+        Aggregator current = aggregator;
+        if (current == null) {
+            return AggregatorStats.builder().jobId(jobId).streamEndToAggregatedMillis(-1).build();
+        }
+        return current.getStats();
+    }
+
+    /**
+     * One aggregation of a job from start to finish, one pass at a time
+     */
+    final class Run implements AutoCloseable {
+        private final Aggregator aggregator;
+        private final ExecutorService executor;
+        private final ExecutorService compressionExecutor;
+        private final AggregationJournal journal;
+        private final AggregationTrigger trigger;
+        private int numAggregations;
+        private boolean passed;
+        private long lastPassEnded;
+
+        private Run() throws IOException {
+            if (lease != null && journaled) {
+                throw new IllegalStateException("A job shared with other nodes is recovered through its leases, not a journal");
+            }
+            // Create a new aggregator for the job
+            aggregator = new Aggregator(jobId, contractId, baseDir, maxMegaBytes, streamDir, finishedDir, multiplier);
+            AggregatorCallable.this.aggregator = aggregator;
+            aggregator.setPackingStrategy(packingStrategy);
+            aggregator.setCompressed(compressed);
+            aggregator.setSizeBasis(sizeBasis);
+            aggregator.setSummarizeParts(summarizeParts);
+            aggregator.setSplitOversizeFiles(splitOversizeFiles);
+            aggregator.setIndexInterval(indexInterval);
+            aggregator.setIndexPatients(indexPatients);
+            aggregator.setMaxPendingMillis(maxPendingMillis);
+            aggregator.setMinSealPercent(minSealPercent);
+            if (partSink != null) {
+                aggregator.setPartSink(partSink);
+            }
+            if (coordinator != null) {
+                aggregator.setCoordinator(coordinator);
+            }
+            aggregator.setLease(lease);
+            if (deduplicateEobs) {
+                aggregator.setSeenEobIds(new EobIdSet(expectedEobs));
+            }
+            executor = parallelism > 1 ? Executors.newFixedThreadPool(parallelism) : null;
+            compressionExecutor = compressed && compressionThreads > 1
+                    ? Executors.newFixedThreadPool(compressionThreads) : null;
+            aggregator.setCompressionExecutor(compressionExecutor);
+            AggregationJournal openedJournal = null;
+            AggregationTrigger createdTrigger = null;
             try {
-                while (aggregator.aggregate(DATA) == PERFORMED) {
-                    numAggregations++;
+                if (journaled) {
+                    openedJournal = new AggregationJournal(Path.of(aggregator.getMainDirectory(), AggregationJournal.FILE_NAME));
+                    numAggregations += aggregator.resume(openedJournal);
                 }
-                // aggregate error files
-                while (aggregator.aggregate(ERROR) == PERFORMED) {
-                    numAggregations++;
+                createdTrigger = createTrigger(aggregator);
+            } catch (IOException | RuntimeException ex) {
+                if (openedJournal != null) {
+                    openedJournal.close();
                 }
-            } catch (IOException io) {
-                log.error("There was an error while trying to aggregate files", io);
+                shutdownExecutors();
+                throw ex;
+            }
+            journal = openedJournal;
+            trigger = createdTrigger;
+            if (diskBudget != null) {
+                // Anything left by an earlier run counts against the budget too
+                aggregator.getIndex().refresh();
+                diskBudget.register(aggregator.getMainDirectory(), aggregator.getIndex().getSize(DATA,
+                        FileOutputType.DATA_COMPRESSED, ERROR, FileOutputType.ERROR_COMPRESSED));
             }
-            // Sleep a little between checks
-            Thread.sleep(1000);
         }
-        // aggregate the final data files
-        try {
-            while (aggregator.aggregate(DATA) == PERFORMED) {
-                numAggregations++;
+
+        /**
+         * Aggregate what is ready while the worker streams data. Once it is done, aggregate whatever is left and
+         * finish the job
+         *
+         * @return true if the job is completely aggregated
+         * @throws IOException if the final aggregation can't be recorded in the journal
+         * @throws InterruptedException if interrupted while waiting on parallel aggregations
+         */
+        boolean pass() throws IOException, InterruptedException {
+            // Everything between the end of the last pass and the start of this one was spent waiting
+            if (passed) {
+                aggregator.waited(System.nanoTime() - lastPassEnded);
             }
-            // aggregate the final error files
-            while (aggregator.aggregate(ERROR) == PERFORMED) {
-                numAggregations++;
+            try {
+                return aggregatePass();
+            } finally {
+                passed = true;
+                lastPassEnded = System.nanoTime();
+            }
+        }
+
+        private boolean aggregatePass() throws IOException, InterruptedException {
+            if (lease != null && lease.recoverExpired() > 0) {
+                // A node died and its files are back in the finished directory
+                aggregator.getIndex().markStale();
+            }
+            // While the worker isn't done with streaming files
+            if (!aggregator.isJobDoneStreamingData()) {
+                try {
+                    numAggregations += aggregateAll(aggregator, executor);
+                } catch (IOException io) {
+                    log.error("There was an error while trying to aggregate files", io);
+                }
+                return false;
+            }
+            // Look at the finished directory one last time so that nothing still in flight is left behind
+            aggregator.getIndex().markStale();
+
+            // aggregate the final data and error files
+            try {
+                numAggregations += aggregateAll(aggregator, executor);
+            } catch (IOException ex) {
+                log.error("There was an error aggregating the final files of the job", ex);
+            }
+            if (lease != null && !isDrained()) {
+                // Other nodes are still writing parts, or gave files back that we have to aggregate
+                return false;
+            }
+
+            // We've taken all the files that the worker has given us, "finish" the job so that
+            // the worker knows we're done. The summaries have to be ready before the worker can see that
+            aggregator.jobAggregated();
+            partSummaries = Map.copyOf(aggregator.getPartSummaries());
+            if (lease != null) {
+                lease.jobAggregated();
+            }
+            aggregator.getCoordinator().aggregationDone();
+            if (journal != null) {
+                // Everything is aggregated, there is nothing left to resume
+                journal.delete();
             }
-        } catch (IOException ex) {
-            log.error("There was an error aggregating the final files of the job", ex);
+            log.info("Aggregated job {} - {}", jobId, aggregator.getPackingReport());
+            return true;
+        }
+
+        /**
+         * @return true if no node has finished files claimed and the finished directory is empty
+         */
+        private boolean isDrained() throws IOException {
+            FinishedFileIndex index = aggregator.getIndex();
+            index.markStale();
+            index.refresh();
+            return lease.isDrained() && index.getSize(DATA, FileOutputType.DATA_COMPRESSED, ERROR,
+                    FileOutputType.ERROR_COMPRESSED) == 0;
+        }
+
+        Aggregator getAggregator() {
+            return aggregator;
         }
 
-        // We've taken all the files that the worker has given us, "finish" the job so that
-        // the worker knows we're done
-        JobHelper.aggregatorFinishJob(this.baseDir + File.separator + this.jobId + File.separator + this.finishedDir);
+        /**
+         * @return how long to wait before the next pass if nothing wakes us up, waitMillis unless a part is due to
+         *      be sealed early before then
+         */
+        long getWaitMillis() {
+            return Math.min(waitMillis, aggregator.getMillisUntilSealing());
+        }
+
+        AggregationTrigger getTrigger() {
+            return trigger;
+        }
+
+        int getNumAggregations() {
+            return numAggregations;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                if (diskBudget != null) {
+                    diskBudget.unregister(aggregator.getMainDirectory());
+                }
+                trigger.close();
+                if (journal != null) {
+                    journal.close();
+                }
+                if (lease != null) {
+                    lease.close();
+                }
+            } finally {
+                shutdownExecutors();
+            }
+        }
+
+        private void shutdownExecutors() {
+            if (executor != null) {
+                executor.shutdown();
+            }
+            if (compressionExecutor != null) {
+                compressionExecutor.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Aggregate data files and then error files until there is nothing left that is okay to aggregate. If there is
+     * an executor, data and error parts are combined in parallel on it instead
+     *
+     * @param aggregator - the aggregator for the job
+     * @param executor - where to combine parts in parallel, null to combine them one at a time
+     * @return the number of aggregations performed
+     * @throws IOException if one of the aggregations fails
+     * @throws InterruptedException if interrupted while waiting on parallel aggregations
+     */
+    private int aggregateAll(Aggregator aggregator, ExecutorService executor) throws IOException, InterruptedException {
+        int numAggregations = 0;
+        if (executor != null) {
+            int performed = aggregator.aggregateParts(executor, parallelism, DATA, ERROR);
+            while (performed > 0) {
+                numAggregations += performed;
+                performed = aggregator.aggregateParts(executor, parallelism, DATA, ERROR);
+            }
+            return numAggregations;
+        }
+        while (aggregator.aggregate(DATA) == PERFORMED) {
+            numAggregations++;
+        }
+        while (aggregator.aggregate(ERROR) == PERFORMED) {
+            numAggregations++;
+        }
         return numAggregations;
     }
+
+    AggregationTrigger createTrigger(Aggregator aggregator) throws IOException {
+        switch (triggerMode) {
+            case IN_PROCESS:
+                JobSignal signal = JobSignal.register(aggregator.getMainDirectory());
+                signal.attach(aggregator.getIndex());
+                return signal;
+            case WATCH_SERVICE:
+                Path jobDir = Path.of(aggregator.getMainDirectory());
+                return new DirectoryWatchTrigger(jobDir, jobDir.resolve(finishedDir), aggregator.getIndex());
+            default:
+                return AggregationTrigger.polling();
+        }
+    }
 }
@@ -0,0 +1,64 @@
+package gov.cms.ab2d.aggregator;
+
+import lombok.Builder;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * A point in time snapshot of how an aggregator is doing, cheap enough to poll while the job runs. These are the
+ * numbers to look at when sizing maxMegaBytes and the multiplier for an environment: lots of time waiting with
+ * little pending means the parts could be bigger or aggregation could start sooner, a long tail between the end of
+ * streaming and the end of aggregation means too much is left for the final pass.
+ */
+@Getter
+@Builder
+@ToString
+public class AggregatorStats {
+    private final String jobId;
+
+    // Bytes streamed out by the worker and waiting in the finished directory, as of the last look at it
+    private final long bytesPendingFinished;
+
+    // Bytes in files the worker is still streaming
+    private final long bytesPendingStreaming;
+
+    private final long partsWritten;
+
+    // Bytes of finished files combined into parts
+    private final long bytesCombined;
+
+    // How fast data was combined while combining, not counting the time spent waiting
+    private final double bytesCombinedPerSecond;
+
+    // Duplicate EOBs left out of the parts, 0 unless de-duplicating
+    private final long duplicatesDropped;
+
+    // The average fill ratio of the parts written, see PackingReport
+    private final double fillRatio;
+
+    // Parts sealed before multiplier parts' worth of data was waiting, because the oldest data had waited too long
+    private final long partsSealedForAge;
+
+    // How long the oldest finished file has been waiting for a part, 0 if none is
+    private final long oldestPendingMillis;
+
+    // Time spent between aggregation passes waiting for more data
+    private final long waitingMillis;
+
+    // Time spent combining files into parts. Parts combined in parallel each count
+    private final long combiningMillis;
+
+    private final boolean doneStreaming;
+
+    private final boolean aggregated;
+
+    // Time from when the aggregator saw the worker was done streaming until it finished the job, or until now if it
+    // hasn't finished yet. -1 if the worker is still streaming
+    private final long streamEndToAggregatedMillis;
+
+    // Bytes counted against the job's DiskBudget, by every job sharing it, 0 if there's no budget
+    private final long budgetUsedBytes;
+
+    // Time writers using the job's DiskBudget have spent blocked waiting for aggregation to catch up
+    private final long writersBlockedMillis;
+}
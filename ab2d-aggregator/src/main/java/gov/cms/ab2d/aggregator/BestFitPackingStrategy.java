@@ -0,0 +1,60 @@
+package gov.cms.ab2d.aggregator;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Best fit decreasing bin packing. Plans every part at once from all the available files. Files are placed
+ * largest first, each into the open part with the least room left that can still hold it, and a new part is
+ * only started if none can. Files at or above the max size get a part to themselves.
+ *
+ * The plan is returned fullest part first so while the job is still streaming, the aggregator writes the full
+ * parts and leaves the partly filled ones to be topped up by files that haven't finished yet.
+ */
+public class BestFitPackingStrategy implements PackingStrategy {
+
+    @Override
+    public List<PlannedPart> plan(List<FileReferenceHolder> sortedFiles, long maxFileSize) {
+        List<PlannedPart> parts = new ArrayList<>();
+        if (sortedFiles == null || sortedFiles.isEmpty()) {
+            return parts;
+        }
+
+        // Open parts keyed by how much room they have left
+        TreeMap<Long, Deque<PlannedPart>> openParts = new TreeMap<>();
+
+        for (int i = sortedFiles.size() - 1; i >= 0; i--) {
+            FileReferenceHolder file = sortedFiles.get(i);
+            if (file.getSize() >= maxFileSize) {
+                parts.add(new PlannedPart(List.of(file)));
+                continue;
+            }
+
+            PlannedPart part;
+            Map.Entry<Long, Deque<PlannedPart>> bestFit = openParts.ceilingEntry(file.getSize());
+            if (bestFit == null) {
+                part = new PlannedPart();
+                parts.add(part);
+            } else {
+                part = bestFit.getValue().pop();
+                if (bestFit.getValue().isEmpty()) {
+                    openParts.remove(bestFit.getKey());
+                }
+            }
+            part.add(file);
+
+            long room = maxFileSize - part.getSize();
+            if (room > 0) {
+                openParts.computeIfAbsent(room, r -> new ArrayDeque<>()).push(part);
+            }
+        }
+
+        parts.sort(Comparator.comparingLong(PlannedPart::getSize).reversed());
+        return parts;
+    }
+}
@@ -1,12 +1,29 @@
 package gov.cms.ab2d.aggregator;
 
+import ca.uhn.fhir.parser.IParser;
+import gov.cms.ab2d.fhir.FhirVersion;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 
+import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.nio.file.StandardOpenOption.WRITE;
+
 /**
  * This manages all the creating and streaming of beneficiary data. To use this, you create a try
  * with resources with the ClaimsStream. For example:
@@ -20,39 +37,157 @@ import java.nio.file.Path;
  * This does all the work of creating a temporary file in the correct location to stream, allowing
  * streams to be written to and when the file is closed, it moves it to the "finished" directory, waiting
  * for the aggregator to pick it up
+ *
+ * If the stream is compressed (created with a compressed type like DATA_COMPRESSED or with compressed set to true),
+ * the data is gzipped as it is written to a .ndjson.gz file. The aggregator can then combine the files by
+ * concatenating them without compressing the data again.
+ *
+ * The writeRecord methods write one NDJSON record at a time and add the new line for you. Characters and FHIR
+ * resources are encoded straight into the stream's buffer instead of being turned into a String or byte array
+ * first, for example:
+ *
+ *     stream.writeRecord(eob, FhirVersion.R4);
+ *
+ * If the job has a DiskBudget and too much data is waiting to be aggregated, creating a stream blocks until the
+ * aggregator has caught up.
+ *
+ * When many threads open streams for the same job, get them from a ClaimsStreamFactory instead, which names the
+ * files with a sequence number and reuses pooled buffers.
+ *
+ * If the job has a StreamCoalescer, the stream keeps its data in memory and only creates its streaming file once
+ * it has written more than the coalescer's smallStreamBytes. A stream closed before then is handed to the
+ * coalescer instead of being moved to the finished directory, and has no file.
  */
 public class ClaimsStream implements AutoCloseable {
     private static final String FILE_PREFIX = "tmp_";
-    private final BufferedOutputStream bout;
-    private final File tmpFile;
-    private final File completeFile;
+    private static final byte NEW_LINE = '\n';
+    private final OutputStream bout;
+    private File tmpFile;
+    private File completeFile;
     private final FileOutputType type;
     private final String jobDir;
     private boolean open;
-    private final FileOutputStream stream;
+    private FileOutputStream stream;
+    private final GzipMemberOutputStream gzipStream;
     private final String streamingDir;
+    private final File finishedDirectory;
+    private final JobDirLayout layout;
+    // The factory that made the stream, null if it was made directly
+    private final ClaimsStreamFactory factory;
+    // Where the data is held until it is too big to coalesce, null if the job has no StreamCoalescer
+    private final StreamCoalescer coalescer;
+    private final StagedOutputStream staged;
+    private long bytesWritten;
+    private final Utf8StreamWriter recordWriter;
+    private FhirVersion parserVersion;
+    private IParser parser;
 
     public ClaimsStream(String jobId, String baseDir, FileOutputType type, String streamingDir, String finishedDir) throws IOException {
         this(jobId, baseDir, type, streamingDir, finishedDir, 0);
     }
 
     public ClaimsStream(String jobId, String baseDir, FileOutputType type, String streamingDir, String finishedDir, int bufferSize) throws IOException {
-        this.type = type;
+        this(jobId, baseDir, type, streamingDir, finishedDir, bufferSize, type.isCompressed());
+    }
+
+    public ClaimsStream(String jobId, String baseDir, FileOutputType type, String streamingDir, String finishedDir, int bufferSize,
+                        boolean compressed) throws IOException {
+        this.type = compressed ? type.getCompressedType() : type;
         this.open = true;
         this.jobDir = Path.of(baseDir, jobId).toFile().getAbsolutePath();
         this.streamingDir = streamingDir;
+        this.factory = null;
+        acquireDiskBudget(jobId);
         JobHelper.workerSetUpJobDirectories(jobId, baseDir, streamingDir, finishedDir);
-        this.tmpFile = createNewFile();
-        this.stream = new FileOutputStream(tmpFile);
+        this.layout = JobDirLayout.forJob(jobDir);
+        this.finishedDirectory = new File(jobDir + File.separator + finishedDir).getAbsoluteFile();
+        this.coalescer = StreamCoalescer.forJob(jobDir);
+        this.staged = coalescer != null ? new StagedOutputStream(coalescer.getSmallStreamBytes()) : null;
+        OutputStream file = staged != null ? staged : openFile();
+        this.gzipStream = compressed ? new GzipMemberOutputStream(file) : null;
+        OutputStream target = compressed ? gzipStream : file;
         if (bufferSize > 0) {
-            this.bout = new BufferedOutputStream(stream, bufferSize);
+            this.bout = new BufferedOutputStream(target, bufferSize);
         } else {
             // Use the default buffer size
-            this.bout = new BufferedOutputStream(stream);
+            this.bout = new BufferedOutputStream(target);
+        }
+        this.recordWriter = new Utf8StreamWriter(bout);
+    }
+
+    /**
+     * Open a stream for a factory. The file is written through a FileChannel and a buffer from the factory's pool
+     */
+    ClaimsStream(ClaimsStreamFactory factory, FileOutputType type, boolean compressed) throws IOException {
+        this.type = compressed ? type.getCompressedType() : type;
+        this.open = true;
+        this.jobDir = factory.getJobDir();
+        this.streamingDir = factory.getStreamingDir();
+        this.layout = factory.getLayout();
+        this.factory = factory;
+        this.finishedDirectory = Path.of(jobDir, factory.getFinishedDir()).toFile();
+        acquireDiskBudget(factory.getJobId());
+        this.coalescer = StreamCoalescer.forJob(jobDir);
+        this.staged = coalescer != null ? new StagedOutputStream(coalescer.getSmallStreamBytes()) : null;
+        if (compressed) {
+            this.gzipStream = new GzipMemberOutputStream(staged != null ? staged : Channels.newOutputStream(openChannel()));
+            this.bout = new PooledChannelOutputStream(Channels.newChannel(gzipStream), factory.getBufferPool());
+        } else {
+            this.gzipStream = null;
+            WritableByteChannel channel = staged != null ? Channels.newChannel(staged) : openChannel();
+            this.bout = new PooledChannelOutputStream(channel, factory.getBufferPool());
+        }
+        this.recordWriter = new Utf8StreamWriter(bout);
+    }
+
+    /**
+     * Create the streaming file, named by the factory if there is one
+     *
+     * @return the stream to write the file with
+     * @throws IOException if the file can't be created
+     */
+    private OutputStream openFile() throws IOException {
+        if (factory != null) {
+            return Channels.newOutputStream(openChannel());
+        }
+        this.tmpFile = createNewFile();
+        this.completeFile = layout.locate(finishedDirectory, tmpFile.getName());
+        this.stream = new FileOutputStream(tmpFile);
+        return stream;
+    }
+
+    /**
+     * Create the streaming file with the next name from the factory
+     *
+     * @return the file's channel
+     * @throws IOException if the file can't be created
+     */
+    private FileChannel openChannel() throws IOException {
+        File file = factory.nextFile(this.type);
+        FileChannel channel = null;
+        while (channel == null) {
+            try {
+                channel = FileChannel.open(file.toPath(), CREATE_NEW, WRITE);
+            } catch (FileAlreadyExistsException ex) {
+                // Only if a file from another run of the job has the same name, try the next one
+                file = factory.nextFile(this.type);
+            } catch (NoSuchFileException ex) {
+                // The shard isn't there yet
+                Files.createDirectories(file.getParentFile().toPath());
+            }
+        }
+        this.tmpFile = file;
+        this.completeFile = layout.locate(finishedDirectory, file.getName());
+        return channel;
+    }
+
+    private void acquireDiskBudget(String jobId) throws IOException {
+        try {
+            DiskBudget.acquire(jobDir);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the aggregator to catch up with job " + jobId);
         }
-        File directory = new File(jobDir + File.separator + finishedDir);
-        String file = tmpFile.getName();
-        this.completeFile = Path.of(directory.getAbsolutePath(), file).toFile();
     }
 
     @Override
@@ -63,9 +198,20 @@ public class ClaimsStream implements AutoCloseable {
             stream.close();
         }
         this.open = false;
+        if (staged != null && !staged.isSpilled()) {
+            // Never written to disk, empty streams are dropped
+            if (getBytesWritten() > 0) {
+                coalescer.add(type, staged.getData(), getBytesWritten());
+            }
+            return;
+        }
         moveFileToDone();
     }
 
+    /**
+     * @return the streaming file while the stream is open and the finished file once it is closed. Null if the data
+     *      is held for the job's StreamCoalescer
+     */
     public File getFile() {
         if (this.open) {
             return tmpFile;
@@ -79,20 +225,183 @@ public class ClaimsStream implements AutoCloseable {
     }
 
     public boolean moveFileToDone() {
-        return tmpFile.renameTo(completeFile);
+        if (tmpFile == null) {
+            return false;
+        }
+        boolean moved = tmpFile.renameTo(completeFile);
+        if (!moved && layout.isSharded() && completeFile.getParentFile().mkdirs()) {
+            // The shard wasn't there yet
+            moved = tmpFile.renameTo(completeFile);
+        }
+        // Let the aggregator know about the file if it is running in this JVM
+        if (moved) {
+            // Parts are planned with the data's size, the budget is for the space it takes up
+            long diskSize = gzipStream != null ? gzipStream.getCompressedBytes() : getBytesWritten();
+            DiskBudget.fileFinished(jobDir, diskSize);
+            JobSignal.fileFinished(jobDir, completeFile, getBytesWritten(), diskSize);
+        }
+        return moved;
     }
 
     public void write(String eobNdJson) throws IOException {
-        bout.write(eobNdJson.getBytes(StandardCharsets.UTF_8));
+        byte[] bytes = eobNdJson.getBytes(StandardCharsets.UTF_8);
+        bout.write(bytes);
+        bytesWritten += bytes.length;
+    }
+
+    /**
+     * Write one NDJSON record, adding a new line unless the record already ends with one
+     *
+     * @param record - the UTF-8 encoded record
+     * @throws IOException if the record can't be written
+     */
+    public void writeRecord(byte[] record) throws IOException {
+        bout.write(record);
+        bytesWritten += record.length;
+        endRecord(record.length > 0 && record[record.length - 1] == NEW_LINE);
+    }
+
+    /**
+     * Write the remaining bytes of the buffer as one NDJSON record, adding a new line unless the record already
+     * ends with one. The buffer's position is moved to its limit
+     *
+     * @param record - the UTF-8 encoded record
+     * @throws IOException if the record can't be written
+     */
+    public void writeRecord(ByteBuffer record) throws IOException {
+        int length = record.remaining();
+        boolean endsWithNewLine = length > 0 && record.get(record.limit() - 1) == NEW_LINE;
+        if (record.hasArray()) {
+            bout.write(record.array(), record.arrayOffset() + record.position(), length);
+            record.position(record.limit());
+        } else {
+            byte[] chunk = new byte[Math.min(length, 8 * 1024)];
+            while (record.hasRemaining()) {
+                int size = Math.min(record.remaining(), chunk.length);
+                record.get(chunk, 0, size);
+                bout.write(chunk, 0, size);
+            }
+        }
+        bytesWritten += length;
+        endRecord(endsWithNewLine);
+    }
+
+    /**
+     * Encode one NDJSON record as UTF-8 straight into the stream, adding a new line unless the record already
+     * ends with one
+     *
+     * @param record - the record
+     * @throws IOException if the record can't be written
+     */
+    public void writeRecord(CharSequence record) throws IOException {
+        int length = record.length();
+        recordWriter.append(record);
+        recordWriter.endRecord();
+        endRecord(length > 0 && record.charAt(length - 1) == NEW_LINE);
+    }
+
+    /**
+     * Encode a FHIR resource as one NDJSON record straight into the stream, without creating a String of it first
+     *
+     * @param resource - the resource, usually an ExplanationOfBenefit
+     * @param version - the FHIR version of the resource
+     * @throws IOException if the resource can't be written
+     */
+    public void writeRecord(IBaseResource resource, FhirVersion version) throws IOException {
+        // Parsers are expensive to create, so keep the last one around
+        if (parser == null || parserVersion != version) {
+            parser = version.getJsonParser();
+            parserVersion = version;
+        }
+        parser.encodeResourceToWriter(resource, recordWriter);
+        recordWriter.endRecord();
+        endRecord(false);
+    }
+
+    /**
+     * @return the number of uncompressed bytes written to the stream so far
+     */
+    public long getBytesWritten() {
+        return bytesWritten + recordWriter.getBytesWritten();
     }
 
     public void flush() throws IOException {
         bout.flush();
     }
 
+    private void endRecord(boolean endsWithNewLine) throws IOException {
+        if (!endsWithNewLine) {
+            bout.write(NEW_LINE);
+            bytesWritten++;
+        }
+    }
+
     private File createNewFile() throws IOException {
         String suffix = type.getSuffix();
-        File directory = new File(this.jobDir + File.separator + this.streamingDir);
-        return File.createTempFile(FILE_PREFIX, suffix, directory);
+        File directory = layout.nextDirectory(new File(this.jobDir + File.separator + this.streamingDir));
+        try {
+            return File.createTempFile(FILE_PREFIX, suffix, directory);
+        } catch (IOException ex) {
+            if (!layout.isSharded() || !directory.mkdirs()) {
+                throw ex;
+            }
+            // The shard wasn't there yet
+            return File.createTempFile(FILE_PREFIX, suffix, directory);
+        }
+    }
+
+    /**
+     * Holds a stream's data in memory while it is small enough for the job's StreamCoalescer, and moves it to a
+     * streaming file of its own once it isn't
+     */
+    private final class StagedOutputStream extends OutputStream {
+        private final int limit;
+        private final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        private OutputStream file;
+
+        StagedOutputStream(int limit) {
+            this.limit = limit;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (file == null && data.size() + len > limit) {
+                file = openFile();
+                data.writeTo(file);
+                data.reset();
+            }
+            if (file != null) {
+                file.write(b, off, len);
+            } else {
+                data.write(b, off, len);
+            }
+        }
+
+        boolean isSpilled() {
+            return file != null;
+        }
+
+        ByteArrayOutputStream getData() {
+            return data;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (file != null) {
+                file.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (file != null) {
+                file.close();
+            }
+        }
     }
 }
@@ -0,0 +1,112 @@
+package gov.cms.ab2d.aggregator;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Makes the ClaimsStreams of a job when many worker threads each open a stream per batch of patients. Compared to
+ * creating the streams directly:
+ *
+ * - the job's directories are set up once, when the factory is created, and its JobDirLayout is read once
+ * - streaming files are named with a sequence number (tmp_{time}_{factory}_{sequence}.ndjson) instead of with
+ *   File.createTempFile, which makes up random names and retries if the name is taken
+ * - each stream writes to its FileChannel through a buffer borrowed from a StreamBufferPool, instead of
+ *   allocating a new BufferedOutputStream
+ *
+ * ClaimsStreamFactory factory = new ClaimsStreamFactory(jobId, efsMount, STREAMING, FINISHED);
+ * // on each worker thread
+ * try (ClaimsStream stream = factory.newStream(DATA)) {
+ *     stream.writeRecord(eob, FhirVersion.R4);
+ * }
+ *
+ * The streams work exactly like ones created directly, including waiting on the job's DiskBudget. A factory is
+ * safe to share between threads, the streams themselves are not.
+ */
+@Getter
+public class ClaimsStreamFactory {
+    // Tells apart the factories in this JVM, which only matters if a job has more than one
+    private static final AtomicInteger FACTORIES = new AtomicInteger();
+
+    private final String jobId;
+    private final String jobDir;
+    private final String streamingDir;
+    private final String finishedDir;
+    private final StreamBufferPool bufferPool;
+    private final JobDirLayout layout;
+
+    // The start of this factory's file names, unique to the JVM and the time it was created so that files left
+    // over from an earlier run of the job don't get in the way
+    private final String namePrefix;
+    @Getter(AccessLevel.NONE)
+    private final AtomicLong sequence = new AtomicLong();
+
+    public ClaimsStreamFactory(String jobId, String baseDir, String streamingDir, String finishedDir) throws IOException {
+        this(jobId, baseDir, streamingDir, finishedDir, new StreamBufferPool());
+    }
+
+    /**
+     * @param jobId - the job id
+     * @param baseDir - the directory the job directory is in
+     * @param streamingDir - the streaming directory, under the job directory
+     * @param finishedDir - the finished directory, under the job directory
+     * @param bufferPool - where the streams get their buffers, can be shared with other jobs
+     * @throws IOException if the job's directories can't be set up
+     */
+    public ClaimsStreamFactory(String jobId, String baseDir, String streamingDir, String finishedDir,
+                               StreamBufferPool bufferPool) throws IOException {
+        this.jobId = jobId;
+        this.jobDir = Path.of(baseDir, jobId).toFile().getAbsolutePath();
+        this.streamingDir = streamingDir;
+        this.finishedDir = finishedDir;
+        this.bufferPool = bufferPool;
+        this.namePrefix = "tmp_" + Long.toString(System.currentTimeMillis(), 36) + "_"
+                + Integer.toString(FACTORIES.incrementAndGet(), 36) + "_";
+        JobHelper.workerSetUpJobDirectories(jobId, baseDir, streamingDir, finishedDir);
+        this.layout = JobDirLayout.forJob(jobDir);
+    }
+
+    /**
+     * Open a new stream, compressed if the type is
+     *
+     * @param type - the type of data streamed
+     * @return the stream, which must be closed to hand the file to the aggregator
+     * @throws IOException if the streaming file can't be created
+     */
+    public ClaimsStream newStream(FileOutputType type) throws IOException {
+        return newStream(type, type.isCompressed());
+    }
+
+    /**
+     * Open a new stream
+     *
+     * @param type - the type of data streamed
+     * @param compressed - gzip the data as it is written
+     * @return the stream, which must be closed to hand the file to the aggregator
+     * @throws IOException if the streaming file can't be created
+     */
+    public ClaimsStream newStream(FileOutputType type, boolean compressed) throws IOException {
+        return new ClaimsStream(this, type, compressed);
+    }
+
+    /**
+     * @param type - the type of the file, for its suffix
+     * @return the streaming file to use next. It isn't created, it's up to the stream to create it exclusively
+     */
+    File nextFile(FileOutputType type) {
+        String name = namePrefix + sequence.incrementAndGet() + type.getSuffix();
+        return layout.locate(Path.of(jobDir, streamingDir).toFile(), name);
+    }
+
+    /**
+     * @return the number of streaming files named so far, one for each stream unless the job has a StreamCoalescer
+     */
+    public long getStreamsOpened() {
+        return sequence.get();
+    }
+}
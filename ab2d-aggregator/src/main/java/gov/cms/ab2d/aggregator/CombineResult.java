@@ -0,0 +1,21 @@
+package gov.cms.ab2d.aggregator;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * What we learned about a part while combining files into it, so nobody has to read the part again to find out.
+ * The checksum is what FileEvent reports for the file and the record count is what a bulk export manifest lists.
+ */
+@Getter
+@ToString
+@AllArgsConstructor
+public class CombineResult {
+    // Hex encoded SHA-256 of the bytes written to the part
+    private final String sha256;
+    // The number of bytes written to the part
+    private final long byteCount;
+    // The number of new line delimited records in the part
+    private final long recordCount;
+}
@@ -0,0 +1,198 @@
+package gov.cms.ab2d.aggregator;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Reads NDJSON FHIR resources, leaving out every resource whose id is already in the EobIdSet. The id is found by
+ * scanning the record for its top level "id" field, which HAPI writes right after the resourceType, so the record
+ * is never parsed. Records without an id are always kept.
+ */
+final class DeduplicatingInputStream extends FilterInputStream {
+    private static final int READ_SIZE = 64 * 1024;
+    private static final byte NEW_LINE = '\n';
+    private static final byte QUOTE = '"';
+    private static final byte ESCAPE = '\\';
+
+    private final EobIdSet seen;
+    private final byte[] chunk = new byte[READ_SIZE];
+    private int chunkPosition;
+    private int chunkLength;
+    private boolean endOfInput;
+
+    // The record being collected, and once it's complete, how much of it has been read
+    private byte[] record = new byte[READ_SIZE];
+    private int recordLength;
+    private int recordPosition;
+    private boolean recordReady;
+
+    DeduplicatingInputStream(InputStream in, EobIdSet seen) {
+        super(in);
+        this.seen = seen;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+        return record[recordPosition++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        int count = Math.min(len, recordLength - recordPosition);
+        System.arraycopy(record, recordPosition, b, off, count);
+        recordPosition += count;
+        return count;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = 0;
+        while (skipped < n && fill()) {
+            int count = (int) Math.min(n - skipped, recordLength - recordPosition);
+            recordPosition += count;
+            skipped += count;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return recordReady ? recordLength - recordPosition : 0;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    /**
+     * Make sure there is something left to read in the current record, collecting the next record that isn't a
+     * duplicate if need be
+     *
+     * @return false at the end of the input
+     */
+    private boolean fill() throws IOException {
+        while (!recordReady || recordPosition == recordLength) {
+            recordReady = false;
+            recordLength = 0;
+            recordPosition = 0;
+            if (!collectRecord()) {
+                return false;
+            }
+            recordReady = keep();
+        }
+        return true;
+    }
+
+    /**
+     * @return false if there were no more records
+     */
+    private boolean collectRecord() throws IOException {
+        while (true) {
+            if (chunkPosition == chunkLength) {
+                if (endOfInput) {
+                    // The last record doesn't have to end with a new line
+                    return recordLength > 0;
+                }
+                chunkLength = in.read(chunk, 0, chunk.length);
+                chunkPosition = 0;
+                if (chunkLength < 0) {
+                    chunkLength = 0;
+                    endOfInput = true;
+                }
+                continue;
+            }
+            int end = chunkPosition;
+            while (end < chunkLength && chunk[end] != NEW_LINE) {
+                end++;
+            }
+            boolean complete = end < chunkLength;
+            append(complete ? end + 1 : end);
+            if (complete) {
+                return true;
+            }
+        }
+    }
+
+    private void append(int end) {
+        int count = end - chunkPosition;
+        if (recordLength + count > record.length) {
+            record = Arrays.copyOf(record, Math.max(record.length * 2, recordLength + count));
+        }
+        System.arraycopy(chunk, chunkPosition, record, recordLength, count);
+        recordLength += count;
+        chunkPosition = end;
+    }
+
+    private boolean keep() {
+        int[] id = findId(record, recordLength);
+        return id == null || seen.add(record, id[0], id[1] - id[0]);
+    }
+
+    /**
+     * Find the value of the top level "id" field of a JSON object
+     *
+     * @param json - the UTF-8 encoded object
+     * @param length - the length of the object
+     * @return the start (inclusive) and end (exclusive) of the id, without quotes, or null if there is no id
+     */
+    static int[] findId(byte[] json, int length) {
+        int depth = 0;
+        int i = 0;
+        while (i < length) {
+            byte b = json[i];
+            if (b == QUOTE) {
+                int end = endOfString(json, i + 1, length);
+                if (depth == 1 && end == i + 3 && json[i + 1] == 'i' && json[i + 2] == 'd') {
+                    int value = skipWhitespace(json, end + 1, length);
+                    if (value < length && json[value] == ':') {
+                        value = skipWhitespace(json, value + 1, length);
+                        if (value < length && json[value] == QUOTE) {
+                            return new int[] {value + 1, endOfString(json, value + 1, length)};
+                        }
+                        return null;
+                    }
+                }
+                i = end + 1;
+                continue;
+            }
+            if (b == '{' || b == '[') {
+                depth++;
+            } else if (b == '}' || b == ']') {
+                depth--;
+            }
+            i++;
+        }
+        return null;
+    }
+
+    /**
+     * @return the position of the quote closing a string that starts at start, or length if it isn't closed
+     */
+    private static int endOfString(byte[] json, int start, int length) {
+        int i = start;
+        while (i < length && json[i] != QUOTE) {
+            i += json[i] == ESCAPE ? 2 : 1;
+        }
+        return Math.min(i, length);
+    }
+
+    private static int skipWhitespace(byte[] json, int start, int length) {
+        int i = start;
+        while (i < length && (json[i] == ' ' || json[i] == '\t' || json[i] == '\r' || json[i] == NEW_LINE)) {
+            i++;
+        }
+        return i;
+    }
+}
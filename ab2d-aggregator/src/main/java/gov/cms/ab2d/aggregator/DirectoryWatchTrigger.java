@@ -0,0 +1,115 @@
+package gov.cms.ab2d.aggregator;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+/**
+ * Falls back on the file system to wake up the aggregator when the worker is running in another JVM. Watches the
+ * finished directory for new files and the job directory for the removal of the streaming directory.
+ *
+ * If given the aggregator's index of finished files, new files are added to the index as their events arrive.
+ * With a sharded JobDirLayout each shard of the finished directory is watched.
+ *
+ * Not all file systems deliver events (network file systems often only report local changes) so the aggregator
+ * still needs a reasonable timeout when it waits on this trigger.
+ */
+public class DirectoryWatchTrigger implements AggregationTrigger {
+    private final WatchService watchService;
+    private final FinishedFileIndex index;
+    private final Set<WatchKey> finishedKeys = new HashSet<>();
+
+    /**
+     * Start watching a job
+     *
+     * @param jobDir - the job directory, watched for the deletion of the streaming directory
+     * @param finishedDir - the finished directory, watched for new files
+     * @throws IOException if the file system can't watch the directories
+     */
+    public DirectoryWatchTrigger(Path jobDir, Path finishedDir) throws IOException {
+        this(jobDir, finishedDir, null);
+    }
+
+    /**
+     * Start watching a job and feed new finished files to an index
+     *
+     * @param jobDir - the job directory, watched for the deletion of the streaming directory
+     * @param finishedDir - the finished directory, watched for new files
+     * @param index - the index of finished files to keep up to date, null if there isn't one
+     * @throws IOException if the file system can't watch the directories
+     */
+    public DirectoryWatchTrigger(Path jobDir, Path finishedDir, FinishedFileIndex index) throws IOException {
+        this.watchService = jobDir.getFileSystem().newWatchService();
+        this.index = index;
+        try {
+            for (File dir : JobDirLayout.forJob(jobDir.toString()).getDirectories(finishedDir.toFile())) {
+                finishedKeys.add(dir.toPath().register(watchService, ENTRY_CREATE));
+            }
+            jobDir.register(watchService, ENTRY_DELETE);
+        } catch (IOException ex) {
+            watchService.close();
+            throw ex;
+        }
+        if (index != null) {
+            index.setEventFed(true);
+            index.markStale();
+        }
+    }
+
+    @Override
+    public boolean await(long timeoutMillis) throws InterruptedException {
+        try {
+            WatchKey key = watchService.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+            if (key == null) {
+                return false;
+            }
+            // Drain everything that has queued up, one wake up is enough for any number of events
+            while (key != null) {
+                List<WatchEvent<?>> events = key.pollEvents();
+                if (index != null && finishedKeys.contains(key)) {
+                    indexEvents((Path) key.watchable(), events);
+                }
+                key.reset();
+                key = watchService.poll();
+            }
+            return true;
+        } catch (ClosedWatchServiceException ex) {
+            return false;
+        }
+    }
+
+    private void indexEvents(Path dir, List<WatchEvent<?>> events) {
+        for (WatchEvent<?> event : events) {
+            if (event.kind() == OVERFLOW) {
+                // We lost track of some files, the index has to look for itself
+                index.markStale();
+            } else if (event.kind() == ENTRY_CREATE) {
+                index.fileCreated(dir.resolve((Path) event.context()));
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        if (index != null) {
+            index.setEventFed(false);
+        }
+        try {
+            watchService.close();
+        } catch (IOException ex) {
+            // Nothing to do, we're done watching either way
+        }
+    }
+}
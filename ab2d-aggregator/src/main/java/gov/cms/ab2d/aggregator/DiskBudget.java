@@ -0,0 +1,261 @@
+package gov.cms.ab2d.aggregator;
+
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits how much data the workers can stream out before the aggregator catches up. Finished files count against
+ * the budget from when ClaimsStream moves them to the finished directory until the aggregator deletes them. Once
+ * the data on disk goes over the high water mark, creating a ClaimsStream (or calling acquire) blocks until the
+ * aggregator has brought it back under the low water mark, and every aggregator using the budget aggregates
+ * whatever it has instead of waiting for multiplier parts worth of data.
+ *
+ * A budget is registered for each job it covers. Register a budget per job to limit each job, or the same budget
+ * for every job on the host to limit them all together. Like JobSignal this only works when the worker and the
+ * aggregator share a JVM, jobs without a budget registered are never blocked. Files still being streamed aren't
+ * counted.
+ */
+public final class DiskBudget {
+    private static final Map<String, JobUsage> JOBS = new ConcurrentHashMap<>();
+
+    private final long highWaterBytes;
+    private final long lowWaterBytes;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition drained = lock.newCondition();
+
+    // Guarded by lock
+    private long usedBytes;
+    private boolean draining;
+    private long blockedNanos;
+    private long blockedAcquires;
+
+    /**
+     * @param highWaterBytes - block writers once more than this is waiting to be aggregated
+     * @param lowWaterBytes - let them go again once the aggregator is down to this
+     */
+    public DiskBudget(long highWaterBytes, long lowWaterBytes) {
+        if (lowWaterBytes < 0 || lowWaterBytes > highWaterBytes) {
+            throw new IllegalArgumentException("The low water mark has to be between 0 and the high water mark");
+        }
+        this.highWaterBytes = highWaterBytes;
+        this.lowWaterBytes = lowWaterBytes;
+    }
+
+    /**
+     * Make a job's writers and aggregator use this budget
+     *
+     * @param jobDir - the job directory (the base directory plus the job id)
+     * @param pendingBytes - what is already in the job's finished directory, if the job is being resumed
+     */
+    public void register(String jobDir, long pendingBytes) {
+        JobUsage usage = new JobUsage(this);
+        JobUsage replaced = JOBS.put(key(jobDir), usage);
+        if (replaced != null) {
+            replaced.release(replaced.bytes.get());
+        }
+        usage.add(pendingBytes);
+    }
+
+    /**
+     * Stop using the budget for a job, giving back whatever the job still had counted against it
+     *
+     * @param jobDir - the job directory (the base directory plus the job id)
+     */
+    public void unregister(String jobDir) {
+        JobUsage usage = JOBS.get(key(jobDir));
+        if (usage != null && usage.budget == this && JOBS.remove(key(jobDir), usage)) {
+            usage.release(usage.bytes.get());
+        }
+    }
+
+    /**
+     * Wait until a job's budget has room for more data. Returns right away if the job has no budget
+     *
+     * @param jobDir - the job directory (the base directory plus the job id)
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public static void acquire(String jobDir) throws InterruptedException {
+        DiskBudget budget = forJob(jobDir);
+        if (budget != null) {
+            budget.acquire();
+        }
+    }
+
+    /**
+     * Wait until there is room for more data
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void acquire() throws InterruptedException {
+        lock.lock();
+        try {
+            if (!draining) {
+                return;
+            }
+            long started = System.nanoTime();
+            try {
+                while (draining) {
+                    drained.await();
+                }
+            } finally {
+                blockedNanos += System.nanoTime() - started;
+                blockedAcquires++;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param jobDir - the job directory (the base directory plus the job id)
+     * @return the job's budget, null if it has none
+     */
+    static DiskBudget forJob(String jobDir) {
+        JobUsage usage = JOBS.get(key(jobDir));
+        return usage == null ? null : usage.budget;
+    }
+
+    /**
+     * @param jobDir - the job directory (the base directory plus the job id)
+     * @return true if the job's budget is over its high water mark and hasn't drained yet
+     */
+    static boolean isDraining(String jobDir) {
+        DiskBudget budget = forJob(jobDir);
+        return budget != null && budget.isDraining();
+    }
+
+    /**
+     * Count a file moved to a job's finished directory against its budget, if it has one
+     *
+     * @param jobDir - the job directory (the base directory plus the job id)
+     * @param bytes - the size of the file
+     */
+    static void fileFinished(String jobDir, long bytes) {
+        JobUsage usage = JOBS.get(key(jobDir));
+        if (usage != null) {
+            usage.add(bytes);
+        }
+    }
+
+    /**
+     * Give back the space of finished files the aggregator has deleted
+     *
+     * @param jobDir - the job directory (the base directory plus the job id)
+     * @param bytes - the size of the files
+     */
+    static void filesAggregated(String jobDir, long bytes) {
+        JobUsage usage = JOBS.get(key(jobDir));
+        if (usage != null) {
+            usage.release(bytes);
+        }
+    }
+
+    public long getHighWaterBytes() {
+        return highWaterBytes;
+    }
+
+    public long getLowWaterBytes() {
+        return lowWaterBytes;
+    }
+
+    /**
+     * @return the bytes counted against the budget by every job using it
+     */
+    public long getUsedBytes() {
+        lock.lock();
+        try {
+            return usedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isDraining() {
+        lock.lock();
+        try {
+            return draining;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the total time writers have spent blocked, added up over every writer that was blocked
+     */
+    public long getBlockedMillis() {
+        lock.lock();
+        try {
+            return TimeUnit.NANOSECONDS.toMillis(blockedNanos);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of times a writer had to wait
+     */
+    public long getBlockedAcquires() {
+        lock.lock();
+        try {
+            return blockedAcquires;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void add(long bytes) {
+        lock.lock();
+        try {
+            usedBytes += bytes;
+            if (usedBytes > highWaterBytes) {
+                draining = true;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void release(long bytes) {
+        lock.lock();
+        try {
+            usedBytes = Math.max(0, usedBytes - bytes);
+            if (draining && usedBytes <= lowWaterBytes) {
+                draining = false;
+                drained.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static String key(String jobDir) {
+        return Path.of(jobDir).toAbsolutePath().normalize().toString();
+    }
+
+    /**
+     * What one job has counted against a budget, so it can all be given back when the job is done
+     */
+    private static final class JobUsage {
+        private final DiskBudget budget;
+        private final AtomicLong bytes = new AtomicLong();
+
+        private JobUsage(DiskBudget budget) {
+            this.budget = budget;
+        }
+
+        private void add(long added) {
+            bytes.addAndGet(added);
+            budget.add(added);
+        }
+
+        private void release(long released) {
+            long before = bytes.getAndUpdate(current -> Math.max(0, current - released));
+            budget.release(Math.min(before, released));
+        }
+    }
+}
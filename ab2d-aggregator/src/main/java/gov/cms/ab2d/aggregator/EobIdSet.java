@@ -0,0 +1,200 @@
+package gov.cms.ab2d.aggregator;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The EOB ids already written for a job, used to drop the duplicate EOBs that retried BFD requests and re-queued
+ * patient batches leave in more than one finished file.
+ *
+ * Ids aren't kept as Strings, which would take 60+ bytes each. Each id is hashed with MurmurHash3 (x64, 128 bit)
+ * and 96 bits of the hash are kept in an open addressing table of two primitive arrays, 12 bytes a slot. At the
+ * maximum load that is about 16 bytes an id, so 20 million EOBs take a little over 300 MB. With 96 bits the
+ * chance that two different ids of a 50 million EOB job look the same is around 1 in 10^13, so in practice the
+ * check is exact.
+ *
+ * The set grows as needed. It is safe to use from the threads combining parts in parallel.
+ */
+public final class EobIdSet {
+    public static final int DEFAULT_EXPECTED_IDS = 1 << 20;
+
+    private static final double MAX_LOAD = 0.75;
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    // A slot is empty when both halves are zero, a fingerprint that is all zeros is stored as 1
+    private long[] high;
+    private int[] low;
+    private int mask;
+    private int size;
+    private long duplicates;
+
+    public EobIdSet() {
+        this(DEFAULT_EXPECTED_IDS);
+    }
+
+    /**
+     * @param expectedIds - about how many EOBs the job will have, to avoid growing the table along the way
+     */
+    public EobIdSet(int expectedIds) {
+        int capacity = 16;
+        while (capacity < expectedIds / MAX_LOAD && capacity < 1 << 30) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    /**
+     * @param id - an EOB id
+     * @return true if the id hadn't been seen before, false if it is a duplicate
+     */
+    public boolean add(String id) {
+        byte[] bytes = id.getBytes(StandardCharsets.UTF_8);
+        return add(bytes, 0, bytes.length);
+    }
+
+    /**
+     * @param bytes - holds the UTF-8 encoded EOB id
+     * @param offset - where the id starts
+     * @param length - the length of the id in bytes
+     * @return true if the id hadn't been seen before, false if it is a duplicate
+     */
+    public boolean add(byte[] bytes, int offset, int length) {
+        long[] hash = murmur3(bytes, offset, length);
+        long h = hash[0];
+        int l = (int) (hash[1] >>> 32);
+        if (h == 0 && l == 0) {
+            l = 1;
+        }
+        synchronized (this) {
+            if (!insert(h, l)) {
+                duplicates++;
+                return false;
+            }
+            if (++size > (mask + 1) * MAX_LOAD) {
+                grow();
+            }
+            return true;
+        }
+    }
+
+    /**
+     * @return the number of different ids seen
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return the number of times an id was seen again
+     */
+    public synchronized long getDuplicates() {
+        return duplicates;
+    }
+
+    /**
+     * @return the memory taken by the table in bytes
+     */
+    public synchronized long getMemoryBytes() {
+        return (mask + 1L) * (Long.BYTES + Integer.BYTES);
+    }
+
+    private boolean insert(long h, int l) {
+        int slot = (int) h & mask;
+        while (high[slot] != 0 || low[slot] != 0) {
+            if (high[slot] == h && low[slot] == l) {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+        high[slot] = h;
+        low[slot] = l;
+        return true;
+    }
+
+    private void grow() {
+        if (mask + 1 >= 1 << 30) {
+            throw new IllegalStateException("Too many EOB ids to track, " + size);
+        }
+        long[] oldHigh = high;
+        int[] oldLow = low;
+        allocate((mask + 1) << 1);
+        for (int i = 0; i < oldHigh.length; i++) {
+            if (oldHigh[i] != 0 || oldLow[i] != 0) {
+                insert(oldHigh[i], oldLow[i]);
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        high = new long[capacity];
+        low = new int[capacity];
+        mask = capacity - 1;
+    }
+
+    /**
+     * MurmurHash3 x64 128 bit with a seed of 0
+     */
+    static long[] murmur3(byte[] bytes, int offset, int length) {
+        long h1 = 0;
+        long h2 = 0;
+        int blocks = length / 16;
+        for (int i = 0; i < blocks; i++) {
+            int p = offset + i * 16;
+            long k1 = getLong(bytes, p);
+            long k2 = getLong(bytes, p + 8);
+            h1 ^= mixK1(k1);
+            h1 = Long.rotateLeft(h1, 27) + h2;
+            h1 = h1 * 5 + 0x52dce729;
+            h2 ^= mixK2(k2);
+            h2 = Long.rotateLeft(h2, 31) + h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+        long k1 = 0;
+        long k2 = 0;
+        int tail = offset + blocks * 16;
+        for (int i = (length & 15) - 1; i >= 0; i--) {
+            long b = bytes[tail + i] & 0xffL;
+            if (i >= 8) {
+                k2 ^= b << ((i - 8) * 8);
+            } else {
+                k1 ^= b << (i * 8);
+            }
+        }
+        h1 ^= mixK1(k1);
+        h2 ^= mixK2(k2);
+        h1 ^= length;
+        h2 ^= length;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix64(h1);
+        h2 = fmix64(h2);
+        h1 += h2;
+        h2 += h1;
+        return new long[] {h1, h2};
+    }
+
+    private static long getLong(byte[] bytes, int p) {
+        long value = 0;
+        for (int i = 7; i >= 0; i--) {
+            value = (value << 8) | (bytes[p + i] & 0xffL);
+        }
+        return value;
+    }
+
+    private static long mixK1(long k1) {
+        return Long.rotateLeft(k1 * C1, 31) * C2;
+    }
+
+    private static long mixK2(long k2) {
+        return Long.rotateLeft(k2 * C2, 33) * C1;
+    }
+
+    private static long fmix64(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
@@ -23,6 +23,24 @@ public enum FileOutputType {
         return suffix;
     }
 
+    /**
+     * @return the gzip compressed version of this type, or the type itself if it is already compressed
+     */
+    public FileOutputType getCompressedType() {
+        switch (this) {
+            case DATA:
+                return DATA_COMPRESSED;
+            case ERROR:
+                return ERROR_COMPRESSED;
+            default:
+                return this;
+        }
+    }
+
+    public boolean isCompressed() {
+        return this == DATA_COMPRESSED || this == ERROR_COMPRESSED;
+    }
+
     public static FileOutputType getFileType(File file) {
         return getFileType(file.getAbsolutePath());
     }
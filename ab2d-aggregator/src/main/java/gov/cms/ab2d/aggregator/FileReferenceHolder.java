@@ -9,10 +9,24 @@ import java.io.File;
  * Holds the file and it's size. This enables us to manipulate ordering of files by only going to the file
  * system once. This is used for files that are finished streaming and in the finished directory and their size
  * won't change.
+ *
+ * The size is the size of the data, which is what parts are planned with. For a gzip file that is the uncompressed
+ * size and the disk size is what the file takes up, for a plain file they are the same.
  */
 @Getter
 @AllArgsConstructor
 public class FileReferenceHolder {
     private final File file;
     private final long size;
+    private final long diskSize;
+    // When the file was finished, 0 if not known
+    private final long finishedMillis;
+
+    public FileReferenceHolder(File file, long size) {
+        this(file, size, size, 0);
+    }
+
+    public FileReferenceHolder(File file, long size, long diskSize) {
+        this(file, size, diskSize, 0);
+    }
 }
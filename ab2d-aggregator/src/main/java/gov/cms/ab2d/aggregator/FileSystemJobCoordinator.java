@@ -0,0 +1,76 @@
+package gov.cms.ab2d.aggregator;
+
+import lombok.Getter;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The original protocol between the worker and the aggregator (see JobHelper). Streaming is done when the
+ * streaming directory has been deleted and aggregation is done when the finished directory has been deleted too.
+ * Use it when the worker and the aggregator are in different JVMs. Waiting for aggregation polls the file system.
+ */
+@Getter
+public class FileSystemJobCoordinator implements JobCoordinator {
+    public static final long DEFAULT_POLL_MILLIS = 100;
+
+    private final String streamingDir;
+    private final String finishedDir;
+    private final long pollMillis;
+
+    /**
+     * @param jobDir - the job directory (the base directory plus the job id)
+     * @param streamDir - the streaming directory, under the job directory
+     * @param finishedDir - the finished directory, under the job directory
+     */
+    public FileSystemJobCoordinator(String jobDir, String streamDir, String finishedDir) {
+        this(jobDir, streamDir, finishedDir, DEFAULT_POLL_MILLIS);
+    }
+
+    /**
+     * @param jobDir - the job directory (the base directory plus the job id)
+     * @param streamDir - the streaming directory, under the job directory
+     * @param finishedDir - the finished directory, under the job directory
+     * @param pollMillis - how often to look at the file system while waiting for aggregation
+     */
+    public FileSystemJobCoordinator(String jobDir, String streamDir, String finishedDir, long pollMillis) {
+        this.streamingDir = jobDir + File.separator + streamDir;
+        this.finishedDir = jobDir + File.separator + finishedDir;
+        this.pollMillis = pollMillis;
+    }
+
+    @Override
+    public void streamingDone() {
+        JobHelper.workerFinishJob(streamingDir);
+    }
+
+    @Override
+    public boolean isStreamingDone() {
+        return !Files.exists(Path.of(streamingDir));
+    }
+
+    @Override
+    public void aggregationDone() {
+        JobHelper.aggregatorFinishJob(finishedDir);
+    }
+
+    @Override
+    public boolean isAggregationDone() {
+        return isStreamingDone() && !Files.exists(Path.of(finishedDir));
+    }
+
+    @Override
+    public boolean awaitAggregation(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!isAggregationDone()) {
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remaining <= 0) {
+                return false;
+            }
+            Thread.sleep(Math.min(pollMillis, remaining));
+        }
+        return true;
+    }
+}
@@ -2,21 +2,39 @@ package gov.cms.ab2d.aggregator;
 
 import lombok.extern.slf4j.Slf4j;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HexFormat;
 import java.util.List;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import static gov.cms.ab2d.aggregator.FileOutputType.getFileType;
 import static java.nio.file.StandardOpenOption.CREATE;
 import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
 import static java.nio.file.StandardOpenOption.WRITE;
 
 /**
@@ -24,30 +42,499 @@ import static java.nio.file.StandardOpenOption.WRITE;
  */
 @Slf4j
 public final class FileUtils {
+    // The size of the blocks compressed independently when writing gzip files
+    public static final int DEFAULT_GZIP_BLOCK_SIZE = 1024 * 1024;
+
+    // Added to a piece split off a file until the file has been truncated, see splitAtRecords
+    public static final String SPLIT_SUFFIX = ".split";
+
+    // How many compressed blocks we let pile up waiting to be written, per processor
+    private static final int BLOCKS_IN_FLIGHT_PER_PROCESSOR = 2;
+
+    // How much of a file we read at a time when checksumming and counting records while combining
+    private static final int SUMMARY_BUFFER_SIZE = 1024 * 1024;
+
+    private static final byte NEW_LINE = '\n';
+
+    // How much of a file we read at a time looking for the record boundary to split it at
+    private static final int SPLIT_BUFFER_SIZE = 64 * 1024;
+
     private FileUtils() {
     }
 
     /**
-     * Given a list of files, combine them into an outfile
+     * Given a list of files, combine them into an outfile. Gzip compressed files (from a compressed ClaimsStream)
+     * are decompressed as they are combined.
      *
      * @param filesToCombine - the files to combine
      * @param outFileName - the output file name with location
      * @throws IOException - if we have any IO funny business
      */
     public static void combineFiles(List<File> filesToCombine, String outFileName) throws IOException {
+        combineFiles(filesToCombine, outFileName, null);
+    }
+
+    /**
+     * Given a list of files, combine them into an outfile like combineFiles does, leaving out the records whose
+     * ids have already been seen. Records have to be read to find their ids, so the files aren't copied with
+     * transferTo when de-duplicating.
+     *
+     * @param filesToCombine - the files to combine
+     * @param outFileName - the output file name with location
+     * @param seen - the ids already written, null to keep every record
+     * @throws IOException - if we have any IO funny business
+     */
+    public static void combineFiles(List<File> filesToCombine, String outFileName, EobIdSet seen) throws IOException {
         Path outFile = Paths.get(outFileName);
         try (FileChannel out = FileChannel.open(outFile, CREATE, WRITE)) {
+            combineFiles(filesToCombine, out, seen);
+        }
+    }
+
+    /**
+     * Given a list of files, combine them into a channel like combineFiles does. Plain files are only copied by the
+     * file system (without going through the heap) when the channel is a FileChannel.
+     *
+     * @param filesToCombine - the files to combine
+     * @param out - where to write them, left open
+     * @param seen - the ids already written, null to keep every record
+     * @throws IOException - if we have any IO funny business
+     */
+    public static void combineFiles(List<File> filesToCombine, WritableByteChannel out, EobIdSet seen)
+            throws IOException {
+        for (File file : filesToCombine) {
+            Path inFile = Paths.get(file.getAbsolutePath());
+            if (seen != null) {
+                try (InputStream in = openForReading(file, seen)) {
+                    in.transferTo(Channels.newOutputStream(out));
+                }
+            } else if (getFileType(file.getName()).isCompressed()) {
+                try (InputStream in = new GZIPInputStream(Files.newInputStream(inFile))) {
+                    in.transferTo(Channels.newOutputStream(out));
+                }
+            } else {
+                transferAll(inFile, out);
+            }
+        }
+    }
+
+    /**
+     * Given a list of files, combine them into an outfile like combineFiles does, computing the SHA-256, byte count
+     * and record count of the outfile as the data goes by. Instead of letting the file system copy the data with
+     * transferTo, each buffer read is hashed and counted before it is written, so the data still only moves
+     * once and the outfile never has to be read again.
+     *
+     * @param filesToCombine - the files to combine
+     * @param outFileName - the output file name with location
+     * @return the checksum and counts of the outfile
+     * @throws IOException - if we have any IO funny business
+     */
+    public static CombineResult combineFilesWithSummary(List<File> filesToCombine, String outFileName) throws IOException {
+        return combineFilesWithSummary(filesToCombine, outFileName, null);
+    }
+
+    /**
+     * Combine files and work out the summary of the outfile like combineFilesWithSummary does, leaving out the
+     * records whose ids have already been seen
+     *
+     * @param filesToCombine - the files to combine
+     * @param outFileName - the output file name with location
+     * @param seen - the ids already written, null to keep every record
+     * @return the checksum and counts of the outfile
+     * @throws IOException - if we have any IO funny business
+     */
+    public static CombineResult combineFilesWithSummary(List<File> filesToCombine, String outFileName, EobIdSet seen)
+            throws IOException {
+        try (FileChannel out = FileChannel.open(Paths.get(outFileName), CREATE, WRITE, TRUNCATE_EXISTING)) {
+            return combineFilesWithSummary(filesToCombine, out, seen);
+        }
+    }
+
+    /**
+     * Combine files into a channel and work out the summary of what was written like combineFilesWithSummary does
+     *
+     * @param filesToCombine - the files to combine
+     * @param out - where to write them, left open
+     * @param seen - the ids already written, null to keep every record
+     * @return the checksum and counts of the data written
+     * @throws IOException - if we have any IO funny business
+     */
+    public static CombineResult combineFilesWithSummary(List<File> filesToCombine, WritableByteChannel out,
+                                                        EobIdSet seen) throws IOException {
+        MessageDigest digest = newSha256();
+        ByteBuffer buffer = ByteBuffer.allocate(SUMMARY_BUFFER_SIZE);
+        byte[] bytes = buffer.array();
+        long byteCount = 0;
+        long newLines = 0;
+        byte last = NEW_LINE;
+        for (File file : filesToCombine) {
+            try (ReadableByteChannel in = openForCombining(file, seen)) {
+                while (in.read(buffer) != -1) {
+                    int length = buffer.position();
+                    if (length == 0) {
+                        continue;
+                    }
+                    digest.update(bytes, 0, length);
+                    newLines += countNewLines(bytes, length);
+                    last = bytes[length - 1];
+                    byteCount += length;
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        out.write(buffer);
+                    }
+                    buffer.clear();
+                }
+            }
+        }
+        // The last record doesn't have to end with a new line
+        long recordCount = last == NEW_LINE ? newLines : newLines + 1;
+        return new CombineResult(HexFormat.of().formatHex(digest.digest()), byteCount, recordCount);
+    }
+
+    private static ReadableByteChannel openForCombining(File file, EobIdSet seen) throws IOException {
+        if (seen != null) {
+            return Channels.newChannel(openForReading(file, seen));
+        }
+        if (getFileType(file.getName()).isCompressed()) {
+            return Channels.newChannel(new GZIPInputStream(Files.newInputStream(file.toPath())));
+        }
+        return FileChannel.open(file.toPath(), READ);
+    }
+
+    /**
+     * Open a finished file to read its records, decompressing it if need be
+     *
+     * @param file - the file
+     * @param seen - the ids already written, null to read every record
+     * @return the records
+     * @throws IOException if the file can't be opened
+     */
+    private static InputStream openForReading(File file, EobIdSet seen) throws IOException {
+        InputStream in = Files.newInputStream(file.toPath());
+        if (getFileType(file.getName()).isCompressed()) {
+            in = new GZIPInputStream(in);
+        }
+        return seen == null ? in : new DeduplicatingInputStream(in, seen);
+    }
+
+    /**
+     * Count the bytes a gzip file holds once decompressed. The whole file is read, every member of it, since the
+     * sizes in the gzip trailers only cover their own member and wrap at 4GB
+     *
+     * @param file - the gzip file
+     * @return the number of uncompressed bytes
+     * @throws IOException if the file can't be read or isn't gzip
+     */
+    public static long getUncompressedSize(File file) throws IOException {
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(file.toPath()))) {
+            return in.transferTo(OutputStream.nullOutputStream());
+        }
+    }
+
+    private static long countNewLines(byte[] bytes, int length) {
+        long count = 0;
+        for (int i = 0; i < length; i++) {
+            if (bytes[i] == NEW_LINE) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Copy all of a file to the end of a channel
+     *
+     * @param inFile - the file to copy
+     * @param out - where to copy it
+     * @return the number of bytes copied
+     * @throws IOException if the copy fails
+     */
+    private static long transferAll(Path inFile, WritableByteChannel out) throws IOException {
+        try (FileChannel in = FileChannel.open(inFile, READ)) {
+            // For the length of the file, transfer into the output file
+            long l = in.size();
+            for (long p = 0; p < l;)
+                p += in.transferTo(p, l - p, out);
+            return l;
+        }
+    }
+
+    /**
+     * Given a list of files, combine them into a gzip compressed outfile. The data is cut into blocks that are
+     * compressed independently on the executor, so several cores can work on the same file, and written out in
+     * order. Each block is a complete gzip member and a file of concatenated members is a valid gzip file
+     * (RFC 1952), readable by GZIPInputStream or any gunzip.
+     *
+     * Files that are already gzip compressed (from a compressed ClaimsStream) are copied as they are, without
+     * compressing them again.
+     *
+     * @param filesToCombine - the files to combine
+     * @param outFileName - the output file name with location
+     * @param executor - where to compress the blocks, null to compress them on this thread
+     * @param blockSize - the number of uncompressed bytes in each block
+     * @return the size of the compressed file
+     * @throws IOException - if we have any IO funny business
+     */
+    public static long combineFilesCompressed(List<File> filesToCombine, String outFileName, ExecutorService executor,
+                                              int blockSize) throws IOException {
+        return combineFilesCompressed(filesToCombine, outFileName, executor, blockSize, null);
+    }
+
+    /**
+     * Combine files into a gzip compressed outfile like combineFilesCompressed does, leaving out the records whose
+     * ids have already been seen. Files that are already compressed have to be decompressed to find the ids, so
+     * they are compressed again along with the rest.
+     *
+     * @param filesToCombine - the files to combine
+     * @param outFileName - the output file name with location
+     * @param executor - where to compress the blocks, null to compress them on this thread
+     * @param blockSize - the number of uncompressed bytes in each block
+     * @param seen - the ids already written, null to keep every record
+     * @return the size of the compressed file
+     * @throws IOException - if we have any IO funny business
+     */
+    public static long combineFilesCompressed(List<File> filesToCombine, String outFileName, ExecutorService executor,
+                                              int blockSize, EobIdSet seen) throws IOException {
+        try (FileChannel out = FileChannel.open(Paths.get(outFileName), CREATE, WRITE, TRUNCATE_EXISTING)) {
+            return combineFilesCompressed(filesToCombine, out, executor, blockSize, seen);
+        }
+    }
+
+    /**
+     * Combine files into a channel, gzip compressed, like combineFilesCompressed does
+     *
+     * @param filesToCombine - the files to combine
+     * @param out - where to write them, left open
+     * @param executor - where to compress the blocks, null to compress them on this thread
+     * @param blockSize - the number of uncompressed bytes in each block
+     * @param seen - the ids already written, null to keep every record
+     * @return the number of compressed bytes written
+     * @throws IOException - if we have any IO funny business
+     */
+    public static long combineFilesCompressed(List<File> filesToCombine, WritableByteChannel out,
+                                              ExecutorService executor, int blockSize, EobIdSet seen)
+            throws IOException {
+        int maxInFlight = BLOCKS_IN_FLIGHT_PER_PROCESSOR * Runtime.getRuntime().availableProcessors();
+        Deque<Future<byte[]>> inFlight = new ArrayDeque<>();
+        long written = 0;
+        try {
+            byte[] block = new byte[blockSize];
+            int filled = 0;
+            boolean anyBlocks = false;
             for (File file : filesToCombine) {
-                Path inFile = Paths.get(file.getAbsolutePath());
-                try (FileChannel in = FileChannel.open(inFile, READ)) {
-                    // For the length of the file, transfer into the output file
-                    for (long p = 0, l = in.size(); p < l;)
-                        p += in.transferTo(p, l - p, out);
+                if (seen == null && getFileType(file.getName()).isCompressed()) {
+                    // Everything before this file has to be written before we can copy it in
+                    if (filled > 0) {
+                        inFlight.add(compressBlock(block, filled, executor));
+                        block = new byte[blockSize];
+                        filled = 0;
+                    }
+                    while (!inFlight.isEmpty()) {
+                        written += writeBlock(inFlight.poll(), out);
+                    }
+                    long copied = transferAll(file.toPath(), out);
+                    written += copied;
+                    anyBlocks |= copied > 0;
+                    continue;
                 }
+                try (InputStream in = openForReading(file, seen)) {
+                    int read;
+                    while ((read = in.read(block, filled, blockSize - filled)) != -1) {
+                        filled += read;
+                        if (filled == blockSize) {
+                            inFlight.add(compressBlock(block, filled, executor));
+                            anyBlocks = true;
+                            block = new byte[blockSize];
+                            filled = 0;
+                            if (inFlight.size() >= maxInFlight) {
+                                written += writeBlock(inFlight.poll(), out);
+                            }
+                        }
+                    }
+                }
+            }
+            // The last partial block, or an empty member so an empty part is still a valid gzip file
+            if (filled > 0 || !anyBlocks) {
+                inFlight.add(compressBlock(block, filled, executor));
             }
+            while (!inFlight.isEmpty()) {
+                written += writeBlock(inFlight.poll(), out);
+            }
+        } finally {
+            inFlight.forEach(f -> f.cancel(true));
+        }
+        return written;
+    }
+
+    private static Future<byte[]> compressBlock(byte[] block, int length, ExecutorService executor) throws IOException {
+        if (executor == null) {
+            return CompletableFuture.completedFuture(gzip(block, length));
+        }
+        return executor.submit(() -> gzip(block, length));
+    }
+
+    private static byte[] gzip(byte[] block, int length) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(Math.max(length / 4, 64));
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+            gzip.write(block, 0, length);
+        }
+        return compressed.toByteArray();
+    }
+
+    private static long writeBlock(Future<byte[]> block, WritableByteChannel out) throws IOException {
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(block.get());
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            return buffer.limit();
+        } catch (ExecutionException ex) {
+            throw new IOException("Unable to compress data", ex.getCause());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing data");
         }
     }
 
+    /**
+     * Split a plain NDJSON file that is bigger than maxSize at record boundaries. Pieces are cut off the end of the
+     * file, each as big as possible without going over maxSize, copied into a new file next to it with a positional
+     * transfer and then truncated away, until what's left of the file is no bigger than maxSize. A record bigger
+     * than maxSize can't be split and ends up in a piece by itself.
+     *
+     * Each piece is written under a temporary name (see SPLIT_SUFFIX) and only renamed to a name of the same type
+     * as the file once the file has been truncated, so a crash never leaves the same records in two finished files.
+     * Use recoverSplits to finish or undo a split that was interrupted.
+     *
+     * @param file - the file to split, it keeps the first records
+     * @param maxSize - the most bytes in the file and each piece
+     * @return the pieces cut off the file, empty if it didn't need to or couldn't be split
+     * @throws IOException if the file can't be split
+     */
+    public static List<File> splitAtRecords(File file, long maxSize) throws IOException {
+        List<File> pieces = new ArrayList<>();
+        try (FileChannel in = FileChannel.open(file.toPath(), READ, WRITE)) {
+            long length = in.size();
+            ByteBuffer buffer = ByteBuffer.allocate(SPLIT_BUFFER_SIZE);
+            while (length > maxSize) {
+                long start = findRecordStartFrom(in, buffer, length - maxSize, length);
+                if (start < 0) {
+                    // The last record is bigger than a piece, give it a piece of its own
+                    start = findRecordStartBefore(in, buffer, length - maxSize);
+                    if (start == 0) {
+                        break;
+                    }
+                }
+                Path tmpPiece = file.toPath().resolveSibling(file.getName() + "." + start + SPLIT_SUFFIX);
+                try (FileChannel out = FileChannel.open(tmpPiece, CREATE, WRITE, TRUNCATE_EXISTING)) {
+                    for (long p = start; p < length;) {
+                        p += in.transferTo(p, length - p, out);
+                    }
+                    out.force(true);
+                }
+                in.truncate(start);
+                in.force(true);
+                pieces.add(Files.move(tmpPiece, getSplitPiece(file.getName(), start, tmpPiece)).toFile());
+                length = start;
+            }
+        }
+        return pieces;
+    }
+
+    /**
+     * Finish the splits of files in a directory that were interrupted. A piece whose file was already truncated
+     * is given its real name, otherwise the records are still in the file and the piece is deleted.
+     *
+     * @param dir - the directory of split files, usually the finished directory
+     * @return the pieces that were kept
+     * @throws IOException if a piece can't be renamed or deleted
+     */
+    public static List<File> recoverSplits(File dir) throws IOException {
+        List<File> kept = new ArrayList<>();
+        File[] tmpPieces = dir.listFiles((d, name) -> name.endsWith(SPLIT_SUFFIX));
+        if (tmpPieces == null) {
+            return kept;
+        }
+        for (File tmpPiece : tmpPieces) {
+            String name = tmpPiece.getName().substring(0, tmpPiece.getName().length() - SPLIT_SUFFIX.length());
+            int dot = name.lastIndexOf('.');
+            String fileName = name.substring(0, dot);
+            long start = Long.parseLong(name.substring(dot + 1));
+            File file = new File(dir, fileName);
+            if (file.exists() && file.length() > start) {
+                Files.delete(tmpPiece.toPath());
+            } else {
+                log.info("Keeping the piece split off " + fileName + " at " + start + " before an interruption");
+                kept.add(Files.move(tmpPiece.toPath(), getSplitPiece(fileName, start, tmpPiece.toPath())).toFile());
+            }
+        }
+        return kept;
+    }
+
+    /**
+     * Name the piece of a file starting at a byte offset, keeping the file's suffix so the piece has the same type
+     */
+    private static Path getSplitPiece(String fileName, long start, Path tmpPiece) {
+        String suffix = getFileType(fileName).getSuffix();
+        String stem = fileName.substring(0, fileName.length() - suffix.length());
+        return tmpPiece.resolveSibling(stem + "_at" + start + suffix);
+    }
+
+    /**
+     * @return the first position at or after from, and before end, that starts a record, -1 if there isn't one
+     */
+    private static long findRecordStartFrom(FileChannel in, ByteBuffer buffer, long from, long end) throws IOException {
+        // A record starts right after a new line, so look for one from the byte before
+        long position = from - 1;
+        while (position < end - 1) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - 1 - position));
+            int read = in.read(buffer, position);
+            if (read <= 0) {
+                break;
+            }
+            for (int i = 0; i < read; i++) {
+                if (buffer.get(i) == NEW_LINE) {
+                    return position + i + 1;
+                }
+            }
+            position += read;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the last position after the start of the file and before before that starts a record, 0 if there isn't one
+     */
+    private static long findRecordStartBefore(FileChannel in, ByteBuffer buffer, long before) throws IOException {
+        long end = before - 1;
+        while (end > 0) {
+            long position = Math.max(0, end - buffer.capacity());
+            buffer.clear();
+            buffer.limit((int) (end - position));
+            int read = in.read(buffer, position);
+            if (read <= 0) {
+                break;
+            }
+            for (int i = read - 1; i >= 0; i--) {
+                if (buffer.get(i) == NEW_LINE) {
+                    return position + i + 1;
+                }
+            }
+            end = position;
+        }
+        return 0;
+    }
+
     /**
      * Delete a list of files
      *
@@ -128,14 +615,29 @@ public final class FileUtils {
      * @return the list of files
      */
     public static List<File> listFiles(String fileLoc, FileOutputType type) {
-        File dir = new File(fileLoc);
-        File[] files = dir.listFiles();
-        if (files == null || files.length == 0) {
-            return new ArrayList<>();
-        }
-        return Stream.of(files)
-                .filter(f -> type == getFileType(f.getName()))
-                .collect(Collectors.toList());
+        return listFiles(fileLoc, type, JobDirLayout.flat());
+    }
+
+    /**
+     * Given a streaming or finished directory, retrieve either error or data files from all of its shards
+     *
+     * @param fileLoc - the location
+     * @param type - type of file
+     * @param layout - how the files are laid out in the directory
+     * @return the list of files
+     */
+    public static List<File> listFiles(String fileLoc, FileOutputType type, JobDirLayout layout) {
+        List<File> files = new ArrayList<>();
+        try {
+            layout.forEachFile(new File(fileLoc), path -> {
+                if (type == getFileType(path.getFileName().toString())) {
+                    files.add(path.toFile());
+                }
+            });
+        } catch (IOException ex) {
+            log.error("Unable to list " + fileLoc, ex);
+        }
+        return files;
     }
 
     /**
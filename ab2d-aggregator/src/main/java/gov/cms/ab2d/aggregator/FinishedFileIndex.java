@@ -0,0 +1,254 @@
+package gov.cms.ab2d.aggregator;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static gov.cms.ab2d.aggregator.FileOutputType.UNKNOWN;
+import static gov.cms.ab2d.aggregator.FileOutputType.getFileType;
+
+/**
+ * A live, in memory view of the files in the finished directory with their sizes and types. Files in the
+ * finished directory don't change once they are there so we only need to go to the file system once per file. The
+ * one exception is a file the aggregator splits because it is too big for a part, and the aggregator tells the index
+ * its new size itself.
+ *
+ * The index can be kept up to date two ways:
+ * <ul>
+ *     <li>Scanning - every refresh lists the finished directory, checks the size of any file it hasn't seen before
+ *     and forgets any file that is no longer there. This is the default.</li>
+ *     <li>Event fed - ClaimsStream completions (same JVM) or directory events tell the index about each new file
+ *     and refresh doesn't touch the file system unless the index has been marked stale.</li>
+ * </ul>
+ *
+ * Parts are planned with the uncompressed size of the data, so each gzip file is indexed with both its uncompressed
+ * size and its size on disk. A ClaimsStream passes both along with its event. A gzip file the index only finds by
+ * scanning is read through once to count its uncompressed bytes.
+ *
+ * The aggregator removes files from the index as it combines and deletes them.
+ */
+@Slf4j
+public class FinishedFileIndex {
+    private final Path finishedDir;
+    private final Map<FileOutputType, Map<Path, FileReferenceHolder>> files = new EnumMap<>(FileOutputType.class);
+    private final AtomicBoolean stale = new AtomicBoolean(true);
+    private volatile boolean eventFed;
+
+    public FinishedFileIndex(String finishedDir) {
+        this.finishedDir = Path.of(finishedDir);
+        for (FileOutputType type : FileOutputType.values()) {
+            files.put(type, new ConcurrentHashMap<>());
+        }
+    }
+
+    /**
+     * A plain file has been moved to the finished directory and we already know its size
+     *
+     * @param file - the finished file
+     * @param size - its size in bytes
+     */
+    public void fileFinished(File file, long size) {
+        fileFinished(file, size, size, System.currentTimeMillis());
+    }
+
+    /**
+     * A plain file has been moved to the finished directory and we already know its size and when it was finished
+     *
+     * @param file - the finished file
+     * @param size - its size in bytes
+     * @param finishedMillis - when it was finished
+     */
+    public void fileFinished(File file, long size, long finishedMillis) {
+        fileFinished(file, size, size, finishedMillis);
+    }
+
+    /**
+     * A file has been moved to the finished directory and we already know its sizes and when it was finished. A file
+     * already in the index, like one the aggregator has split, keeps the time it was first finished
+     *
+     * @param file - the finished file
+     * @param size - the size of its data in bytes, uncompressed if it is a gzip file
+     * @param diskSize - its size on disk in bytes
+     * @param finishedMillis - when it was finished
+     */
+    public void fileFinished(File file, long size, long diskSize, long finishedMillis) {
+        FileOutputType type = getFileType(file.getName());
+        if (type != UNKNOWN) {
+            Path path = file.toPath().toAbsolutePath();
+            files.get(type).merge(path, new FileReferenceHolder(path.toFile(), size, diskSize, finishedMillis),
+                    (known, update) -> new FileReferenceHolder(known.getFile(), update.getSize(),
+                            update.getDiskSize(), Math.min(known.getFinishedMillis(), update.getFinishedMillis())));
+        }
+    }
+
+    /**
+     * A file has appeared in the finished directory but we don't know its size yet
+     *
+     * @param file - the new file
+     */
+    public void fileCreated(Path file) {
+        FileOutputType type = getFileType(file.getFileName().toString());
+        if (type == UNKNOWN) {
+            return;
+        }
+        try {
+            // The rename into the finished directory keeps the time the stream last wrote to the file
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            long size = type.isCompressed() && attributes.size() > 0
+                    ? FileUtils.getUncompressedSize(file.toFile()) : attributes.size();
+            fileFinished(file.toFile(), size, attributes.size(), attributes.lastModifiedTime().toMillis());
+        } catch (NoSuchFileException ex) {
+            // Already gone, nothing to index
+        } catch (IOException ex) {
+            log.error("Unable to get the size of " + file + ", rescanning the finished directory", ex);
+            markStale();
+        }
+    }
+
+    /**
+     * The index may have missed some files, the next refresh will rescan the finished directory
+     */
+    public void markStale() {
+        stale.set(true);
+    }
+
+    /**
+     * If true, refresh only goes to the file system when the index has been marked stale
+     *
+     * @param eventFed - whether something is telling the index about every new file
+     */
+    public void setEventFed(boolean eventFed) {
+        this.eventFed = eventFed;
+    }
+
+    public boolean isEventFed() {
+        return eventFed;
+    }
+
+    /**
+     * Bring the index up to date with the finished directory if it isn't being fed events or has been
+     * marked stale
+     */
+    public void refresh() {
+        if (stale.getAndSet(false) || !eventFed) {
+            rescan();
+        }
+    }
+
+    private void rescan() {
+        // Only forget files we knew about before the scan started. Anything added while we're scanning came
+        // from an event and is newer than our listing
+        Set<Path> missing = new HashSet<>();
+        files.values().forEach(m -> missing.addAll(m.keySet()));
+
+        if (Files.isDirectory(finishedDir)) {
+            // With a sharded layout this goes through the shards one at a time
+            JobDirLayout layout = JobDirLayout.forJob(finishedDir.toAbsolutePath().getParent().toString());
+            try {
+                layout.forEachFile(finishedDir.toFile(), path -> {
+                    Path file = path.toAbsolutePath();
+                    if (!missing.remove(file) && !contains(file)) {
+                        fileCreated(file);
+                    }
+                });
+            } catch (IOException ex) {
+                log.error("Unable to list the finished directory " + finishedDir, ex);
+                markStale();
+            }
+        }
+        missing.forEach(this::remove);
+    }
+
+    private boolean contains(Path file) {
+        return files.get(getFileType(file.getFileName().toString())).containsKey(file);
+    }
+
+    private void remove(Path file) {
+        files.get(getFileType(file.getFileName().toString())).remove(file);
+    }
+
+    /**
+     * Forget files, usually because they have been aggregated and deleted
+     *
+     * @param toRemove - the files to forget
+     */
+    public void remove(Collection<File> toRemove) {
+        toRemove.forEach(f -> remove(f.toPath().toAbsolutePath()));
+    }
+
+    /**
+     * Get the indexed files of one or more types, smallest first
+     *
+     * @param types - the types of file
+     * @return the files and their sizes ordered by size
+     */
+    public List<FileReferenceHolder> getSortedFiles(FileOutputType... types) {
+        return Stream.of(types)
+                .flatMap(type -> files.get(type).values().stream())
+                .sorted(Comparator.comparingLong(FileReferenceHolder::getSize))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Get the total size of the indexed files of one or more types
+     *
+     * @param types - the types of file
+     * @return the total size in bytes
+     */
+    public long getSize(FileOutputType... types) {
+        return Stream.of(types)
+                .flatMap(type -> files.get(type).values().stream())
+                .mapToLong(FileReferenceHolder::getSize)
+                .sum();
+    }
+
+    /**
+     * Get when the oldest indexed file of one or more types was finished
+     *
+     * @param types - the types of file
+     * @return the time the oldest file was finished, 0 if there are no files
+     */
+    public long getOldestFinishedMillis(FileOutputType... types) {
+        return Stream.of(types)
+                .flatMap(type -> files.get(type).values().stream())
+                .mapToLong(FileReferenceHolder::getFinishedMillis)
+                .min()
+                .orElse(0);
+    }
+
+    /**
+     * Remove the empty files of every type from the index
+     *
+     * @return the empty files that were removed
+     */
+    public List<File> removeEmptyFiles() {
+        List<File> empty = new ArrayList<>();
+        for (Map<Path, FileReferenceHolder> typeFiles : files.values()) {
+            typeFiles.values().removeIf(f -> {
+                if (f.getSize() == 0) {
+                    empty.add(f.getFile());
+                    return true;
+                }
+                return false;
+            });
+        }
+        return empty;
+    }
+}
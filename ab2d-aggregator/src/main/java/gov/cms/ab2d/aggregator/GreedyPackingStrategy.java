@@ -0,0 +1,53 @@
+package gov.cms.ab2d.aggregator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.ListIterator;
+
+/**
+ * The original packing strategy. This isn't a complicated algorithm. It sorts the files by size and grabs files
+ * from largest to smallest. If it gets to a file that will make it exceed the max size, it skips that file and goes
+ * to the next file and attempts to include that. It continues down the entire list.
+ *
+ * For example, if we had a list with file sizes: 9, 5, 3, 2 and we had a max size of 13,
+ * we'd first grab 9, but 5 would put us over the top so we skip it, we'd keep 3 because that
+ * wouldn't be more than 13, but the next value 2 puts us over the top.
+ *
+ * Only plans one part at a time.
+ */
+public class GreedyPackingStrategy implements PackingStrategy {
+
+    @Override
+    public List<PlannedPart> plan(List<FileReferenceHolder> sortedFiles, long maxFileSize) {
+        // If there are no files, return an empty list
+        if (sortedFiles == null || sortedFiles.isEmpty()) {
+            return new ArrayList<>();
+        }
+
+        // If there is only one file, return it - we have no other choice
+        if (sortedFiles.size() == 1) {
+            return List.of(new PlannedPart(sortedFiles));
+        }
+
+        // If the largest file is larger than the max file size, it's not great but should
+        // be returned
+        FileReferenceHolder largest = sortedFiles.get(sortedFiles.size() - 1);
+        if (largest.getSize() > maxFileSize) {
+            return List.of(new PlannedPart(List.of(largest)));
+        }
+
+        PlannedPart part = new PlannedPart();
+
+        // Add the large files first - iterate backwards until we're over the top on the next item.
+        // Find the first next biggest files that will add up to the max file size
+        ListIterator<FileReferenceHolder> bigIter = sortedFiles.listIterator(sortedFiles.size());
+        while (bigIter.hasPrevious()) {
+            FileReferenceHolder fd = bigIter.previous();
+            if (part.getSize() + fd.getSize() > maxFileSize) {
+                continue;
+            }
+            part.add(fd);
+        }
+        return List.of(part);
+    }
+}
@@ -0,0 +1,119 @@
+package gov.cms.ab2d.aggregator;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes a single gzip member (RFC 1952) using a Deflater borrowed from a pool instead of allocating a new one
+ * (and its native memory) for every stream like GZIPOutputStream does. The Deflater is reset and returned to the
+ * pool when the stream is closed.
+ *
+ * Nothing at all is written if no data is, so an empty stream results in an empty file rather than a gzip member
+ * with no data. That lets the aggregator treat it like any other empty file.
+ */
+final class GzipMemberOutputStream extends DeflaterOutputStream {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_POOLED_DEFLATERS = 256;
+    private static final Queue<Deflater> DEFLATERS = new ConcurrentLinkedQueue<>();
+
+    private static final byte[] HEADER = {
+        (byte) 0x1f, (byte) 0x8b, // Magic number
+        Deflater.DEFLATED,        // Compression method
+        0,                        // Flags
+        0, 0, 0, 0,               // Modification time
+        0,                        // Extra flags
+        (byte) 0xff               // Operating system (unknown)
+    };
+    private static final int TRAILER_SIZE = 8;
+
+    private final CRC32 crc = new CRC32();
+    private boolean headerWritten;
+    private boolean done;
+    private boolean released;
+    private long compressedAtClose;
+
+    GzipMemberOutputStream(OutputStream out) {
+        super(out, borrowDeflater(), BUFFER_SIZE);
+    }
+
+    private static Deflater borrowDeflater() {
+        Deflater deflater = DEFLATERS.poll();
+        return deflater != null ? deflater : new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return;
+        }
+        if (!headerWritten) {
+            out.write(HEADER);
+            headerWritten = true;
+        }
+        super.write(b, off, len);
+        crc.update(b, off, len);
+    }
+
+    @Override
+    public void finish() throws IOException {
+        if (done) {
+            return;
+        }
+        done = true;
+        if (headerWritten) {
+            super.finish();
+            writeTrailer();
+        }
+    }
+
+    private void writeTrailer() throws IOException {
+        byte[] trailer = new byte[TRAILER_SIZE];
+        writeInt(trailer, 0, (int) crc.getValue());
+        writeInt(trailer, 4, (int) def.getBytesRead());
+        out.write(trailer);
+    }
+
+    private static void writeInt(byte[] buf, int offset, int value) {
+        buf[offset] = (byte) value;
+        buf[offset + 1] = (byte) (value >> 8);
+        buf[offset + 2] = (byte) (value >> 16);
+        buf[offset + 3] = (byte) (value >> 24);
+    }
+
+    /**
+     * @return the number of bytes of gzip data written so far, including the header and trailer
+     */
+    long getCompressedBytes() {
+        if (released) {
+            return compressedAtClose;
+        }
+        if (!headerWritten) {
+            return 0;
+        }
+        return HEADER.length + def.getBytesWritten() + (done ? TRAILER_SIZE : 0);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            super.close();
+        } finally {
+            if (!released) {
+                // The deflater's counts are gone once it is reset and it may be in use by another stream after that
+                compressedAtClose = getCompressedBytes();
+                released = true;
+                def.reset();
+                if (DEFLATERS.size() < MAX_POOLED_DEFLATERS) {
+                    DEFLATERS.offer(def);
+                } else {
+                    def.end();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package gov.cms.ab2d.aggregator;
+
+import lombok.Getter;
+
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coordinates a job whose worker and aggregator share a JVM with two latches instead of deleting directories.
+ * Both sides get the same coordinator by registering the job directory, the way they find the job's JobSignal:
+ *
+ * // aggregator
+ * callable.setCoordinator(InProcessJobCoordinator.register(jobDir));
+ * // worker, once every stream is closed
+ * InProcessJobCoordinator coordinator = InProcessJobCoordinator.register(jobDir);
+ * coordinator.streamingDone();
+ * coordinator.awaitAggregation(1, TimeUnit.HOURS);
+ * coordinator.close();
+ *
+ * streamingDone writes out the job's StreamCoalescer if it has one and fires the job's JobSignal, so an aggregator
+ * in the IN_PROCESS trigger mode starts its final pass right away. The streaming and finished directories are left
+ * behind, empty, for whoever cleans up the job. Only the job's saved JobDirLayout is deleted once it is aggregated.
+ */
+public final class InProcessJobCoordinator implements JobCoordinator, AutoCloseable {
+    private static final Map<String, InProcessJobCoordinator> COORDINATORS = new ConcurrentHashMap<>();
+
+    @Getter
+    private final String jobDir;
+    private final CountDownLatch streaming = new CountDownLatch(1);
+    private final CountDownLatch aggregation = new CountDownLatch(1);
+
+    private InProcessJobCoordinator(String jobDir) {
+        this.jobDir = jobDir;
+    }
+
+    /**
+     * Register (or retrieve the already registered) coordinator for a job
+     *
+     * @param jobDir - the job directory (the base directory plus the job id)
+     * @return the coordinator for the job
+     */
+    public static InProcessJobCoordinator register(String jobDir) {
+        return COORDINATORS.computeIfAbsent(key(jobDir), InProcessJobCoordinator::new);
+    }
+
+    @Override
+    public void streamingDone() {
+        StreamCoalescer.finish(jobDir);
+        JobDirLayout.forget(jobDir);
+        streaming.countDown();
+        JobSignal.signal(jobDir);
+    }
+
+    @Override
+    public boolean isStreamingDone() {
+        return streaming.getCount() == 0;
+    }
+
+    @Override
+    public void aggregationDone() {
+        if (!isStreamingDone()) {
+            throw new IllegalStateException("The job can't be aggregated before it is done streaming");
+        }
+        JobDirLayout.delete(jobDir);
+        aggregation.countDown();
+    }
+
+    @Override
+    public boolean isAggregationDone() {
+        return aggregation.getCount() == 0;
+    }
+
+    @Override
+    public boolean awaitAggregation(long timeout, TimeUnit unit) throws InterruptedException {
+        return aggregation.await(timeout, unit);
+    }
+
+    /**
+     * Unregister the coordinator once both sides are done with it. A job registered again gets a new one
+     */
+    @Override
+    public void close() {
+        COORDINATORS.remove(jobDir, this);
+    }
+
+    private static String key(String jobDir) {
+        return Path.of(jobDir).toAbsolutePath().normalize().toString();
+    }
+}
@@ -0,0 +1,198 @@
+package gov.cms.ab2d.aggregator;
+
+import lombok.Getter;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads a plain part from anywhere in it using its PartIndex, so that a download can ask for records N to M, start
+ * at a patient's first record, or pick up where it broke off without the part being read from the start.
+ *
+ * try (IndexedPartReader reader = new IndexedPartReader(Path.of(jobDir, "Z0001_0001.ndjson"))) {
+ *     InputStream records = reader.openRecords(5000, 6000);
+ *     ...
+ * }
+ *
+ * Finding a record reads at most interval records forward from the sample before it. Streams read the part with
+ * positional reads, so several can be open at once, but they stop working when the reader is closed.
+ */
+public class IndexedPartReader implements Closeable {
+    private static final int SCAN_BUFFER_SIZE = 64 * 1024;
+
+    private final FileChannel channel;
+    @Getter
+    private final PartIndex index;
+
+    /**
+     * Open a part and read its sidecar index, which has to be next to it
+     *
+     * @param part - the part
+     * @throws IOException if the part or its index can't be read
+     */
+    public IndexedPartReader(Path part) throws IOException {
+        this(part, PartIndex.read(part.resolveSibling(PartIndex.getSidecarName(part.getFileName().toString()))));
+    }
+
+    /**
+     * @param part - the part
+     * @param index - its index
+     * @throws IOException if the part can't be opened
+     */
+    public IndexedPartReader(Path part, PartIndex index) throws IOException {
+        this.index = index;
+        this.channel = FileChannel.open(part, StandardOpenOption.READ);
+    }
+
+    /**
+     * @return the number of records in the part
+     */
+    public long getRecordCount() {
+        return index.getRecordCount();
+    }
+
+    /**
+     * @param record - a record number, starting at 0
+     * @return where the record starts in the part, the end of the part if there aren't that many records
+     * @throws IOException if the part can't be read
+     */
+    public long getRecordOffset(long record) throws IOException {
+        if (record >= index.getRecordCount()) {
+            return index.getByteCount();
+        }
+        long offset = index.getSampledOffset(record);
+        long toSkip = record - index.getSampledRecord(record);
+        ByteBuffer buffer = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+        while (toSkip > 0) {
+            buffer.clear();
+            int read = channel.read(buffer, offset);
+            if (read < 0) {
+                throw new IOException("The part is shorter than its index");
+            }
+            for (int i = 0; i < read && toSkip > 0; i++) {
+                offset++;
+                if (buffer.get(i) == '\n') {
+                    toSkip--;
+                }
+            }
+        }
+        return offset;
+    }
+
+    /**
+     * @param patientId - a patient id
+     * @return where the patient's first record starts in the part, -1 if the patient has no records in it
+     */
+    public long getPatientOffset(String patientId) {
+        int patient = index.findPatient(patientId);
+        return patient < 0 ? -1 : index.getPatientOffset(patient);
+    }
+
+    /**
+     * @param record - the first record to read, starting at 0
+     * @return the rest of the part from that record on
+     * @throws IOException if the part can't be read
+     */
+    public InputStream openAtRecord(long record) throws IOException {
+        return openRange(getRecordOffset(record), index.getByteCount());
+    }
+
+    /**
+     * @param from - the first record to read, starting at 0
+     * @param to - the record after the last one to read
+     * @return the records from up to to
+     * @throws IOException if the part can't be read
+     */
+    public InputStream openRecords(long from, long to) throws IOException {
+        if (to < from) {
+            throw new IllegalArgumentException("Records " + from + " to " + to + " is not a range");
+        }
+        long start = getRecordOffset(from);
+        return openRange(start, getRecordOffset(to));
+    }
+
+    /**
+     * Open the part at a patient's first record. The index only knows where each patient starts, and a patient's
+     * records aren't always together, so this isn't just the patient's records: the stream runs to the end of the
+     * part and the caller stops reading when it has what it wants
+     *
+     * @param patientId - a patient id
+     * @return the rest of the part from the patient's first record on, null if the patient has no records in it
+     */
+    public InputStream openAtPatient(String patientId) {
+        long offset = getPatientOffset(patientId);
+        return offset < 0 ? null : openRange(offset, index.getByteCount());
+    }
+
+    /**
+     * Resume a download that broke off, from the byte after the last one received
+     *
+     * @param offset - the number of bytes already received
+     * @return the rest of the part
+     */
+    public InputStream openAtOffset(long offset) {
+        return openRange(Math.min(offset, index.getByteCount()), index.getByteCount());
+    }
+
+    private InputStream openRange(long start, long end) {
+        return new RangeInputStream(start, end);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Reads a range of the part with positional reads, leaving the channel's position alone
+     */
+    private class RangeInputStream extends InputStream {
+        private long position;
+        private final long end;
+
+        RangeInputStream(long start, long end) {
+            this.position = start;
+            this.end = end;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (position >= end) {
+                return -1;
+            }
+            int toRead = (int) Math.min(len, end - position);
+            int read = channel.read(ByteBuffer.wrap(b, off, toRead), position);
+            if (read < 0) {
+                return -1;
+            }
+            position += read;
+            return read;
+        }
+
+        @Override
+        public long skip(long n) {
+            long skipped = Math.max(0, Math.min(n, end - position));
+            position += skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, end - position);
+        }
+    }
+}
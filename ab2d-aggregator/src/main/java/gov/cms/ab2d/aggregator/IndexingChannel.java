@@ -0,0 +1,166 @@
+package gov.cms.ab2d.aggregator;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Passes a part through to its channel while building its PartIndex. Every byte is looked at once as it goes by:
+ * new lines end records, and if patients are indexed the first "patient":{"reference":"Patient/...} in a record
+ * gives its patient. Only the first record of each patient is kept. Records and references can be split across
+ * writes.
+ *
+ * Wrapping the part's FileChannel means FileChannel.transferTo can't hand the data straight to the file anymore,
+ * the JDK copies it through a buffer instead, so the index costs a copy of the part.
+ */
+public final class IndexingChannel implements WritableByteChannel {
+    private static final byte[] PATIENT_REFERENCE = "\"patient\":{\"reference\":\"Patient/"
+            .getBytes(StandardCharsets.UTF_8);
+    private static final int MAX_PATIENT_ID = 64;
+
+    private final WritableByteChannel out;
+    private final int interval;
+    private final boolean indexPatients;
+
+    private long offset;
+    private long records;
+    private boolean recordStarted;
+    private long recordOffset;
+    private final List<Long> samples = new ArrayList<>();
+
+    // Matching the patient reference in the current record
+    private int matched;
+    private boolean patientFound;
+    private final byte[] patientId = new byte[MAX_PATIENT_ID];
+    private int patientIdLength;
+    private String lastPatient;
+    private final Map<String, long[]> patients = new HashMap<>();
+
+    /**
+     * @param out - where the part goes
+     * @param interval - sample the offset of every interval'th record
+     * @param indexPatients - also index where each patient's records start
+     */
+    public IndexingChannel(WritableByteChannel out, int interval, boolean indexPatients) {
+        if (interval < 1) {
+            throw new IllegalArgumentException("The index interval must be at least 1");
+        }
+        this.out = out;
+        this.interval = interval;
+        this.indexPatients = indexPatients;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        int start = src.position();
+        int end = src.limit();
+        for (int i = start; i < end; i++) {
+            scan(src.get(i));
+        }
+        while (src.hasRemaining()) {
+            out.write(src);
+        }
+        return end - start;
+    }
+
+    private void scan(byte b) {
+        if (!recordStarted) {
+            startRecord();
+        }
+        if (b == '\n') {
+            endRecord();
+        } else if (indexPatients && !patientFound) {
+            matchPatient(b);
+        }
+        offset++;
+    }
+
+    private void startRecord() {
+        recordStarted = true;
+        recordOffset = offset;
+        if (records % interval == 0) {
+            samples.add(offset);
+        }
+        records++;
+        matched = 0;
+        patientIdLength = 0;
+    }
+
+    private void endRecord() {
+        if (indexPatients && matched == PATIENT_REFERENCE.length && patientIdLength > 0) {
+            // The record ended inside the id, take what there was
+            foundPatient();
+        }
+        recordStarted = false;
+        patientFound = false;
+    }
+
+    private void matchPatient(byte b) {
+        if (matched < PATIENT_REFERENCE.length) {
+            if (PATIENT_REFERENCE[matched] == b) {
+                matched++;
+            } else {
+                // No prefix of the reference appears later in it, so a mismatch only ever restarts the match
+                matched = PATIENT_REFERENCE[0] == b ? 1 : 0;
+            }
+        } else if (b == '"' || patientIdLength == MAX_PATIENT_ID) {
+            foundPatient();
+        } else {
+            patientId[patientIdLength++] = b;
+        }
+    }
+
+    private void foundPatient() {
+        patientFound = true;
+        matched = 0;
+        String patient = new String(patientId, 0, patientIdLength, StandardCharsets.UTF_8);
+        // EOBs of a patient usually come together, only look up the map when the patient changes
+        if (!patient.equals(lastPatient)) {
+            patients.putIfAbsent(patient, new long[] {records - 1, recordOffset});
+            lastPatient = patient;
+        }
+    }
+
+    /**
+     * @return the index of everything written so far
+     */
+    public PartIndex toIndex() {
+        long[] sampleOffsets = samples.stream().mapToLong(Long::longValue).toArray();
+        List<Map.Entry<String, long[]>> sorted = new ArrayList<>(patients.entrySet());
+        sorted.sort(Map.Entry.comparingByKey());
+        String[] ids = new String[sorted.size()];
+        long[] patientRecords = new long[sorted.size()];
+        long[] patientOffsets = new long[sorted.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = sorted.get(i).getKey();
+            patientRecords[i] = sorted.get(i).getValue()[0];
+            patientOffsets[i] = sorted.get(i).getValue()[1];
+        }
+        return new PartIndex(interval, records, offset, sampleOffsets, ids, patientRecords, patientOffsets);
+    }
+
+    /**
+     * @return the number of records written so far
+     */
+    public long getRecords() {
+        return records;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return out.isOpen();
+    }
+
+    /**
+     * Leaves the wrapped channel open, it belongs to whoever created it
+     */
+    @Override
+    public void close() {
+        // Nothing of its own to close
+    }
+}
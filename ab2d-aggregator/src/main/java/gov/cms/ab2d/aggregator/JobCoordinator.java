@@ -0,0 +1,46 @@
+package gov.cms.ab2d.aggregator;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How the worker and the aggregator of a job tell each other they are done. The worker says it is done streaming
+ * data, so the aggregator can combine whatever is left, and the aggregator says it is done aggregating, so the
+ * worker can hand the parts over.
+ *
+ * FileSystemJobCoordinator is the original protocol of JobHelper: the worker deletes the streaming directory, the
+ * aggregator deletes the finished directory and both sides check whether the directories are still there. It works
+ * across JVMs. InProcessJobCoordinator does the same with latches when the worker and the aggregator share a JVM,
+ * which takes microseconds and never touches the file system.
+ */
+public interface JobCoordinator {
+
+    /**
+     * Called by the worker once every stream of the job has been closed
+     */
+    void streamingDone();
+
+    /**
+     * @return true if the worker is done streaming data
+     */
+    boolean isStreamingDone();
+
+    /**
+     * Called by the aggregator once it has combined everything the worker streamed
+     */
+    void aggregationDone();
+
+    /**
+     * @return true if the job is completely aggregated. Never true before streaming is done
+     */
+    boolean isAggregationDone();
+
+    /**
+     * Wait for the job to be completely aggregated
+     *
+     * @param timeout - the longest to wait
+     * @param unit - the unit of the timeout
+     * @return true if the job is aggregated, false if the timeout elapsed first
+     * @throws InterruptedException if interrupted while waiting
+     */
+    boolean awaitAggregation(long timeout, TimeUnit unit) throws InterruptedException;
+}
@@ -0,0 +1,248 @@
+package gov.cms.ab2d.aggregator;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * How the files in a job's streaming and finished directories are laid out. By default they are flat, every file
+ * directly in the directory. A job with tens of thousands of batches can be sharded instead, so that each file goes
+ * into one of a fixed number of subdirectories (finished/00, finished/01, ... finished/ff) picked by a hash of its
+ * name and no directory gets big enough for listing it to dominate the aggregator:
+ *
+ * JobHelper.workerSetUpJobDirectories(jobId, efsMount, STREAMING, FINISHED, JobDirLayout.sharded(256));
+ *
+ * The layout is saved in the job directory when it is set up, and ClaimsStream, the aggregator and everything else
+ * that looks at the directories read it from there, so a job's worker and aggregator can be in different JVMs.
+ * A job's layout is cached once it has been read from its file, or saved in this JVM. A job without a file isn't
+ * cached, so a node that looks before the worker has saved a sharded layout picks it up later. When the job is
+ * aggregated (JobHelper.aggregatorFinishJob or InProcessJobCoordinator.aggregationDone) the file is deleted and the
+ * layout forgotten.
+ */
+@Slf4j
+@Getter
+public final class JobDirLayout {
+    public static final String FILE_NAME = ".layout";
+    public static final int MAX_SHARDS = 4096;
+
+    private static final JobDirLayout FLAT = new JobDirLayout(0);
+    private static final Map<String, JobDirLayout> JOBS = new ConcurrentHashMap<>();
+    private static final String SHARDS = "shards=";
+
+    // 0 for a flat layout
+    private final int shards;
+    private final int shardNameLength;
+    // Spreads files whose names we don't know yet, like temp files, over the shards
+    @Getter(AccessLevel.NONE)
+    private final AtomicInteger nextShard = new AtomicInteger();
+
+    private JobDirLayout(int shards) {
+        this.shards = shards;
+        this.shardNameLength = Math.max(2, Integer.toHexString(Math.max(shards - 1, 0)).length());
+    }
+
+    /**
+     * @return the default layout, every file directly in its directory
+     */
+    public static JobDirLayout flat() {
+        return FLAT;
+    }
+
+    /**
+     * @param shards - the number of subdirectories, from 2 to MAX_SHARDS
+     * @return a layout that spreads the files over that many subdirectories
+     */
+    public static JobDirLayout sharded(int shards) {
+        if (shards < 2 || shards > MAX_SHARDS) {
+            throw new IllegalArgumentException("A sharded layout needs between 2 and " + MAX_SHARDS + " shards");
+        }
+        return new JobDirLayout(shards);
+    }
+
+    public boolean isSharded() {
+        return shards > 0;
+    }
+
+    /**
+     * @param jobDir - the job directory (the base directory plus the job id)
+     * @return the layout the job was set up with, flat if it wasn't set up with one
+     */
+    public static JobDirLayout forJob(String jobDir) {
+        String key = key(jobDir);
+        JobDirLayout layout = JOBS.get(key);
+        if (layout != null) {
+            return layout;
+        }
+        layout = read(Path.of(key, FILE_NAME));
+        if (layout == null) {
+            // Nothing saved, or not yet
+            return FLAT;
+        }
+        JobDirLayout cached = JOBS.putIfAbsent(key, layout);
+        return cached == null ? layout : cached;
+    }
+
+    /**
+     * Drop a job's layout from the cache, it is read again if the job is looked at after this
+     *
+     * @param jobDir - the job directory (the base directory plus the job id)
+     */
+    static void forget(String jobDir) {
+        JOBS.remove(key(jobDir));
+    }
+
+    /**
+     * Delete the saved layout of a job that has been aggregated and forget it, so it isn't left next to the parts
+     *
+     * @param jobDir - the job directory (the base directory plus the job id)
+     */
+    static void delete(String jobDir) {
+        String key = key(jobDir);
+        try {
+            Files.deleteIfExists(Path.of(key, FILE_NAME));
+        } catch (IOException ex) {
+            log.error("Unable to delete the directory layout of " + jobDir, ex);
+        }
+        JOBS.remove(key);
+    }
+
+    /**
+     * @return the layout saved in the file, null if there's no file
+     */
+    private static JobDirLayout read(Path file) {
+        try {
+            String saved = Files.readString(file, StandardCharsets.UTF_8).trim();
+            if (saved.startsWith(SHARDS)) {
+                return sharded(Integer.parseInt(saved.substring(SHARDS.length())));
+            }
+            return FLAT;
+        } catch (NoSuchFileException ex) {
+            return null;
+        } catch (IOException | IllegalArgumentException ex) {
+            throw new IllegalStateException("Unable to read the directory layout " + file, ex);
+        }
+    }
+
+    /**
+     * Save the layout of a job in its directory, which has to exist
+     *
+     * @param jobDir - the job directory (the base directory plus the job id)
+     * @throws IOException if the layout can't be saved
+     */
+    void save(String jobDir) throws IOException {
+        String key = key(jobDir);
+        Path file = Path.of(key, FILE_NAME);
+        if (isSharded()) {
+            Files.writeString(file, SHARDS + shards + "\n", StandardCharsets.UTF_8);
+        } else {
+            Files.deleteIfExists(file);
+        }
+        JOBS.put(key, this);
+    }
+
+    /**
+     * @param fileName - the name of a file
+     * @return the subdirectory it goes in, empty if the layout is flat
+     */
+    public String getShard(String fileName) {
+        if (!isSharded()) {
+            return "";
+        }
+        return getShardName(Math.floorMod(fileName.hashCode(), shards));
+    }
+
+    private String getShardName(int shard) {
+        StringBuilder name = new StringBuilder(Integer.toHexString(shard));
+        while (name.length() < shardNameLength) {
+            name.insert(0, '0');
+        }
+        return name.toString();
+    }
+
+    /**
+     * @param dir - the streaming or finished directory
+     * @param fileName - the name of a file
+     * @return where the file goes in the directory
+     */
+    public File locate(File dir, String fileName) {
+        if (!isSharded()) {
+            return new File(dir, fileName);
+        }
+        return new File(new File(dir, getShard(fileName)), fileName);
+    }
+
+    /**
+     * @param dir - the streaming or finished directory
+     * @return a directory to create a file in before its name is known, taking the shards in turn
+     */
+    File nextDirectory(File dir) {
+        if (!isSharded()) {
+            return dir;
+        }
+        return new File(dir, getShardName(Math.floorMod(nextShard.getAndIncrement(), shards)));
+    }
+
+    /**
+     * @param dir - the streaming or finished directory
+     * @return the directories its files are in, the directory itself if the layout is flat
+     */
+    public List<File> getDirectories(File dir) {
+        List<File> directories = new ArrayList<>();
+        if (!isSharded()) {
+            directories.add(dir);
+            return directories;
+        }
+        for (int shard = 0; shard < shards; shard++) {
+            directories.add(new File(dir, getShardName(shard)));
+        }
+        return directories;
+    }
+
+    /**
+     * Create the shards of a directory
+     *
+     * @param dir - the streaming or finished directory, which has to exist
+     * @throws IOException if a shard can't be created
+     */
+    void createShards(File dir) throws IOException {
+        for (File shard : getDirectories(dir)) {
+            Files.createDirectories(shard.toPath());
+        }
+    }
+
+    /**
+     * Go through every file in a directory, shard by shard, with a DirectoryStream so that the whole directory is
+     * never held in memory at once. Shards that don't exist are skipped
+     *
+     * @param dir - the streaming or finished directory
+     * @param action - what to do with each file
+     * @throws IOException if a directory can't be read
+     */
+    public void forEachFile(File dir, Consumer<Path> action) throws IOException {
+        for (File directory : getDirectories(dir)) {
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory.toPath())) {
+                stream.forEach(action);
+            } catch (NoSuchFileException ex) {
+                // Not created yet, or the job is over
+            }
+        }
+    }
+
+    private static String key(String jobDir) {
+        return Path.of(jobDir).toAbsolutePath().normalize().toString();
+    }
+}
@@ -22,6 +22,9 @@ import static gov.cms.ab2d.aggregator.FileUtils.deleteAllInDir;
  * The aggregator knows that there are still files to be streamed if the open streaming directory still exists.
  * The worker knows that there are still files to be aggregated if the finished streaming directory still exists.
  * When the aggregator is done, all the files will be aggregated into the main job directory
+ *
+ * This protocol is the FileSystemJobCoordinator. When the worker and the aggregator share a JVM, an
+ * InProcessJobCoordinator does the same without deleting anything.
  */
 public final class JobHelper {
     private JobHelper() { }
@@ -42,23 +45,55 @@ public final class JobHelper {
         createADir(baseDir + File.separator + jobId + File.separator + finishedDir);
     }
 
+    /**
+     * Create the job's directories with a layout for the streaming and finished files, saving the layout in the
+     * job directory for the streams and the aggregator to find
+     *
+     * @param jobId - the job id and the root directory
+     * @param layout - how the streaming and finished files are laid out
+     * @throws IOException if there is a problem creating the directories
+     */
+    public static void workerSetUpJobDirectories(String jobId, String baseDir, String streamDir, String finishedDir,
+                                                 JobDirLayout layout) throws IOException {
+        workerSetUpJobDirectories(jobId, baseDir, streamDir, finishedDir);
+        String jobDir = baseDir + File.separator + jobId;
+        layout.save(jobDir);
+        layout.createShards(new File(jobDir, streamDir));
+        layout.createShards(new File(jobDir, finishedDir));
+    }
+
 
     /**
-     * This allows the worker to send a message to the aggregator that it is done streaming data. This
-     * deletes the streaming directory
+     * This allows the worker to send a message to the aggregator that it is done streaming data. This writes out
+     * the job's StreamCoalescer if it has one, deletes the streaming directory, forgets the cached JobDirLayout and
+     * wakes up the aggregator if it is running in the same JVM
      *
      * @param streamingDir - the location where all finished files are put by the worker
      */
     public static void workerFinishJob(String streamingDir) {
+        File jobDir = new File(streamingDir).getAbsoluteFile().getParentFile();
+        if (jobDir != null) {
+            // Small streams still held in memory go to the finished directory before the aggregator can finish
+            StreamCoalescer.finish(jobDir.getAbsolutePath());
+        }
         deleteAllInDir(streamingDir);
+        if (jobDir != null) {
+            JobDirLayout.forget(jobDir.getAbsolutePath());
+            JobSignal.signal(jobDir.getAbsolutePath());
+        }
     }
 
     /**
-     * This allows the aggregator to let the job know that the aggregator has finished aggregating EOB files
+     * This allows the aggregator to let the job know that the aggregator has finished aggregating EOB files. The job's
+     * saved JobDirLayout is deleted as well
      *
      * @param finishedDir - the job id
      */
     public static void aggregatorFinishJob(String finishedDir) {
         deleteAllInDir(finishedDir);
+        File jobDir = new File(finishedDir).getAbsoluteFile().getParentFile();
+        if (jobDir != null) {
+            JobDirLayout.delete(jobDir.getAbsolutePath());
+        }
     }
 }
@@ -0,0 +1,166 @@
+package gov.cms.ab2d.aggregator;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * In-process signal between the worker threads writing out data and the aggregator of a job. When they share a
+ * JVM, the aggregator registers a signal for the job directory and ClaimsStream and JobHelper fire it every time a
+ * file is moved to the finished directory or the worker is done streaming. Firing a signal for a job that nobody
+ * has registered is a no-op, so writers don't need to know if the aggregator is running in the same process.
+ *
+ * If the aggregator attaches its index of finished files, ClaimsStream also tells the index about each finished
+ * file and its size so the aggregator never has to go looking for it.
+ *
+ * Signals are counted rather than flagged so a signal fired while the aggregator is busy aggregating is not lost,
+ * the next call to await returns immediately.
+ */
+public final class JobSignal implements AggregationTrigger {
+    private static final Map<String, JobSignal> SIGNALS = new ConcurrentHashMap<>();
+
+    private final String jobDir;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private long fired;
+    private long seen;
+    private volatile FinishedFileIndex index;
+    private volatile Runnable listener;
+
+    private JobSignal(String jobDir) {
+        this.jobDir = jobDir;
+    }
+
+    /**
+     * Register (or retrieve the already registered) signal for a job
+     *
+     * @param jobDir - the job directory (the base directory plus the job id)
+     * @return the signal for the job
+     */
+    public static JobSignal register(String jobDir) {
+        return SIGNALS.computeIfAbsent(key(jobDir), JobSignal::new);
+    }
+
+    /**
+     * Let the aggregator of a job know something changed. Ignored if there is no aggregator registered
+     *
+     * @param jobDir - the job directory (the base directory plus the job id)
+     */
+    public static void signal(String jobDir) {
+        JobSignal signal = SIGNALS.get(key(jobDir));
+        if (signal != null) {
+            signal.fire();
+        }
+    }
+
+    /**
+     * Let the aggregator of a job know a file has been moved to the finished directory. Ignored if there is no
+     * aggregator registered
+     *
+     * @param jobDir - the job directory (the base directory plus the job id)
+     * @param file - the file in the finished directory
+     * @param size - the size of the file
+     */
+    public static void fileFinished(String jobDir, File file, long size) {
+        fileFinished(jobDir, file, size, size);
+    }
+
+    /**
+     * Let the aggregator of a job know a file, usually a gzip one, has been moved to the finished directory. Ignored
+     * if there is no aggregator registered
+     *
+     * @param jobDir - the job directory (the base directory plus the job id)
+     * @param file - the file in the finished directory
+     * @param size - the size of the file's data, uncompressed
+     * @param diskSize - the size of the file on disk
+     */
+    public static void fileFinished(String jobDir, File file, long size, long diskSize) {
+        JobSignal signal = SIGNALS.get(key(jobDir));
+        if (signal != null) {
+            FinishedFileIndex finishedFiles = signal.index;
+            if (finishedFiles != null) {
+                finishedFiles.fileFinished(file, size, diskSize, System.currentTimeMillis());
+            }
+            signal.fire();
+        }
+    }
+
+    static boolean isRegistered(String jobDir) {
+        return SIGNALS.containsKey(key(jobDir));
+    }
+
+    /**
+     * Keep an index of finished files up to date with the files reported through this signal. Anything already in
+     * the finished directory is picked up by a rescan the next time the index is refreshed.
+     *
+     * @param finishedFiles - the index to feed
+     */
+    void attach(FinishedFileIndex finishedFiles) {
+        this.index = finishedFiles;
+        finishedFiles.setEventFed(true);
+        finishedFiles.markStale();
+    }
+
+    /**
+     * Run something every time the signal fires, in addition to waking up anyone waiting on it. This is how the
+     * AggregationScheduler finds out that a job it isn't waiting on has something new. The listener runs on the
+     * thread firing the signal so it should only hand the work off.
+     *
+     * @param listener - what to run, null to stop listening
+     */
+    void setListener(Runnable listener) {
+        this.listener = listener;
+    }
+
+    void fire() {
+        lock.lock();
+        try {
+            fired++;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        Runnable toRun = listener;
+        if (toRun != null) {
+            toRun.run();
+        }
+    }
+
+    @Override
+    public boolean await(long timeoutMillis) throws InterruptedException {
+        long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        lock.lock();
+        try {
+            while (fired == seen && remaining > 0) {
+                remaining = changed.awaitNanos(remaining);
+            }
+            boolean signalled = fired != seen;
+            seen = fired;
+            return signalled;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Unregister the signal. Writers that fire it afterwards are ignored.
+     */
+    @Override
+    public void close() {
+        SIGNALS.remove(jobDir, this);
+        listener = null;
+        FinishedFileIndex finishedFiles = index;
+        if (finishedFiles != null) {
+            finishedFiles.setEventFed(false);
+        }
+        fire();
+    }
+
+    private static String key(String jobDir) {
+        return Path.of(jobDir).toAbsolutePath().normalize().toString();
+    }
+}
@@ -0,0 +1,77 @@
+package gov.cms.ab2d.aggregator;
+
+import lombok.Getter;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Writes parts to a directory on local disk, the job directory unless the aggregator is given another sink. The
+ * channel handed out is the part's FileChannel itself, so plain finished files are still copied into the part by
+ * the file system with transferTo.
+ */
+@Getter
+public class LocalPartSink implements AggregatedPartSink {
+    private final Path directory;
+
+    public LocalPartSink(Path directory) {
+        this.directory = directory;
+    }
+
+    @Override
+    public PartOutput create(String partName) throws IOException {
+        Path part = directory.resolve(partName);
+        return new LocalPartOutput(part, FileChannel.open(part, CREATE, WRITE, TRUNCATE_EXISTING));
+    }
+
+    @Override
+    public String getLocation(String partName) {
+        return directory.resolve(partName).toString();
+    }
+
+    private static final class LocalPartOutput implements PartOutput {
+        private final Path part;
+        private final FileChannel channel;
+        private boolean sealed;
+
+        private LocalPartOutput(Path part, FileChannel channel) {
+            this.part = part;
+            this.channel = channel;
+        }
+
+        @Override
+        public WritableByteChannel getChannel() {
+            return channel;
+        }
+
+        @Override
+        public long getSize() throws IOException {
+            return channel.position();
+        }
+
+        @Override
+        public void seal(boolean durable) throws IOException {
+            if (durable) {
+                channel.force(true);
+            }
+            channel.close();
+            sealed = true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (sealed) {
+                return;
+            }
+            channel.close();
+            Files.deleteIfExists(part);
+        }
+    }
+}
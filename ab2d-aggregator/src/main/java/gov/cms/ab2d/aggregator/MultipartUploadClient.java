@@ -0,0 +1,56 @@
+package gov.cms.ab2d.aggregator;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * The calls to an S3 compatible object store that S3MultipartPartSink needs. The aggregator doesn't depend on an
+ * AWS SDK, the service writing parts to S3 adapts the client it already has (each method is a single S3Client
+ * call), and tests use a local stand-in.
+ */
+public interface MultipartUploadClient {
+
+    /**
+     * @param bucket - the bucket
+     * @param key - the object's key
+     * @return the id of the new upload
+     * @throws IOException if the upload can't be started
+     */
+    String createMultipartUpload(String bucket, String key) throws IOException;
+
+    /**
+     * Upload one chunk of an object. Every chunk but the last has to be at least 5 MB.
+     *
+     * @param bucket - the bucket
+     * @param key - the object's key
+     * @param uploadId - the id of the upload
+     * @param chunkNumber - the number of the chunk, from 1 to 10,000
+     * @param data - the chunk, from its position to its limit
+     * @return the chunk's ETag
+     * @throws IOException if the chunk can't be uploaded
+     */
+    String uploadPart(String bucket, String key, String uploadId, int chunkNumber, ByteBuffer data)
+            throws IOException;
+
+    /**
+     * Put the chunks together into the object, which then becomes visible
+     *
+     * @param bucket - the bucket
+     * @param key - the object's key
+     * @param uploadId - the id of the upload
+     * @param eTags - the ETags of the chunks, in chunk number order starting with chunk 1
+     * @throws IOException if the object can't be completed
+     */
+    void completeMultipartUpload(String bucket, String key, String uploadId, List<String> eTags) throws IOException;
+
+    /**
+     * Throw away an upload and the chunks uploaded for it
+     *
+     * @param bucket - the bucket
+     * @param key - the object's key
+     * @param uploadId - the id of the upload
+     * @throws IOException if the upload can't be aborted
+     */
+    void abortMultipartUpload(String bucket, String key, String uploadId) throws IOException;
+}
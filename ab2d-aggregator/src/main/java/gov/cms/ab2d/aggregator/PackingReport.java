@@ -0,0 +1,80 @@
+package gov.cms.ab2d.aggregator;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Keeps track of how well the aggregator is packing the output files of a job. The fill ratio is the bytes
+ * written divided by the bytes that would have been written if every part was exactly the max file size, so
+ * 1.0 means every part is full and the job has the fewest parts possible.
+ */
+public class PackingReport {
+    private final long maxFileSize;
+    private final Map<FileOutputType, long[]> partsAndBytes = new EnumMap<>(FileOutputType.class);
+
+    public PackingReport(long maxFileSize) {
+        this.maxFileSize = maxFileSize;
+    }
+
+    /**
+     * Record an output part
+     *
+     * @param type - the type of file written
+     * @param size - the size of the part in bytes
+     */
+    public synchronized void partWritten(FileOutputType type, long size) {
+        long[] counts = partsAndBytes.computeIfAbsent(type, t -> new long[2]);
+        counts[0]++;
+        counts[1] += size;
+    }
+
+    public synchronized long getParts(FileOutputType type) {
+        return partsAndBytes.getOrDefault(type, new long[2])[0];
+    }
+
+    /**
+     * @return the number of parts of every type written for the job
+     */
+    public synchronized long getParts() {
+        return partsAndBytes.values().stream().mapToLong(c -> c[0]).sum();
+    }
+
+    public synchronized long getBytes(FileOutputType type) {
+        return partsAndBytes.getOrDefault(type, new long[2])[1];
+    }
+
+    /**
+     * @param type - the type of file
+     * @return the fill ratio of the parts of that type, 0 if none have been written
+     */
+    public synchronized double getFillRatio(FileOutputType type) {
+        return fillRatio(getParts(type), getBytes(type));
+    }
+
+    /**
+     * @return the fill ratio of all the parts written for the job, 0 if none have been written
+     */
+    public synchronized double getFillRatio() {
+        long parts = partsAndBytes.values().stream().mapToLong(c -> c[0]).sum();
+        long bytes = partsAndBytes.values().stream().mapToLong(c -> c[1]).sum();
+        return fillRatio(parts, bytes);
+    }
+
+    private double fillRatio(long parts, long bytes) {
+        if (parts == 0 || maxFileSize <= 0) {
+            return 0;
+        }
+        return (double) bytes / ((double) parts * maxFileSize);
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder report = new StringBuilder();
+        partsAndBytes.forEach((type, counts) -> report.append(type).append(": ")
+                .append(counts[0]).append(" parts, ")
+                .append(counts[1]).append(" bytes, fill ratio ")
+                .append(String.format("%.3f", fillRatio(counts[0], counts[1]))).append("; "));
+        report.append("overall fill ratio ").append(String.format("%.3f", getFillRatio()));
+        return report.toString();
+    }
+}
@@ -0,0 +1,22 @@
+package gov.cms.ab2d.aggregator;
+
+import java.util.List;
+
+/**
+ * Decides how the files in the finished directory are grouped into output files. The aggregator asks for a plan
+ * every time it aggregates and combines the first part of the plan, so strategies should put the parts they most
+ * want written (usually the fullest) first. Parts that aren't written are planned again on the next pass with
+ * whatever new files have shown up.
+ */
+@FunctionalInterface
+public interface PackingStrategy {
+
+    /**
+     * Group files into output parts
+     *
+     * @param sortedFiles - the available files ordered by size, smallest first
+     * @param maxFileSize - the maximum size of an output part. A file larger than this must be put in a part by itself
+     * @return the planned parts in the order they should be written, empty if there is nothing to write
+     */
+    List<PlannedPart> plan(List<FileReferenceHolder> sortedFiles, long maxFileSize);
+}
@@ -0,0 +1,162 @@
+package gov.cms.ab2d.aggregator;
+
+import lombok.Getter;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Serves an aggregated part, or a byte range of it, into any WritableByteChannel (a socket, an HTTP response's
+ * channel, another file) without copying it through the heap:
+ *
+ * try (PartFileReader reader = new PartFileReader(Path.of(jobDir, "Z0001_0001.ndjson"))) {
+ *     long sent = reader.transferTo(Channels.newChannel(response.getOutputStream()), rangeStart, rangeLength);
+ * }
+ *
+ * The part is sent with FileChannel.transferTo, which the operating system can do in the kernel when the target is
+ * a socket or a file. If transferTo stops making progress the rest of the range is written from a mapped buffer.
+ *
+ * Gzip parts (DATA_COMPRESSED, ERROR_COMPRESSED) are sent as they are, for a client that accepts gzip, and ranges
+ * are ranges of the compressed bytes. transferDecompressed sends the ndjson for a client that doesn't, which has to
+ * go through the heap. A reader can serve many requests at once, the transfers don't move the channel's position.
+ * Targets are expected to be blocking channels.
+ */
+public class PartFileReader implements Closeable {
+    // How much is mapped at once when falling back from transferTo
+    static final int MAPPED_CHUNK_SIZE = 8 * 1024 * 1024;
+    private static final int DECOMPRESS_BUFFER_SIZE = 64 * 1024;
+
+    @Getter
+    private final Path part;
+    @Getter
+    private final FileOutputType type;
+    private final FileChannel channel;
+
+    // Every byte sent by this reader, for all transfers
+    private final AtomicLong bytesSent = new AtomicLong();
+
+    /**
+     * @param part - the part file
+     * @throws IOException if the part can't be opened
+     */
+    public PartFileReader(Path part) throws IOException {
+        this.part = part;
+        this.type = FileOutputType.getFileType(part.getFileName().toString());
+        this.channel = FileChannel.open(part, StandardOpenOption.READ);
+    }
+
+    /**
+     * @return true if the part is gzip, so it should be sent with Content-Encoding: gzip
+     */
+    public boolean isCompressed() {
+        return type.isCompressed();
+    }
+
+    /**
+     * @return the size of the part as stored, compressed if the part is
+     * @throws IOException if the size can't be read
+     */
+    public long getSize() throws IOException {
+        return channel.size();
+    }
+
+    /**
+     * @return the number of bytes this reader has sent so far
+     */
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    /**
+     * Send the whole part as it is stored
+     *
+     * @param target - where to send it
+     * @return the number of bytes sent
+     * @throws IOException if the part can't be read or the target can't be written
+     */
+    public long transferTo(WritableByteChannel target) throws IOException {
+        return transferTo(target, 0, getSize());
+    }
+
+    /**
+     * Send a byte range of the part as it is stored. A range running past the end of the part is cut short
+     *
+     * @param target - where to send it
+     * @param position - the first byte to send
+     * @param count - the number of bytes to send
+     * @return the number of bytes sent
+     * @throws IOException if the part can't be read or the target can't be written
+     */
+    public long transferTo(WritableByteChannel target, long position, long count) throws IOException {
+        if (position < 0 || count < 0) {
+            throw new IllegalArgumentException("Bad range " + position + " + " + count);
+        }
+        long end = Math.min(getSize(), position + count);
+        long sent = 0;
+        while (position + sent < end) {
+            long transferred = channel.transferTo(position + sent, end - position - sent, target);
+            if (transferred <= 0) {
+                transferred = transferMapped(target, position + sent, end - position - sent);
+            }
+            sent += transferred;
+            bytesSent.addAndGet(transferred);
+        }
+        return sent;
+    }
+
+    /**
+     * Write up to a chunk of the part from a mapped buffer
+     */
+    private long transferMapped(WritableByteChannel target, long position, long count) throws IOException {
+        MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(count, MAPPED_CHUNK_SIZE));
+        long written = 0;
+        while (mapped.hasRemaining()) {
+            written += target.write(mapped);
+        }
+        return written;
+    }
+
+    /**
+     * Send the part's ndjson, decompressing it if the part is gzip. Plain parts are sent with transferTo
+     *
+     * @param target - where to send it
+     * @return the number of bytes sent, which are bytes of ndjson
+     * @throws IOException if the part can't be read or the target can't be written
+     */
+    public long transferDecompressed(WritableByteChannel target) throws IOException {
+        if (!isCompressed()) {
+            return transferTo(target);
+        }
+        long sent = 0;
+        // GZIPInputStream reads on through the members that compressed parts are made of
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(part), DECOMPRESS_BUFFER_SIZE)) {
+            byte[] buffer = new byte[DECOMPRESS_BUFFER_SIZE];
+            int read = in.read(buffer);
+            while (read >= 0) {
+                ByteBuffer data = ByteBuffer.wrap(buffer, 0, read);
+                while (data.hasRemaining()) {
+                    target.write(data);
+                }
+                sent += read;
+                bytesSent.addAndGet(read);
+                read = in.read(buffer);
+            }
+        }
+        return sent;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
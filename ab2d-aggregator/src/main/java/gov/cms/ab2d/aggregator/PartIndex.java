@@ -0,0 +1,213 @@
+package gov.cms.ab2d.aggregator;
+
+import lombok.Getter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * The sidecar index of a plain aggregated part (Z0001_0001.ndjson.idx next to Z0001_0001.ndjson). It holds the byte
+ * offset of every interval'th record and, if the part was indexed by patient, the record number and offset where
+ * each patient's first record is. A patient's records can be spread over the part, only the first is recorded. With
+ * it a reader can find any record by looking up the nearest sample and reading at most interval records forward, or
+ * any patient's first record with a binary search, without scanning the part.
+ *
+ * The index is small enough to keep in memory: 8 bytes per sample and a few dozen per patient. On disk the offsets
+ * are stored as variable length deltas, so a sample usually takes 2 or 3 bytes.
+ */
+@Getter
+public final class PartIndex {
+    public static final String SUFFIX = ".idx";
+    public static final int DEFAULT_INTERVAL = 1000;
+
+    // "AB2I"
+    private static final int MAGIC = 0x41423249;
+    private static final int VERSION = 1;
+
+    private final int interval;
+    private final long recordCount;
+    private final long byteCount;
+    private final long[] sampleOffsets;
+
+    // Sorted by patient id, with the first record of each patient
+    private final String[] patientIds;
+    private final long[] patientRecords;
+    private final long[] patientOffsets;
+
+    PartIndex(int interval, long recordCount, long byteCount, long[] sampleOffsets, String[] patientIds,
+              long[] patientRecords, long[] patientOffsets) {
+        this.interval = interval;
+        this.recordCount = recordCount;
+        this.byteCount = byteCount;
+        this.sampleOffsets = sampleOffsets;
+        this.patientIds = patientIds;
+        this.patientRecords = patientRecords;
+        this.patientOffsets = patientOffsets;
+    }
+
+    /**
+     * @param partName - the name of a part
+     * @return the name of its index
+     */
+    public static String getSidecarName(String partName) {
+        return partName + SUFFIX;
+    }
+
+    /**
+     * @param record - a record number, starting at 0
+     * @return the number of the closest sampled record at or before it
+     */
+    public long getSampledRecord(long record) {
+        return Math.min(record / interval, sampleOffsets.length - 1L) * interval;
+    }
+
+    /**
+     * @param record - a record number, starting at 0
+     * @return the offset of the closest sampled record at or before it
+     */
+    public long getSampledOffset(long record) {
+        if (sampleOffsets.length == 0) {
+            return 0;
+        }
+        return sampleOffsets[(int) Math.min(record / interval, sampleOffsets.length - 1L)];
+    }
+
+    /**
+     * @param patientId - a patient id, as in the EOBs' patient reference without "Patient/"
+     * @return the position in the patient array, negative if the patient has no records in the part
+     */
+    public int findPatient(String patientId) {
+        return Arrays.binarySearch(patientIds, patientId);
+    }
+
+    /**
+     * @param patient - a position from findPatient
+     * @return the number of the patient's first record
+     */
+    public long getPatientRecord(int patient) {
+        return patientRecords[patient];
+    }
+
+    /**
+     * @param patient - a position from findPatient
+     * @return the offset of the patient's first record
+     */
+    public long getPatientOffset(int patient) {
+        return patientOffsets[patient];
+    }
+
+    /**
+     * @return true if the part was indexed by patient
+     */
+    public boolean hasPatients() {
+        return patientIds.length > 0;
+    }
+
+    /**
+     * Write the index, leaving the stream open
+     *
+     * @param out - where to write it
+     * @throws IOException if it can't be written
+     */
+    public void write(OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+        data.writeInt(MAGIC);
+        data.writeByte(VERSION);
+        writeVarLong(data, interval);
+        writeVarLong(data, recordCount);
+        writeVarLong(data, byteCount);
+        writeVarLong(data, sampleOffsets.length);
+        long previous = 0;
+        for (long offset : sampleOffsets) {
+            writeVarLong(data, offset - previous);
+            previous = offset;
+        }
+        writeVarLong(data, patientIds.length);
+        for (int i = 0; i < patientIds.length; i++) {
+            byte[] id = patientIds[i].getBytes(StandardCharsets.UTF_8);
+            writeVarLong(data, id.length);
+            data.write(id);
+            writeVarLong(data, patientRecords[i]);
+            writeVarLong(data, patientOffsets[i]);
+        }
+        data.flush();
+    }
+
+    /**
+     * @param file - the sidecar
+     * @return the index in it
+     * @throws IOException if it can't be read or isn't an index
+     */
+    public static PartIndex read(Path file) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            return read(in);
+        }
+    }
+
+    /**
+     * @param in - a stream holding an index
+     * @return the index
+     * @throws IOException if it can't be read or isn't an index
+     */
+    public static PartIndex read(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+        if (data.readInt() != MAGIC || data.readByte() != VERSION) {
+            throw new IOException("Not a part index");
+        }
+        int interval = (int) readVarLong(data);
+        long recordCount = readVarLong(data);
+        long byteCount = readVarLong(data);
+        long[] samples = new long[(int) readVarLong(data)];
+        long offset = 0;
+        for (int i = 0; i < samples.length; i++) {
+            offset += readVarLong(data);
+            samples[i] = offset;
+        }
+        int patients = (int) readVarLong(data);
+        String[] ids = new String[patients];
+        long[] records = new long[patients];
+        long[] offsets = new long[patients];
+        for (int i = 0; i < patients; i++) {
+            byte[] id = new byte[(int) readVarLong(data)];
+            data.readFully(id);
+            ids[i] = new String(id, StandardCharsets.UTF_8);
+            records[i] = readVarLong(data);
+            offsets[i] = readVarLong(data);
+        }
+        return new PartIndex(interval, recordCount, byteCount, samples, ids, records, offsets);
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        long remaining = value;
+        while ((remaining & ~0x7FL) != 0) {
+            out.writeByte((int) ((remaining & 0x7F) | 0x80));
+            remaining >>>= 7;
+        }
+        out.writeByte((int) remaining);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException("The part index is cut short");
+            }
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Bad number in the part index");
+    }
+}
@@ -0,0 +1,55 @@
+package gov.cms.ab2d.aggregator;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * One output file as planned by a PackingStrategy - the finished files that will be combined into it and
+ * their total size
+ */
+public class PlannedPart {
+    private final List<FileReferenceHolder> references = new ArrayList<>();
+    private long size;
+    private long diskSize;
+
+    public PlannedPart() {
+    }
+
+    public PlannedPart(List<FileReferenceHolder> references) {
+        references.forEach(this::add);
+    }
+
+    void add(FileReferenceHolder reference) {
+        references.add(reference);
+        size += reference.getSize();
+        diskSize += reference.getDiskSize();
+    }
+
+    /**
+     * @return the files to combine, in the order they were added to the part
+     */
+    public List<File> getFiles() {
+        return references.stream().map(FileReferenceHolder::getFile).collect(Collectors.toList());
+    }
+
+    /**
+     * @return the size of the data in the part's files, uncompressed
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return the space the part's files take up on disk
+     */
+    public long getDiskSize() {
+        return diskSize;
+    }
+
+    public List<FileReferenceHolder> getReferences() {
+        return Collections.unmodifiableList(references);
+    }
+}
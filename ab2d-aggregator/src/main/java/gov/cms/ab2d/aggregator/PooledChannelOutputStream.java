@@ -0,0 +1,82 @@
+package gov.cms.ab2d.aggregator;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A buffered output stream that writes to a channel through a buffer borrowed from a StreamBufferPool. The buffer
+ * goes back to the pool when the stream is closed. Writes bigger than the buffer go straight to the channel.
+ */
+final class PooledChannelOutputStream extends OutputStream {
+    private final WritableByteChannel channel;
+    private final StreamBufferPool pool;
+    private ByteBuffer buffer;
+
+    PooledChannelOutputStream(WritableByteChannel channel, StreamBufferPool pool) {
+        this.channel = channel;
+        this.pool = pool;
+        this.buffer = pool.acquire();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        if (!buffer.hasRemaining()) {
+            drain();
+        }
+        buffer.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        if (len > buffer.remaining()) {
+            drain();
+            if (len >= buffer.capacity()) {
+                writeFully(ByteBuffer.wrap(b, off, len));
+                return;
+            }
+        }
+        buffer.put(b, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        drain();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (buffer == null) {
+            return;
+        }
+        try {
+            drain();
+        } finally {
+            pool.release(buffer);
+            buffer = null;
+            channel.close();
+        }
+    }
+
+    private void drain() throws IOException {
+        buffer.flip();
+        writeFully(buffer);
+        buffer.clear();
+    }
+
+    private void writeFully(ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            channel.write(data);
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (buffer == null) {
+            throw new IOException("Stream closed");
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package gov.cms.ab2d.aggregator;
+
+import ca.uhn.fhir.parser.IParser;
+import gov.cms.ab2d.fhir.FhirVersion;
+import lombok.extern.slf4j.Slf4j;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static gov.cms.ab2d.aggregator.Aggregator.ONE_MEGA_BYTE;
+import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * An alternative to streaming with ClaimsStream and combining the streams with the Aggregator. Any number of worker
+ * threads append whole NDJSON records to one RollingPartWriter, which writes them straight into the numbered part
+ * files in the job directory (Z9000_0001.ndjson, Z9000_0002.ndjson, ...). When the next record would make the
+ * current part bigger than max megabytes, the writer rolls over to the next part. A record bigger than max megabytes
+ * gets a part to itself.
+ *
+ * Every byte is written to disk once instead of twice and no aggregator thread is needed, but records from different
+ * threads are interleaved in whatever order they arrive. Only use this for jobs where that ordering doesn't matter.
+ * Create one writer for data and another for errors:
+ *
+ * try (RollingPartWriter data = new RollingPartWriter(jobId, contractNumber, efsMount, DATA, maxMegaBytes)) {
+ *     // on each worker thread
+ *     data.writeRecord(eob, FhirVersion.R4);
+ * }
+ *
+ * Records are encoded on the calling thread and only copied into the part while holding the writer's lock. If the type
+ * is compressed, the parts are gzipped and max megabytes limits the uncompressed data in each part. Parts that are
+ * already in the job directory are never overwritten, their numbers are skipped. Close the writer once all the worker
+ * threads are done with it.
+ */
+@Slf4j
+public class RollingPartWriter implements AutoCloseable {
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+    private static final byte NEW_LINE = '\n';
+    // A thread's record buffer is shrunk back to the smaller size after a record bigger than the larger one
+    private static final int MAX_RETAINED_RECORD_BYTES = ONE_MEGA_BYTE;
+    private static final int TRIMMED_RECORD_BYTES = 64 * 1024;
+
+    private final String contractNumber;
+    private final String jobDir;
+    private final FileOutputType type;
+    private final long maxFileSize;
+    private final int bufferSize;
+    private final PackingReport packingReport;
+    private final List<File> files = new ArrayList<>();
+    private final ThreadLocal<RecordBuffer> recordBuffers = ThreadLocal.withInitial(RecordBuffer::new);
+
+    // Guarded by this
+    private OutputStream out;
+    private long partSize;
+    private int partNumber;
+    private boolean open = true;
+
+    public RollingPartWriter(String jobId, String contractNumber, String baseDir, FileOutputType type,
+                             int maxMegaBytes) throws IOException {
+        this(jobId, contractNumber, baseDir, type, maxMegaBytes, DEFAULT_BUFFER_SIZE);
+    }
+
+    public RollingPartWriter(String jobId, String contractNumber, String baseDir, FileOutputType type,
+                             int maxMegaBytes, int bufferSize) throws IOException {
+        this.contractNumber = contractNumber;
+        this.jobDir = Path.of(baseDir, jobId).toFile().getAbsolutePath();
+        this.type = type;
+        this.maxFileSize = (long) maxMegaBytes * ONE_MEGA_BYTE;
+        this.bufferSize = bufferSize;
+        this.packingReport = new PackingReport(maxFileSize);
+        FileUtils.createADir(jobDir);
+    }
+
+    /**
+     * Write one NDJSON record, adding a new line unless the record already ends with one
+     *
+     * @param record - the UTF-8 encoded record
+     * @throws IOException if the record can't be written
+     */
+    public void writeRecord(byte[] record) throws IOException {
+        if (record.length > 0 && record[record.length - 1] == NEW_LINE) {
+            append(record, record.length);
+            return;
+        }
+        RecordBuffer buffer = recordBuffers.get();
+        buffer.reset();
+        buffer.write(record);
+        buffer.write(NEW_LINE);
+        buffer.appendTo(this);
+    }
+
+    /**
+     * Encode one NDJSON record as UTF-8, adding a new line unless the record already ends with one
+     *
+     * @param record - the record
+     * @throws IOException if the record can't be written
+     */
+    public void writeRecord(CharSequence record) throws IOException {
+        RecordBuffer buffer = recordBuffers.get();
+        buffer.reset();
+        buffer.writer.append(record);
+        buffer.writer.endRecord();
+        int length = record.length();
+        if (length == 0 || record.charAt(length - 1) != NEW_LINE) {
+            buffer.write(NEW_LINE);
+        }
+        buffer.appendTo(this);
+    }
+
+    /**
+     * Encode a FHIR resource as one NDJSON record without creating a String of it first
+     *
+     * @param resource - the resource, usually an ExplanationOfBenefit
+     * @param version - the FHIR version of the resource
+     * @throws IOException if the resource can't be written
+     */
+    public void writeRecord(IBaseResource resource, FhirVersion version) throws IOException {
+        RecordBuffer buffer = recordBuffers.get();
+        buffer.reset();
+        buffer.getParser(version).encodeResourceToWriter(resource, buffer.writer);
+        buffer.writer.endRecord();
+        buffer.write(NEW_LINE);
+        buffer.appendTo(this);
+    }
+
+    /**
+     * @return the part files written so far, in order
+     */
+    public synchronized List<File> getFiles() {
+        return List.copyOf(files);
+    }
+
+    public PackingReport getPackingReport() {
+        return packingReport;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (!open) {
+            return;
+        }
+        open = false;
+        closePart();
+        log.info("Wrote {} parts of {} for contract {}", files.size(), type, contractNumber);
+    }
+
+    private synchronized void append(byte[] record, int length) throws IOException {
+        if (!open) {
+            throw new IOException("Writer for " + type + " parts of contract " + contractNumber + " is closed");
+        }
+        if (out != null && partSize + length > maxFileSize) {
+            closePart();
+        }
+        if (out == null) {
+            openPart();
+        }
+        out.write(record, 0, length);
+        partSize += length;
+    }
+
+    private void openPart() throws IOException {
+        File file;
+        OutputStream stream;
+        while (true) {
+            partNumber++;
+            file = Path.of(jobDir, Aggregator.getPartFileName(contractNumber, partNumber, type)).toFile();
+            try {
+                stream = Files.newOutputStream(file.toPath(), CREATE_NEW, WRITE);
+                break;
+            } catch (FileAlreadyExistsException ex) {
+                log.warn("Part {} already exists, skipping it", file);
+            }
+        }
+        if (type.isCompressed()) {
+            stream = new GzipMemberOutputStream(stream);
+        }
+        out = new BufferedOutputStream(stream, bufferSize);
+        files.add(file);
+        partSize = 0;
+    }
+
+    private void closePart() throws IOException {
+        if (out == null) {
+            return;
+        }
+        out.close();
+        packingReport.partWritten(type, partSize);
+        out = null;
+    }
+
+    /**
+     * Each thread encodes its records into its own reusable buffer so that only the copy into the part happens
+     * while holding the writer's lock
+     */
+    private static final class RecordBuffer extends ByteArrayOutputStream {
+        private final Utf8StreamWriter writer = new Utf8StreamWriter(this);
+        private FhirVersion parserVersion;
+        private IParser parser;
+
+        private IParser getParser(FhirVersion version) {
+            // Parsers are expensive to create and not thread safe, so each thread keeps its last one around
+            if (parser == null || parserVersion != version) {
+                parser = version.getJsonParser();
+                parserVersion = version;
+            }
+            return parser;
+        }
+
+        private void appendTo(RollingPartWriter partWriter) throws IOException {
+            try {
+                partWriter.append(buf, count);
+            } finally {
+                // Don't hold on to the space for one unusually big record for the life of the thread
+                if (buf.length > MAX_RETAINED_RECORD_BYTES) {
+                    buf = new byte[TRIMMED_RECORD_BYTES];
+                    count = 0;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package gov.cms.ab2d.aggregator;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Writes parts to an S3 compatible object store with multipart uploads. Data written to a part is cut into chunks
+ * that are uploaded while the rest of the part is still being combined, several at a time on the upload executor.
+ * Sealing the part uploads the last chunk and completes the upload, which is when the object appears in the
+ * bucket. A part that isn't sealed has its upload aborted so no chunks are left behind.
+ *
+ * Each part holds at most uploadsInFlight chunks in memory. When that many are being uploaded, writing waits for
+ * the oldest one to finish.
+ */
+@Getter
+@Slf4j
+public class S3MultipartPartSink implements AggregatedPartSink {
+    // S3 doesn't take smaller chunks, except for the last
+    public static final int MIN_CHUNK_SIZE = 5 * 1024 * 1024;
+    public static final int DEFAULT_CHUNK_SIZE = 8 * 1024 * 1024;
+    public static final int DEFAULT_UPLOADS_IN_FLIGHT = 4;
+
+    // The most chunks S3 allows in an upload
+    private static final int MAX_CHUNKS = 10_000;
+
+    private final MultipartUploadClient client;
+    private final String bucket;
+    private final String keyPrefix;
+    private final ExecutorService uploadExecutor;
+    private final int chunkSize;
+    private final int uploadsInFlight;
+
+    /**
+     * @param client - the object store
+     * @param bucket - the bucket to write the parts to
+     * @param keyPrefix - put in front of each part's file name to make its key, for example "contracts/job123/"
+     * @param uploadExecutor - where to upload chunks, null to upload them on the thread writing the part
+     */
+    public S3MultipartPartSink(MultipartUploadClient client, String bucket, String keyPrefix,
+                               ExecutorService uploadExecutor) {
+        this(client, bucket, keyPrefix, uploadExecutor, DEFAULT_CHUNK_SIZE, DEFAULT_UPLOADS_IN_FLIGHT);
+    }
+
+    /**
+     * @param client - the object store
+     * @param bucket - the bucket to write the parts to
+     * @param keyPrefix - put in front of each part's file name to make its key, for example "contracts/job123/"
+     * @param uploadExecutor - where to upload chunks, null to upload them on the thread writing the part
+     * @param chunkSize - the size of each uploaded chunk, at least MIN_CHUNK_SIZE
+     * @param uploadsInFlight - the most chunks of a part being uploaded at once
+     */
+    public S3MultipartPartSink(MultipartUploadClient client, String bucket, String keyPrefix,
+                               ExecutorService uploadExecutor, int chunkSize, int uploadsInFlight) {
+        if (chunkSize < MIN_CHUNK_SIZE) {
+            throw new IllegalArgumentException("Chunks have to be at least " + MIN_CHUNK_SIZE + " bytes");
+        }
+        if (uploadsInFlight < 1) {
+            throw new IllegalArgumentException("At least one chunk has to be uploaded at a time");
+        }
+        this.client = client;
+        this.bucket = bucket;
+        this.keyPrefix = keyPrefix;
+        this.uploadExecutor = uploadExecutor;
+        this.chunkSize = chunkSize;
+        this.uploadsInFlight = uploadsInFlight;
+    }
+
+    @Override
+    public PartOutput create(String partName) throws IOException {
+        String key = keyPrefix + partName;
+        return new MultipartPartOutput(key, client.createMultipartUpload(bucket, key));
+    }
+
+    @Override
+    public String getLocation(String partName) {
+        return "s3://" + bucket + "/" + keyPrefix + partName;
+    }
+
+    /**
+     * A chunk being uploaded and the buffer it is uploaded from, which can be reused once it is done
+     */
+    private static final class ChunkUpload {
+        private final Future<String> eTag;
+        private final ByteBuffer buffer;
+
+        private ChunkUpload(Future<String> eTag, ByteBuffer buffer) {
+            this.eTag = eTag;
+            this.buffer = buffer;
+        }
+    }
+
+    private final class MultipartPartOutput implements PartOutput, WritableByteChannel {
+        private final String key;
+        private final String uploadId;
+        private final Deque<ChunkUpload> inFlight = new ArrayDeque<>();
+        private final List<String> eTags = new ArrayList<>();
+        private ByteBuffer chunk = ByteBuffer.allocate(chunkSize);
+        private ByteBuffer free;
+        private int chunkNumber;
+        private long size;
+        private boolean open = true;
+
+        private MultipartPartOutput(String key, String uploadId) {
+            this.key = key;
+            this.uploadId = uploadId;
+        }
+
+        @Override
+        public WritableByteChannel getChannel() {
+            return this;
+        }
+
+        @Override
+        public long getSize() {
+            return size;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            if (!open) {
+                throw new ClosedChannelException();
+            }
+            int written = src.remaining();
+            while (src.hasRemaining()) {
+                if (!chunk.hasRemaining()) {
+                    uploadChunk();
+                }
+                int count = Math.min(src.remaining(), chunk.remaining());
+                ByteBuffer slice = src.slice();
+                slice.limit(count);
+                chunk.put(slice);
+                src.position(src.position() + count);
+            }
+            size += written;
+            return written;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void seal(boolean durable) throws IOException {
+            if (!open) {
+                throw new ClosedChannelException();
+            }
+            // An empty part is still uploaded, as an empty chunk, so that the object exists
+            if (chunk.position() > 0 || chunkNumber == 0) {
+                uploadChunk();
+            }
+            while (!inFlight.isEmpty()) {
+                finishOldest();
+            }
+            client.completeMultipartUpload(bucket, key, uploadId, eTags);
+            // Once S3 has completed the upload the object is stored durably, there's nothing more to do for durable
+            open = false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            // Sealed, or already aborted
+            if (!open) {
+                return;
+            }
+            open = false;
+            inFlight.forEach(upload -> upload.eTag.cancel(true));
+            inFlight.clear();
+            client.abortMultipartUpload(bucket, key, uploadId);
+            log.info("Aborted the upload of s3://{}/{}", bucket, key);
+        }
+
+        private void uploadChunk() throws IOException {
+            if (chunkNumber == MAX_CHUNKS) {
+                throw new IOException(key + " has more than " + MAX_CHUNKS + " chunks of " + chunkSize + " bytes");
+            }
+            if (inFlight.size() >= uploadsInFlight) {
+                finishOldest();
+            }
+            ByteBuffer data = chunk.flip();
+            int number = ++chunkNumber;
+            Future<String> eTag;
+            if (uploadExecutor == null) {
+                eTag = CompletableFuture.completedFuture(client.uploadPart(bucket, key, uploadId, number, data));
+            } else {
+                eTag = uploadExecutor.submit(() -> client.uploadPart(bucket, key, uploadId, number, data));
+            }
+            inFlight.add(new ChunkUpload(eTag, data));
+            chunk = free != null ? free : ByteBuffer.allocate(chunkSize);
+            free = null;
+        }
+
+        private void finishOldest() throws IOException {
+            ChunkUpload upload = inFlight.poll();
+            try {
+                eTags.add(upload.eTag.get());
+            } catch (ExecutionException ex) {
+                throw new IOException("Unable to upload a chunk of " + key, ex.getCause());
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while uploading " + key);
+            }
+            free = upload.buffer.clear();
+        }
+    }
+}
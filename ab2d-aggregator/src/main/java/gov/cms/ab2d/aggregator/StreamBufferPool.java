@@ -0,0 +1,82 @@
+package gov.cms.ab2d.aggregator;
+
+import lombok.Getter;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The write buffers of the ClaimsStreams made by a ClaimsStreamFactory. A stream takes a buffer when it is created
+ * and gives it back when it is closed, so with hundreds of worker threads opening a stream per batch of patients
+ * the same few hundred buffers are used over and over instead of a new one being allocated for every stream.
+ *
+ * Direct buffers are written to the file channel without the JDK copying them into a temporary direct buffer
+ * first, but they live outside the heap, so size the pool with that in mind. Buffers beyond maxPooled are left to
+ * the garbage collector when they're given back. One pool can be shared by the factories of every job on the host.
+ */
+@Getter
+public final class StreamBufferPool {
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+    public static final int DEFAULT_MAX_POOLED = 256;
+
+    private final int bufferSize;
+    private final int maxPooled;
+    private final boolean direct;
+    private final BlockingQueue<ByteBuffer> free;
+
+    // How many buffers had to be allocated because none were free, to see if the pool is big enough
+    private final AtomicLong allocations = new AtomicLong();
+
+    public StreamBufferPool() {
+        this(DEFAULT_BUFFER_SIZE, DEFAULT_MAX_POOLED, true);
+    }
+
+    /**
+     * @param bufferSize - the size of each buffer
+     * @param maxPooled - the most free buffers kept for reuse
+     * @param direct - allocate direct buffers instead of heap buffers
+     */
+    public StreamBufferPool(int bufferSize, int maxPooled, boolean direct) {
+        if (bufferSize <= 0 || maxPooled <= 0) {
+            throw new IllegalArgumentException("The buffer size and the number of buffers pooled have to be positive");
+        }
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+        this.direct = direct;
+        this.free = new ArrayBlockingQueue<>(maxPooled);
+    }
+
+    /**
+     * @return a free buffer, cleared, allocating one if there are none
+     */
+    ByteBuffer acquire() {
+        ByteBuffer buffer = free.poll();
+        if (buffer != null) {
+            return buffer;
+        }
+        allocations.incrementAndGet();
+        return direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+    }
+
+    /**
+     * Give a buffer back for reuse. It must not be used again by whoever gave it back
+     *
+     * @param buffer - a buffer from acquire
+     */
+    void release(ByteBuffer buffer) {
+        free.offer(buffer.clear());
+    }
+
+    /**
+     * @return the number of buffers waiting to be reused
+     */
+    public int getFreeBuffers() {
+        return free.size();
+    }
+
+    public long getAllocations() {
+        return allocations.get();
+    }
+}
@@ -0,0 +1,373 @@
+package gov.cms.ab2d.aggregator;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Keeps the small streams of a job in memory and writes them to the finished directory together, as one file per
+ * type of data. Lots of patient batches only have a few KB of EOBs, or none, and each one written on its own costs
+ * a file create, a rename, a stat and a delete. With a coalescer registered for the job, a ClaimsStream (made
+ * directly or by a ClaimsStreamFactory) holds its data in memory until it is closed. Streams that are still no
+ * bigger than smallStreamBytes are added to the coalescer's buffer for their type instead of being written out,
+ * empty streams are dropped, and bigger streams go to a streaming file of their own as usual. A buffer is written to
+ * the finished directory once it holds flushBytes or its oldest stream has waited flushMillis.
+ *
+ * StreamCoalescer coalescer = StreamCoalescer.register(jobDir, STREAMING, FINISHED);
+ * // the worker streams the job
+ * JobHelper.workerFinishJob(streamingDir);
+ *
+ * Finishing the job, with JobHelper.workerFinishJob or InProcessJobCoordinator.streamingDone, writes whatever is
+ * still buffered and closes the coalescer first, so the aggregator never finishes without it. If that fails the job
+ * isn't finished and can be finished again. Each coalescer has a daemon timer thread that lives until it is closed,
+ * so a job that is given up on without being finished has to close its coalescer itself. Like JobSignal this only
+ * works when the job's writers share a JVM. Buffered data isn't on disk, so a crash loses it along with the streams
+ * still being written, and it doesn't count against the job's DiskBudget until it is written.
+ */
+@Slf4j
+public final class StreamCoalescer implements AutoCloseable {
+    public static final int DEFAULT_SMALL_STREAM_BYTES = 64 * 1024;
+    public static final int DEFAULT_FLUSH_BYTES = 8 * 1024 * 1024;
+    public static final long DEFAULT_FLUSH_MILLIS = 5_000;
+    private static final int CLOSE_ATTEMPTS = 3;
+
+    private static final Map<String, StreamCoalescer> JOBS = new ConcurrentHashMap<>();
+    private static final AtomicInteger COALESCERS = new AtomicInteger();
+
+    @Getter
+    private final String jobDir;
+    private final File streamingDir;
+    private final File finishedDir;
+    @Getter
+    private final int smallStreamBytes;
+    @Getter
+    private final int flushBytes;
+    @Getter
+    private final long flushMillis;
+
+    // Streams added to a buffer and files written for them
+    private final AtomicLong streamsCoalesced = new AtomicLong();
+    private final AtomicLong filesWritten = new AtomicLong();
+
+    // The buffer for each type of data, guarded by this
+    private final Map<FileOutputType, Buffer> buffers = new EnumMap<>(FileOutputType.class);
+    private final ScheduledExecutorService timer;
+    private final String namePrefix;
+    private final AtomicLong sequence = new AtomicLong();
+    private boolean closed;
+
+    private StreamCoalescer(String jobDir, String streamingDir, String finishedDir, int smallStreamBytes,
+                            int flushBytes, long flushMillis) {
+        this.jobDir = jobDir;
+        this.streamingDir = new File(jobDir, streamingDir);
+        this.finishedDir = new File(jobDir, finishedDir);
+        this.smallStreamBytes = smallStreamBytes;
+        this.flushBytes = flushBytes;
+        this.flushMillis = flushMillis;
+        int number = COALESCERS.incrementAndGet();
+        this.namePrefix = "coalesced_" + Long.toString(System.currentTimeMillis(), 36) + "_"
+                + Integer.toString(number, 36) + "_";
+        this.timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "stream-coalescer-" + number);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Register a coalescer for a job with the default limits
+     *
+     * @param jobDir - the job directory (the base directory plus the job id)
+     * @param streamingDir - the streaming directory, under the job directory
+     * @param finishedDir - the finished directory, under the job directory
+     * @return the coalescer, the one already registered if there is one
+     */
+    public static StreamCoalescer register(String jobDir, String streamingDir, String finishedDir) {
+        return register(jobDir, streamingDir, finishedDir, DEFAULT_SMALL_STREAM_BYTES, DEFAULT_FLUSH_BYTES,
+                DEFAULT_FLUSH_MILLIS);
+    }
+
+    /**
+     * Register a coalescer for a job
+     *
+     * @param jobDir - the job directory (the base directory plus the job id)
+     * @param streamingDir - the streaming directory, under the job directory
+     * @param finishedDir - the finished directory, under the job directory
+     * @param smallStreamBytes - streams up to this size, as written to their file, are coalesced
+     * @param flushBytes - write a buffer out once it holds this much
+     * @param flushMillis - write a buffer out once its oldest stream has waited this long
+     * @return the coalescer, the one already registered if there is one
+     */
+    public static StreamCoalescer register(String jobDir, String streamingDir, String finishedDir, int smallStreamBytes,
+                                           int flushBytes, long flushMillis) {
+        if (smallStreamBytes <= 0 || flushBytes < smallStreamBytes || flushMillis <= 0) {
+            throw new IllegalArgumentException("Streams are coalesced up to a size greater than 0 and no more than "
+                    + "the flush size, and flushed after a positive time");
+        }
+        String key = key(jobDir);
+        return JOBS.computeIfAbsent(key, k -> new StreamCoalescer(k, streamingDir, finishedDir, smallStreamBytes,
+                flushBytes, flushMillis));
+    }
+
+    /**
+     * @param jobDir - the job directory (the base directory plus the job id)
+     * @return the job's coalescer, null if streams are written out on their own
+     */
+    static StreamCoalescer forJob(String jobDir) {
+        return JOBS.get(key(jobDir));
+    }
+
+    /**
+     * Write out whatever a job's coalescer still has and close it, because the worker is done streaming. Does
+     * nothing if the job has no coalescer
+     *
+     * @param jobDir - the job directory (the base directory plus the job id)
+     */
+    static void finish(String jobDir) {
+        StreamCoalescer coalescer = forJob(jobDir);
+        if (coalescer != null) {
+            try {
+                coalescer.close();
+            } catch (IOException ex) {
+                throw new UncheckedIOException("Unable to write the coalesced streams of " + jobDir, ex);
+            }
+        }
+    }
+
+    /**
+     * Add a closed stream's data to the buffer for its type, writing the buffer out if it is full
+     *
+     * @param type - the type of the stream's file
+     * @param data - everything the stream wrote, as it would have been written to its file
+     * @param dataBytes - the size of the stream's data, before it was compressed if the type is compressed
+     * @throws IOException if the buffer is full and can't be written
+     */
+    void add(FileOutputType type, ByteArrayOutputStream data, long dataBytes) throws IOException {
+        Chunk full;
+        synchronized (this) {
+            if (closed) {
+                throw new IOException("The coalescer of " + jobDir + " is closed, the worker is done streaming");
+            }
+            Buffer buffer = buffers.computeIfAbsent(type, t -> new Buffer());
+            if (buffer.data.size() == 0) {
+                buffer.flush = timer.schedule(() -> flushOnTime(type), flushMillis, TimeUnit.MILLISECONDS);
+            }
+            data.writeTo(buffer.data);
+            buffer.dataBytes += dataBytes;
+            streamsCoalesced.incrementAndGet();
+            full = buffer.data.size() >= flushBytes ? take(type) : null;
+        }
+        if (full != null) {
+            write(type, full);
+        }
+    }
+
+    /**
+     * Write out every buffer now
+     *
+     * @throws IOException if a buffer can't be written. Its data stays in the coalescer
+     */
+    public void flush() throws IOException {
+        IOException failure = null;
+        for (FileOutputType type : FileOutputType.values()) {
+            Chunk data;
+            synchronized (this) {
+                data = take(type);
+            }
+            if (data == null) {
+                continue;
+            }
+            try {
+                write(type, data);
+            } catch (IOException ex) {
+                failure = ex;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void flushOnTime(FileOutputType type) {
+        Chunk data;
+        synchronized (this) {
+            data = take(type);
+        }
+        if (data == null) {
+            return;
+        }
+        try {
+            write(type, data);
+        } catch (IOException ex) {
+            // The data went back in the buffer, the next flush tries again
+            log.error("Unable to write the coalesced streams of " + jobDir, ex);
+        }
+    }
+
+    /**
+     * Empty the buffer for a type, must hold the lock
+     *
+     * @return what was in it, null if nothing was
+     */
+    private Chunk take(FileOutputType type) {
+        Buffer buffer = buffers.get(type);
+        if (buffer == null || buffer.data.size() == 0) {
+            return null;
+        }
+        if (buffer.flush != null) {
+            buffer.flush.cancel(false);
+            buffer.flush = null;
+        }
+        Chunk data = new Chunk(buffer.data.toByteArray(), buffer.dataBytes);
+        buffer.data.reset();
+        buffer.dataBytes = 0;
+        return data;
+    }
+
+    /**
+     * Write coalesced streams to the streaming directory and move the file to the finished directory, the same as
+     * a stream would. If that fails the data goes back in the buffer for the type
+     */
+    private void write(FileOutputType type, Chunk data) throws IOException {
+        JobDirLayout layout = JobDirLayout.forJob(jobDir);
+        String name = namePrefix + sequence.incrementAndGet() + type.getSuffix();
+        Path tmpFile = layout.locate(streamingDir, name).toPath();
+        Path completeFile = layout.locate(finishedDir, name).toPath();
+        try {
+            try {
+                Files.write(tmpFile, data.bytes, CREATE_NEW, WRITE);
+            } catch (NoSuchFileException ex) {
+                // The shard isn't there yet
+                Files.createDirectories(tmpFile.getParent());
+                Files.write(tmpFile, data.bytes, CREATE_NEW, WRITE);
+            }
+            try {
+                Files.move(tmpFile, completeFile);
+            } catch (NoSuchFileException ex) {
+                Files.createDirectories(completeFile.getParent());
+                Files.move(tmpFile, completeFile);
+            }
+        } catch (IOException ex) {
+            Files.deleteIfExists(tmpFile);
+            restore(type, data);
+            throw ex;
+        }
+        filesWritten.incrementAndGet();
+        DiskBudget.fileFinished(jobDir, data.bytes.length);
+        JobSignal.fileFinished(jobDir, completeFile.toFile(), data.dataBytes, data.bytes.length);
+    }
+
+    private synchronized void restore(FileOutputType type, Chunk data) {
+        Buffer buffer = buffers.computeIfAbsent(type, t -> new Buffer());
+        ByteArrayOutputStream restored = new ByteArrayOutputStream(data.bytes.length + buffer.data.size());
+        restored.writeBytes(data.bytes);
+        restored.writeBytes(buffer.data.toByteArray());
+        buffer.data = restored;
+        buffer.dataBytes += data.dataBytes;
+        // take() cancelled the buffer's timed flush, without a new one the data would wait for the buffer to fill up
+        if (buffer.flush == null && !closed) {
+            buffer.flush = timer.schedule(() -> flushOnTime(type), flushMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * @return the number of streams added to the buffers so far
+     */
+    public long getStreamsCoalesced() {
+        return streamsCoalesced.get();
+    }
+
+    /**
+     * @return the number of files written to the finished directory so far
+     */
+    public long getFilesWritten() {
+        return filesWritten.get();
+    }
+
+    /**
+     * @return the bytes buffered and not yet written out, for all types
+     */
+    public synchronized long getBufferedBytes() {
+        return buffers.values().stream().mapToLong(buffer -> buffer.data.size()).sum();
+    }
+
+    /**
+     * Write out everything buffered and stop coalescing streams for the job. Streams closed after this fail. Writing
+     * is tried a few times, and the coalescer stays registered for the job until nothing is left in it, so closing
+     * it again (or finishing the job again) retries what couldn't be written
+     *
+     * @throws IOException if a buffer still can't be written. The coalescer is closed anyway
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            closed = true;
+        }
+        IOException failure = null;
+        for (int attempt = 0; attempt < CLOSE_ATTEMPTS; attempt++) {
+            try {
+                flush();
+            } catch (IOException ex) {
+                failure = ex;
+            }
+            // Let a timed flush that is already writing finish, anything it couldn't write is back in the buffers
+            timer.shutdown();
+            try {
+                timer.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            if (getBufferedBytes() == 0) {
+                JOBS.remove(jobDir, this);
+                return;
+            }
+        }
+        if (failure == null) {
+            failure = new IOException("Unable to write the coalesced streams of " + jobDir);
+        }
+        throw failure;
+    }
+
+    private static String key(String jobDir) {
+        return Path.of(jobDir).toAbsolutePath().normalize().toString();
+    }
+
+    private static final class Buffer {
+        private ByteArrayOutputStream data = new ByteArrayOutputStream();
+        // The size of the streams' data in the buffer, before compression
+        private long dataBytes;
+        private ScheduledFuture<?> flush;
+    }
+
+    /**
+     * What was taken out of a buffer to be written
+     */
+    private static final class Chunk {
+        private final byte[] bytes;
+        private final long dataBytes;
+
+        private Chunk(byte[] bytes, long dataBytes) {
+            this.bytes = bytes;
+            this.dataBytes = dataBytes;
+        }
+    }
+}
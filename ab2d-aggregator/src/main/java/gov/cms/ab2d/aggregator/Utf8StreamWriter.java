@@ -0,0 +1,145 @@
+package gov.cms.ab2d.aggregator;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A Writer that encodes characters as UTF-8 straight into an output stream using one reused CharsetEncoder
+ * and byte buffer, so writing a record doesn't create a byte array copy of it. Malformed characters are replaced
+ * the same way String.getBytes does.
+ *
+ * A high surrogate at the end of one write is held until the next write so that surrogate pairs split across
+ * writes are still encoded correctly. Call endRecord at the end of each record to finish encoding it and push
+ * the bytes into the stream. Closing or flushing this writer doesn't close or flush the underlying stream.
+ */
+final class Utf8StreamWriter extends Writer {
+    private static final int DEFAULT_BUFFER_SIZE = 8 * 1024;
+    private static final CharBuffer EMPTY = CharBuffer.allocate(0);
+
+    private final OutputStream out;
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final ByteBuffer encoded;
+    private final char[] single = new char[1];
+    private final char[] pair = new char[2];
+    private char pendingHighSurrogate;
+    private boolean hasPending;
+    private long bytesWritten;
+
+    Utf8StreamWriter(OutputStream out) {
+        this(out, DEFAULT_BUFFER_SIZE);
+    }
+
+    Utf8StreamWriter(OutputStream out, int bufferSize) {
+        this.out = out;
+        this.encoded = ByteBuffer.allocate(Math.max(bufferSize, 16));
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        encode(CharBuffer.wrap(cbuf, off, len));
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        encode(CharBuffer.wrap(str, off, off + len));
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        single[0] = (char) c;
+        encode(CharBuffer.wrap(single));
+    }
+
+    @Override
+    public Writer append(CharSequence csq) throws IOException {
+        // Writer's append turns the sequence into a String first, wrapping it avoids the copy
+        encode(CharBuffer.wrap(csq == null ? "null" : csq));
+        return this;
+    }
+
+    @Override
+    public Writer append(CharSequence csq, int start, int end) throws IOException {
+        encode(CharBuffer.wrap(csq == null ? "null" : csq, start, end));
+        return this;
+    }
+
+    /**
+     * Finish encoding the current record, including any dangling high surrogate, and write the encoded bytes
+     * to the output stream
+     *
+     * @throws IOException if the bytes can't be written
+     */
+    void endRecord() throws IOException {
+        if (hasPending) {
+            hasPending = false;
+            pair[0] = pendingHighSurrogate;
+            encode(CharBuffer.wrap(pair, 0, 1), true);
+        }
+        encode(EMPTY, true);
+        CoderResult result = encoder.flush(encoded);
+        while (result.isOverflow()) {
+            drain();
+            result = encoder.flush(encoded);
+        }
+        encoder.reset();
+        drain();
+    }
+
+    /**
+     * @return the number of encoded bytes written to the output stream
+     */
+    long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        drain();
+    }
+
+    @Override
+    public void close() throws IOException {
+        endRecord();
+    }
+
+    private void encode(CharBuffer in) throws IOException {
+        if (hasPending && in.hasRemaining()) {
+            hasPending = false;
+            pair[0] = pendingHighSurrogate;
+            pair[1] = in.get();
+            encode(CharBuffer.wrap(pair), false);
+        }
+        encode(in, false);
+    }
+
+    private void encode(CharBuffer in, boolean endOfInput) throws IOException {
+        CoderResult result = encoder.encode(in, encoded, endOfInput);
+        while (result.isOverflow()) {
+            drain();
+            result = encoder.encode(in, encoded, endOfInput);
+        }
+        // Errors are replaced, so the only thing the encoder leaves behind on underflow is a high surrogate
+        // waiting for the other half of its pair
+        if (in.hasRemaining()) {
+            pendingHighSurrogate = in.get();
+            hasPending = true;
+        }
+    }
+
+    private void drain() throws IOException {
+        if (encoded.position() > 0) {
+            out.write(encoded.array(), 0, encoded.position());
+            bytesWritten += encoded.position();
+            encoded.clear();
+        }
+    }
+}
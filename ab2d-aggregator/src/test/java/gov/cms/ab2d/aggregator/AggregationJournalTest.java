@@ -0,0 +1,52 @@
+package gov.cms.ab2d.aggregator;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import static gov.cms.ab2d.aggregator.FileOutputType.DATA;
+import static gov.cms.ab2d.aggregator.FileOutputType.ERROR_COMPRESSED;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AggregationJournalTest {
+
+    @Test
+    void readBack(@TempDir File tmpDir) throws IOException {
+        Path file = Path.of(tmpDir.getAbsolutePath(), AggregationJournal.FILE_NAME);
+        try (AggregationJournal journal = new AggregationJournal(file)) {
+            assertTrue(journal.read().isEmpty());
+            journal.partPlanned(DATA, "/efs/job/Z0001_0001.ndjson", List.of(new File("/efs/job/finished/tmp_1.ndjson"),
+                    new File("/efs/job/finished/tmp_2.ndjson.gz")));
+            journal.partPlanned(ERROR_COMPRESSED, "Z0001_0001_error.ndjson.gz", List.of());
+            journal.partCompleted("/efs/job/Z0001_0001.ndjson");
+        }
+
+        // A crash in the middle of writing an entry leaves half a line
+        Files.writeString(file, "COMPLETED\tZ0001_00", StandardOpenOption.APPEND);
+
+        try (AggregationJournal journal = new AggregationJournal(file)) {
+            List<AggregationJournal.JournaledPart> parts = journal.read();
+            assertEquals(2, parts.size());
+            assertEquals(DATA, parts.get(0).getType());
+            assertEquals("Z0001_0001.ndjson", parts.get(0).getPartName());
+            assertEquals(List.of("tmp_1.ndjson", "tmp_2.ndjson.gz"), parts.get(0).getInputs());
+            assertTrue(parts.get(0).isCompleted());
+            assertEquals(ERROR_COMPRESSED, parts.get(1).getType());
+            assertTrue(parts.get(1).getInputs().isEmpty());
+            assertFalse(parts.get(1).isCompleted());
+
+            journal.partCompleted("Z0001_0001_error.ndjson.gz");
+            assertTrue(journal.read().get(1).isCompleted());
+            journal.delete();
+        }
+        assertFalse(Files.exists(file));
+    }
+}
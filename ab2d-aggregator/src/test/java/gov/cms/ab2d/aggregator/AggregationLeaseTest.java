@@ -0,0 +1,272 @@
+package gov.cms.ab2d.aggregator;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static gov.cms.ab2d.aggregator.Aggregator.AggregatorResult.PERFORMED;
+import static gov.cms.ab2d.aggregator.FileOutputType.DATA;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AggregationLeaseTest {
+    private static final String JOB_ID = "job1";
+    private static final String CONTRACT = "Z0001";
+    private static final String STREAM_DIR = "streaming";
+    private static final String FINISH_DIR = "finished";
+
+    @Test
+    void nodesDrainOneJob(@TempDir File tmpDir) throws Exception {
+        String jobDir = tmpDir.getAbsolutePath() + File.separator + JOB_ID;
+        JobHelper.workerSetUpJobDirectories(JOB_ID, tmpDir.getAbsolutePath(), STREAM_DIR, FINISH_DIR);
+        Set<String> expected = new HashSet<>();
+        for (int i = 0; i < 60; i++) {
+            StringBuilder data = new StringBuilder();
+            for (int r = 0; r < 10; r++) {
+                String line = i + "-" + r + "-" + AggregatorTest.getAlphaNumericString(10_000);
+                expected.add(line);
+                data.append(line).append('\n');
+            }
+            Files.writeString(Path.of(jobDir, FINISH_DIR, "f" + i + DATA.getSuffix()), data.toString());
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        List<AggregationLease> leases = new ArrayList<>();
+        try {
+            List<Aggregator> aggregators = new ArrayList<>();
+            for (String node : List.of("a", "b", "c")) {
+                AggregationLease lease = new AggregationLease(jobDir, FINISH_DIR, node, AggregationLease.DEFAULT_LEASE_MILLIS);
+                leases.add(lease);
+                Aggregator aggregator = new Aggregator(JOB_ID, CONTRACT, tmpDir.getAbsolutePath(), 1, STREAM_DIR, FINISH_DIR, 2);
+                aggregator.setLease(lease);
+                aggregators.add(aggregator);
+            }
+            // The aggregators set the directories up again, the worker is done by the time they start
+            assertTrue(Path.of(jobDir, STREAM_DIR).toFile().delete());
+            List<Future<Integer>> futures = new ArrayList<>();
+            for (Aggregator aggregator : aggregators) {
+                futures.add(executor.submit(() -> {
+                    int parts = 0;
+                    while (aggregator.aggregate(DATA) == PERFORMED) {
+                        parts++;
+                    }
+                    return parts;
+                }));
+            }
+            int parts = 0;
+            for (Future<Integer> future : futures) {
+                parts += future.get();
+            }
+
+            // Every record made it into exactly one part, and the part numbers didn't collide
+            List<String> read = new ArrayList<>();
+            for (int part = 1; part <= parts; part++) {
+                read.addAll(Files.readAllLines(Path.of(jobDir, Aggregator.getPartFileName(CONTRACT, part, DATA))));
+            }
+            assertFalse(Files.exists(Path.of(jobDir, Aggregator.getPartFileName(CONTRACT, parts + 1, DATA))));
+            assertEquals(expected.size(), read.size());
+            assertEquals(expected, new HashSet<>(read));
+            assertEquals(0, Path.of(jobDir, FINISH_DIR).toFile().list().length);
+            assertTrue(leases.get(0).isDrained());
+        } finally {
+            executor.shutdown();
+            for (AggregationLease lease : leases) {
+                lease.close();
+            }
+        }
+        assertFalse(Files.exists(Path.of(jobDir, AggregationLease.CLAIMS_DIR, "a.lease")));
+    }
+
+    @Test
+    void lastNodeCleansUp(@TempDir File tmpDir) throws Exception {
+        String jobDir = tmpDir.getAbsolutePath() + File.separator + JOB_ID;
+        JobHelper.workerSetUpJobDirectories(JOB_ID, tmpDir.getAbsolutePath(), STREAM_DIR, FINISH_DIR);
+        for (int i = 0; i < 20; i++) {
+            Files.writeString(Path.of(jobDir, FINISH_DIR, "f" + i + DATA.getSuffix()),
+                    AggregatorTest.getAlphaNumericString(200_000) + "\n");
+        }
+        // Each node has its own scheduler, the way it would have on its own host
+        List<AggregationScheduler> schedulers = List.of(new AggregationScheduler(1), new AggregationScheduler(1));
+        try {
+            List<CompletableFuture<Integer>> futures = new ArrayList<>();
+            for (String node : List.of("a", "b")) {
+                AggregatorCallable callable = new AggregatorCallable(tmpDir.getAbsolutePath(), JOB_ID, CONTRACT, 1,
+                        STREAM_DIR, FINISH_DIR, 2);
+                callable.setWaitMillis(10);
+                callable.setLease(new AggregationLease(jobDir, FINISH_DIR, node, AggregationLease.DEFAULT_LEASE_MILLIS));
+                futures.add(schedulers.get(futures.size()).submit(callable));
+            }
+            JobHelper.workerFinishJob(jobDir + File.separator + STREAM_DIR);
+            for (CompletableFuture<Integer> future : futures) {
+                future.get(60, TimeUnit.SECONDS);
+            }
+        } finally {
+            schedulers.forEach(AggregationScheduler::close);
+        }
+        // Nothing is left in the job directory but the parts
+        String[] left = new File(jobDir).list();
+        assertNotNull(left);
+        assertTrue(left.length > 0);
+        for (String name : left) {
+            assertEquals(DATA, FileOutputType.getFileType(name), name);
+        }
+    }
+
+    @Test
+    void recoverExpiredLease(@TempDir File tmpDir) throws Exception {
+        String jobDir = tmpDir.getAbsolutePath() + File.separator + JOB_ID;
+        JobHelper.workerSetUpJobDirectories(JOB_ID, tmpDir.getAbsolutePath(), STREAM_DIR, FINISH_DIR);
+        File f1 = Path.of(jobDir, FINISH_DIR, "f1" + DATA.getSuffix()).toFile();
+        File f2 = Path.of(jobDir, FINISH_DIR, "f2" + DATA.getSuffix()).toFile();
+        Files.writeString(f1.toPath(), "one\n");
+        Files.writeString(f2.toPath(), "two\n");
+
+        // A node claims both files, starts writing its part and dies
+        AggregationLease dead = new AggregationLease(jobDir, FINISH_DIR, "dead", 1000);
+        PlannedPart planned = new PlannedPart(List.of(new FileReferenceHolder(f1, 4), new FileReferenceHolder(f2, 4)));
+        AggregationLease.ClaimedPart claimed = dead.claim(planned, DATA, CONTRACT);
+        assertEquals(CONTRACT + "_0001" + DATA.getSuffix(), claimed.getPartName());
+        assertEquals(2, claimed.getPart().getFiles().size());
+        assertFalse(f1.exists());
+        Files.writeString(Path.of(jobDir, claimed.getPartName()), "on");
+        assertFalse(dead.isDrained());
+
+        AggregationLease alive = new AggregationLease(jobDir, FINISH_DIR, "alive", 1000);
+        // Not expired yet
+        assertEquals(0, alive.recoverExpired());
+        Files.setLastModifiedTime(dead.getLeaseFile(), FileTime.fromMillis(System.currentTimeMillis() - 5000));
+        assertEquals(1, alive.recoverExpired());
+
+        assertTrue(f1.exists());
+        assertTrue(f2.exists());
+        assertFalse(Files.exists(Path.of(jobDir, claimed.getPartName())));
+        assertFalse(Files.exists(dead.getLeaseFile()));
+        assertTrue(alive.isDrained());
+
+        // The dead node's part number isn't handed out again
+        PlannedPart again = new PlannedPart(List.of(new FileReferenceHolder(f1, 4)));
+        assertEquals(CONTRACT + "_0002" + DATA.getSuffix(), alive.claim(again, DATA, CONTRACT).getPartName());
+        // Another node got to f2 first
+        Files.delete(f2.toPath());
+        PlannedPart gone = new PlannedPart(List.of(new FileReferenceHolder(f2, 4)));
+        assertTrue(alive.claim(gone, DATA, CONTRACT).isEmpty());
+    }
+
+    @Test
+    void lostClaimIsNotSealed(@TempDir File tmpDir) throws Exception {
+        String jobDir = tmpDir.getAbsolutePath() + File.separator + JOB_ID;
+        JobHelper.workerSetUpJobDirectories(JOB_ID, tmpDir.getAbsolutePath(), STREAM_DIR, FINISH_DIR);
+        Path f1 = Path.of(jobDir, FINISH_DIR, "f1" + DATA.getSuffix());
+        Files.writeString(f1, "one\n");
+
+        AggregationLease slow = new AggregationLease(jobDir, FINISH_DIR, "slow", 60_000);
+        AggregationLease other = new AggregationLease(jobDir, FINISH_DIR, "other", 60_000);
+        Aggregator aggregator = new Aggregator(JOB_ID, CONTRACT, tmpDir.getAbsolutePath(), 1, STREAM_DIR, FINISH_DIR, 2);
+        aggregator.setLease(slow);
+        assertTrue(Path.of(jobDir, STREAM_DIR).toFile().delete());
+        // The slow node's lease runs out while it is writing, and the other node takes its files back
+        LocalPartSink local = new LocalPartSink(Path.of(jobDir));
+        aggregator.setPartSink(new AggregatedPartSink() {
+            @Override
+            public PartOutput create(String partName) throws IOException {
+                PartOutput output = local.create(partName);
+                WritableByteChannel channel = output.getChannel();
+                return new PartOutput() {
+                    @Override
+                    public WritableByteChannel getChannel() {
+                        return new WritableByteChannel() {
+                            @Override
+                            public int write(ByteBuffer src) throws IOException {
+                                int written = channel.write(src);
+                                Files.setLastModifiedTime(slow.getLeaseFile(), FileTime.fromMillis(0));
+                                other.recoverExpired();
+                                return written;
+                            }
+
+                            @Override
+                            public boolean isOpen() {
+                                return channel.isOpen();
+                            }
+
+                            @Override
+                            public void close() {
+                                // The output closes the channel
+                            }
+                        };
+                    }
+
+                    @Override
+                    public long getSize() throws IOException {
+                        return output.getSize();
+                    }
+
+                    @Override
+                    public void seal(boolean durable) throws IOException {
+                        output.seal(durable);
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        output.close();
+                    }
+                };
+            }
+
+            @Override
+            public String getLocation(String partName) {
+                return local.getLocation(partName);
+            }
+        });
+
+        IOException lost = assertThrows(IOException.class, () -> aggregator.aggregate(DATA));
+        assertTrue(lost.getMessage().startsWith("Lost the claim"));
+        String partName = Aggregator.getPartFileName(CONTRACT, 1, DATA);
+        assertFalse(Files.exists(Path.of(jobDir, partName)));
+        assertTrue(Files.exists(f1));
+        assertTrue(other.isDrained());
+        other.close();
+    }
+
+    @Test
+    void renewedWhileWriting(@TempDir File tmpDir) throws Exception {
+        String jobDir = tmpDir.getAbsolutePath() + File.separator + JOB_ID;
+        JobHelper.workerSetUpJobDirectories(JOB_ID, tmpDir.getAbsolutePath(), STREAM_DIR, FINISH_DIR);
+        AggregationLease lease = new AggregationLease(jobDir, FINISH_DIR, "node", 90);
+        try {
+            Files.setLastModifiedTime(lease.getLeaseFile(), FileTime.fromMillis(0));
+            Thread.sleep(200);
+            // Nothing is being written, so the lease is left alone
+            assertEquals(0, Files.getLastModifiedTime(lease.getLeaseFile()).toMillis());
+            try (Closeable writing = lease.keepAlive()) {
+                long deadline = System.currentTimeMillis() + 10_000;
+                while (Files.getLastModifiedTime(lease.getLeaseFile()).toMillis() == 0
+                        && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(10);
+                }
+                assertTrue(Files.getLastModifiedTime(lease.getLeaseFile()).toMillis() > 0);
+            }
+        } finally {
+            lease.close();
+        }
+    }
+}
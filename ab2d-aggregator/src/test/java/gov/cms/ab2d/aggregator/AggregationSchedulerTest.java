@@ -0,0 +1,90 @@
+package gov.cms.ab2d.aggregator;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static gov.cms.ab2d.aggregator.FileOutputType.DATA;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AggregationSchedulerTest {
+    private static final String STREAM_DIR = "streaming";
+    private static final String FINISH_DIR = "finished";
+    private static final int STREAMS = 30;
+    private static final int RECORD_LENGTH = 100 * 1024;
+
+    @Test
+    void manyJobsFewThreads(@TempDir File tmpDir) throws Exception {
+        try (AggregationScheduler scheduler = new AggregationScheduler(2)) {
+            List<String> jobIds = List.of("job1", "job2", "job3", "job4");
+            List<CompletableFuture<Integer>> futures = new ArrayList<>();
+            for (String jobId : jobIds) {
+                AggregatorCallable callable = new AggregatorCallable(tmpDir.getAbsolutePath(), jobId, "contract", 1,
+                        STREAM_DIR, FINISH_DIR, 2);
+                // Half the jobs are woken up by the worker, the other half only by the clock
+                if (futures.size() % 2 == 0) {
+                    callable.setTriggerMode(AggregatorCallable.TriggerMode.IN_PROCESS);
+                    callable.setWaitMillis(60000);
+                } else {
+                    callable.setWaitMillis(10);
+                }
+                JobHelper.workerSetUpJobDirectories(jobId, tmpDir.getAbsolutePath(), STREAM_DIR, FINISH_DIR);
+                futures.add(scheduler.submit(callable));
+            }
+            assertEquals(jobIds.size(), scheduler.getJobCount());
+            assertTrue(scheduler.getCompletion("job1").isPresent());
+
+            // The workers stream their jobs at the same time as the jobs are aggregated
+            for (int i = 0; i < STREAMS; i++) {
+                for (String jobId : jobIds) {
+                    try (ClaimsStream stream = new ClaimsStream(jobId, tmpDir.getAbsolutePath(), DATA, STREAM_DIR, FINISH_DIR)) {
+                        stream.writeRecord(AggregatorTest.getAlphaNumericString(RECORD_LENGTH));
+                    }
+                }
+            }
+            for (String jobId : jobIds) {
+                JobHelper.workerFinishJob(tmpDir.getAbsolutePath() + File.separator + jobId + File.separator + STREAM_DIR);
+            }
+
+            for (int j = 0; j < jobIds.size(); j++) {
+                int parts = futures.get(j).get(30, TimeUnit.SECONDS);
+                Path jobDir = Path.of(tmpDir.getAbsolutePath(), jobIds.get(j));
+                assertFalse(Files.exists(jobDir.resolve(FINISH_DIR)));
+                long size = 0;
+                for (int p = 1; p <= parts; p++) {
+                    size += Files.size(jobDir.resolve(String.format("contract_%04d.ndjson", p)));
+                }
+                assertEquals((long) STREAMS * (RECORD_LENGTH + 1), size);
+            }
+            assertEquals(0, scheduler.getJobCount());
+        }
+    }
+
+    @Test
+    void closeCancelsJobs(@TempDir File tmpDir) throws IOException {
+        AggregatorCallable callable = new AggregatorCallable(tmpDir.getAbsolutePath(), "job1", "contract", 1,
+                STREAM_DIR, FINISH_DIR, 2);
+        JobHelper.workerSetUpJobDirectories("job1", tmpDir.getAbsolutePath(), STREAM_DIR, FINISH_DIR);
+        CompletableFuture<Integer> future;
+        try (AggregationScheduler scheduler = new AggregationScheduler(1)) {
+            future = scheduler.submit(callable);
+            assertThrows(IllegalStateException.class, () -> scheduler.submit(callable));
+            assertThrows(TimeoutException.class, () -> future.get(100, TimeUnit.MILLISECONDS));
+        }
+        ExecutionException ex = assertThrows(ExecutionException.class, future::get);
+        assertTrue(ex.getCause() instanceof IllegalStateException);
+    }
+}
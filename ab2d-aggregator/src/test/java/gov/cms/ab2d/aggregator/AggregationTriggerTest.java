@@ -0,0 +1,76 @@
+package gov.cms.ab2d.aggregator;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static gov.cms.ab2d.aggregator.FileOutputType.DATA;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AggregationTriggerTest {
+    private static final String JOB_ID = "job1";
+    private static final String STREAM_DIR = "streaming";
+    private static final String FINISH_DIR = "finished";
+
+    @Test
+    void testPolling() throws InterruptedException {
+        try (AggregationTrigger trigger = AggregationTrigger.polling()) {
+            assertFalse(trigger.await(10));
+        }
+    }
+
+    @Test
+    void testJobSignal(@TempDir File tmpDir) throws InterruptedException {
+        String jobDir = tmpDir.getAbsolutePath() + File.separator + JOB_ID;
+        // Nobody is listening, this should be ignored
+        JobSignal.signal(jobDir);
+        assertFalse(JobSignal.isRegistered(jobDir));
+
+        try (JobSignal signal = JobSignal.register(jobDir)) {
+            assertTrue(JobSignal.isRegistered(jobDir));
+            assertFalse(signal.await(10));
+
+            // A signal fired before we wait isn't lost
+            JobSignal.signal(jobDir + File.separator + "." + File.separator);
+            assertTrue(signal.await(10));
+            assertFalse(signal.await(10));
+        }
+        assertFalse(JobSignal.isRegistered(jobDir));
+    }
+
+    @Test
+    void testClaimsStreamAndWorkerSignal(@TempDir File tmpDir) throws IOException, InterruptedException {
+        String jobDir = tmpDir.getAbsolutePath() + File.separator + JOB_ID;
+        JobHelper.workerSetUpJobDirectories(JOB_ID, tmpDir.getAbsolutePath(), STREAM_DIR, FINISH_DIR);
+        try (JobSignal signal = JobSignal.register(jobDir)) {
+            try (ClaimsStream stream = new ClaimsStream(JOB_ID, tmpDir.getAbsolutePath(), DATA, STREAM_DIR, FINISH_DIR)) {
+                stream.write("abc\n");
+                assertFalse(signal.await(10));
+            }
+            assertTrue(signal.await(10));
+
+            JobHelper.workerFinishJob(jobDir + File.separator + STREAM_DIR);
+            assertTrue(signal.await(10));
+        }
+    }
+
+    @Test
+    void testDirectoryWatch(@TempDir File tmpDir) throws IOException, InterruptedException {
+        JobHelper.workerSetUpJobDirectories(JOB_ID, tmpDir.getAbsolutePath(), STREAM_DIR, FINISH_DIR);
+        Path jobDir = Path.of(tmpDir.getAbsolutePath(), JOB_ID);
+        try (DirectoryWatchTrigger trigger = new DirectoryWatchTrigger(jobDir, jobDir.resolve(FINISH_DIR))) {
+            assertFalse(trigger.await(10));
+
+            Files.writeString(jobDir.resolve(FINISH_DIR).resolve("f1.ndjson"), "abc\n");
+            assertTrue(trigger.await(30000));
+
+            JobHelper.workerFinishJob(jobDir.resolve(STREAM_DIR).toString());
+            assertTrue(trigger.await(30000));
+        }
+    }
+}
@@ -19,6 +19,9 @@ import static gov.cms.ab2d.aggregator.Aggregator.ONE_MEGA_BYTE;
 import static gov.cms.ab2d.aggregator.FileOutputType.DATA;
 import static gov.cms.ab2d.aggregator.FileOutputType.ERROR;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
 
 class AggregatorCallableTest {
@@ -83,6 +86,105 @@ class AggregatorCallableTest {
         assertEquals(13, future.get());
     }
 
+    @Test
+    void testDoItAllInProcess(@TempDir File tmpDirFolder) throws IOException, InterruptedException, ExecutionException {
+        AggregatorCallable callable = new AggregatorCallable(
+            tmpDirFolder.getAbsolutePath(), JOB_ID, "contract", MAX_MEG, STREAM_DIR, FINISH_DIR, MULTIPLIER
+        );
+        callable.setTriggerMode(AggregatorCallable.TriggerMode.IN_PROCESS);
+        // Make sure we're not relying on the timeout
+        callable.setWaitMillis(60000);
+        assertFalse(callable.getStats().isAggregated());
+        assertEquals(13, runJob(tmpDirFolder, callable));
+
+        AggregatorStats stats = callable.getStats();
+        assertTrue(stats.isDoneStreaming());
+        assertTrue(stats.isAggregated());
+        assertEquals(13, stats.getPartsWritten());
+        assertEquals(0, stats.getBytesPendingFinished());
+        assertTrue(stats.getBytesCombined() > 0);
+        assertTrue(stats.getBytesCombinedPerSecond() > 0);
+        assertTrue(stats.getStreamEndToAggregatedMillis() >= 0);
+    }
+
+    @Test
+    void testDoItAllWatchService(@TempDir File tmpDirFolder) throws IOException, InterruptedException, ExecutionException {
+        AggregatorCallable callable = new AggregatorCallable(
+            tmpDirFolder.getAbsolutePath(), JOB_ID, "contract", MAX_MEG, STREAM_DIR, FINISH_DIR, MULTIPLIER
+        );
+        callable.setTriggerMode(AggregatorCallable.TriggerMode.WATCH_SERVICE);
+        assertEquals(13, runJob(tmpDirFolder, callable));
+    }
+
+    @Test
+    void testDoItAllInParallel(@TempDir File tmpDirFolder) throws IOException, InterruptedException, ExecutionException {
+        AggregatorCallable callable = new AggregatorCallable(
+            tmpDirFolder.getAbsolutePath(), JOB_ID, "contract", MAX_MEG, STREAM_DIR, FINISH_DIR, MULTIPLIER
+        );
+        callable.setTriggerMode(AggregatorCallable.TriggerMode.IN_PROCESS);
+        callable.setPackingStrategy(new BestFitPackingStrategy());
+        callable.setParallelism(4);
+        callable.setJournaled(true);
+        int parts = runJob(tmpDirFolder, callable);
+
+        // The journal is removed once the job is done
+        assertFalse(Files.exists(Path.of(tmpDirFolder.getAbsolutePath(), JOB_ID, AggregationJournal.FILE_NAME)));
+
+        // Every byte made it into a sequentially numbered part no bigger than the max
+        File[] files = new File(tmpDirFolder.getAbsolutePath() + File.separator + JOB_ID).listFiles(File::isFile);
+        assertNotNull(files);
+        assertEquals(parts, files.length);
+        for (int i = 1; i <= parts; i++) {
+            Path part = Path.of(tmpDirFolder.getAbsolutePath(), JOB_ID, String.format("contract_%04d_error.ndjson", i));
+            assertTrue(Files.size(part) <= MAX_MEG * ONE_MEGA_BYTE);
+        }
+    }
+
+    @Test
+    void sealsOldDataWhileStreaming(@TempDir File tmpDirFolder) throws Exception {
+        AggregatorCallable callable = new AggregatorCallable(
+            tmpDirFolder.getAbsolutePath(), JOB_ID, "contract", MAX_MEG, STREAM_DIR, FINISH_DIR, MULTIPLIER
+        );
+        callable.setTriggerMode(AggregatorCallable.TriggerMode.IN_PROCESS);
+        // Only the age of the data should wake the aggregator up after the file is signalled
+        callable.setWaitMillis(60_000);
+        callable.setMaxPendingMillis(200);
+        JobHelper.workerSetUpJobDirectories(JOB_ID, tmpDirFolder.getAbsolutePath(), STREAM_DIR, FINISH_DIR);
+        Future<Integer> future = executor.submit(callable);
+        try (ClaimsStream stream = new ClaimsStream(JOB_ID, tmpDirFolder.getAbsolutePath(), DATA, STREAM_DIR, FINISH_DIR, MIB)) {
+            stream.write(AggregatorTest.getAlphaNumericString(MIB / 2) + "\n");
+        }
+        // A part well short of multiplier parts' worth of data shows up while the worker is still streaming
+        Path part = Path.of(tmpDirFolder.getAbsolutePath(), JOB_ID, "contract_0001.ndjson");
+        long deadline = System.currentTimeMillis() + 10_000;
+        // The part is counted once it is written
+        while ((!Files.exists(part) || callable.getStats().getPartsSealedForAge() == 0)
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertTrue(Files.exists(part));
+        assertEquals(1, callable.getStats().getPartsSealedForAge());
+        assertFalse(callable.getStats().isDoneStreaming());
+
+        JobHelper.workerFinishJob(tmpDirFolder.getAbsolutePath() + File.separator + JOB_ID + File.separator + STREAM_DIR);
+        assertEquals(1, future.get());
+    }
+
+    private int runJob(File tmpDirFolder, AggregatorCallable callable) throws IOException, InterruptedException, ExecutionException {
+        JobHelper.workerSetUpJobDirectories(JOB_ID, tmpDirFolder.getAbsolutePath(), STREAM_DIR, FINISH_DIR);
+        Future<Integer> future = executor.submit(callable);
+        for (int i = 0; i < 100; i++) {
+            try (ClaimsStream stream = new ClaimsStream(JOB_ID, tmpDirFolder.getAbsolutePath(), ERROR, STREAM_DIR, FINISH_DIR, MIB)) {
+                for (int b = 0; b < 250; b++) {
+                    int length = RANDOM.nextInt(1000);
+                    stream.write(AggregatorTest.getAlphaNumericString(length) + "\n");
+                }
+            }
+        }
+        JobHelper.workerFinishJob(tmpDirFolder.getAbsolutePath() + File.separator + JOB_ID + File.separator + STREAM_DIR);
+        return future.get();
+    }
+
     // Disabled because it takes a long time but keeping as it is useful when you are doing performance tests
     @Disabled
     @Test
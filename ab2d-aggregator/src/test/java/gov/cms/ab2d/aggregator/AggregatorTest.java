@@ -9,8 +9,14 @@ import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -21,6 +27,7 @@ import static gov.cms.ab2d.aggregator.FileOutputType.ERROR;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 class AggregatorTest {
@@ -55,6 +62,354 @@ class AggregatorTest {
         assertEquals(aggregator.getContractNumber() + "_0003_error.ndjson", aggregator.getNextFilePart(ERROR));
     }
 
+    @Test
+    void nextFileConcurrently(@TempDir File tmpDir) throws Exception {
+        Aggregator aggregator = new Aggregator(JOB_ID, CONTRACT_NUM, tmpDir.getAbsolutePath(), MAX_MEGA, STREAMING_DIR,
+                FINISHED_DIR, MULTIPLIER);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<String>> futures = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                futures.add(executor.submit(() -> aggregator.getNextFilePart(DATA)));
+            }
+            Set<String> names = new HashSet<>();
+            for (Future<String> future : futures) {
+                names.add(future.get());
+            }
+            assertEquals(200, names.size());
+            assertTrue(names.contains(CONTRACT_NUM + "_0200.ndjson"));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void aggregateParts(@TempDir File tmpDir) throws IOException, InterruptedException {
+        Aggregator aggregator = new Aggregator(JOB_ID, CONTRACT_NUM, tmpDir.getAbsolutePath(), MAX_MEGA, STREAMING_DIR,
+                FINISHED_DIR, MULTIPLIER);
+        aggregator.setPackingStrategy(new BestFitPackingStrategy());
+        String finishedDir = tmpDir.getAbsolutePath() + File.separator + JOB_ID + File.separator + FINISHED_DIR;
+        String jobDir = tmpDir.getAbsolutePath() + File.separator + JOB_ID;
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            writeToFile(finishedDir + File.separator + F_1_NDJSON, 700 * 1024);
+            writeToFile(finishedDir + File.separator + F_2_NDJSON, 300 * 1024);
+            writeToFile(finishedDir + File.separator + F_3_NDJSON, 800 * 1024);
+            writeToFile(finishedDir + File.separator + F_4_NDJSON, 200 * 1024);
+            writeToFile(finishedDir + File.separator + F_5_NDJSON, 500 * 1024);
+            writeToFile(finishedDir + File.separator + "f1_error.ndjson", 10);
+
+            // 2500 KB available, only one 1000 KB part can be written before we're under 2 MB
+            assertEquals(1, aggregator.aggregateParts(executor, 4, DATA, ERROR));
+            assertTrue(new File(jobDir + File.separator + CONTRACT_NUM + DATA_1_EXT).exists());
+
+            // Once the worker is done everything goes, the data and the error parts at the same time
+            JobHelper.workerFinishJob(jobDir + File.separator + STREAMING_DIR);
+            assertEquals(3, aggregator.aggregateParts(executor, 4, DATA, ERROR));
+            assertEquals(0, aggregator.aggregateParts(executor, 4, DATA, ERROR));
+
+            assertEquals(1000 * 1024, Files.size(Path.of(jobDir, CONTRACT_NUM + DATA_1_EXT)));
+            assertEquals(1000 * 1024, Files.size(Path.of(jobDir, CONTRACT_NUM + DATA_2_EXT)));
+            assertEquals(500 * 1024, Files.size(Path.of(jobDir, CONTRACT_NUM + "_0003.ndjson")));
+            assertEquals(10, Files.size(Path.of(jobDir, CONTRACT_NUM + "_0001_error.ndjson")));
+            String[] left = new File(finishedDir).list();
+            assertNotNull(left);
+            assertEquals(0, left.length);
+            assertEquals(3, aggregator.getPackingReport().getParts(DATA));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void aggregateCompressed(@TempDir File tmpDir) throws IOException {
+        Aggregator aggregator = new Aggregator(JOB_ID, CONTRACT_NUM, tmpDir.getAbsolutePath(), MAX_MEGA, STREAMING_DIR,
+                FINISHED_DIR, MULTIPLIER);
+        aggregator.setCompressed(true);
+        aggregator.setSizeBasis(Aggregator.SizeBasis.COMPRESSED);
+        assertEquals(aggregator.getMaxFileSize(), aggregator.getPlanningFileSize());
+
+        String finishedDir = tmpDir.getAbsolutePath() + File.separator + JOB_ID + File.separator + FINISHED_DIR;
+        String jobDir = tmpDir.getAbsolutePath() + File.separator + JOB_ID;
+        writeToFile(finishedDir + File.separator + F_1_NDJSON, 600 * 1024);
+        writeToFile(finishedDir + File.separator + F_2_NDJSON, 300 * 1024);
+        writeToFile(finishedDir + File.separator + "f1_error.ndjson", 100);
+        String expected = Files.readString(Path.of(finishedDir, F_1_NDJSON)) + Files.readString(Path.of(finishedDir, F_2_NDJSON));
+        JobHelper.workerFinishJob(jobDir + File.separator + STREAMING_DIR);
+
+        assertEquals(PERFORMED, aggregator.aggregate(DATA));
+        assertEquals(PERFORMED, aggregator.aggregate(ERROR));
+        assertEquals(NOT_PERFORMED, aggregator.aggregate(DATA));
+
+        Path dataPart = Path.of(jobDir, CONTRACT_NUM + "_0001.ndjson.gz");
+        assertEquals(expected, FileUtilsTest.gunzip(dataPart));
+        assertTrue(Files.exists(Path.of(jobDir, CONTRACT_NUM + "_0001_error.ndjson.gz")));
+        assertFalse(Files.exists(Path.of(jobDir, CONTRACT_NUM + DATA_1_EXT)));
+
+        // Random alphanumeric data compresses, so now more data is planned for each compressed part
+        assertTrue(aggregator.getPlanningFileSize() > aggregator.getMaxFileSize());
+        assertEquals(Files.size(dataPart), aggregator.getPackingReport().getBytes(FileOutputType.DATA_COMPRESSED));
+    }
+
+    @Test
+    void plainPartsFromCompressedStreams(@TempDir File tmpDir) throws IOException {
+        Aggregator aggregator = new Aggregator(JOB_ID, CONTRACT_NUM, tmpDir.getAbsolutePath(), MAX_MEGA, STREAMING_DIR,
+                FINISHED_DIR, MULTIPLIER);
+        String jobDir = tmpDir.getAbsolutePath() + File.separator + JOB_ID;
+        // Each stream compresses to a few KB, but there's 3MB of data in all
+        String line = getAlphaNumericString(99) + "\n";
+        long written = 0;
+        for (int i = 0; i < 10; i++) {
+            try (ClaimsStream stream = new ClaimsStream(JOB_ID, tmpDir.getAbsolutePath(), FileOutputType.DATA_COMPRESSED, STREAMING_DIR, FINISHED_DIR)) {
+                for (int j = 0; j < 3000; j++) {
+                    stream.write(line);
+                    written += line.length();
+                }
+            }
+        }
+        JobHelper.workerFinishJob(jobDir + File.separator + STREAMING_DIR);
+
+        // The finished files are planned by how big they are once decompressed into the part
+        aggregator.getIndex().refresh();
+        assertEquals(written, aggregator.getIndex().getSize(Aggregator.getInputTypes(DATA)));
+        while (aggregator.aggregate(DATA) == PERFORMED) {
+            // Keep going until every finished file is in a part
+        }
+        List<File> parts = FileUtils.listFiles(jobDir, DATA);
+        assertTrue(parts.size() >= 3);
+        for (File part : parts) {
+            assertTrue(part.length() <= (long) MAX_MEGA * Aggregator.ONE_MEGA_BYTE);
+        }
+        assertEquals(written, parts.stream().mapToLong(File::length).sum());
+    }
+
+    @Test
+    void aggregateCompressedStreams(@TempDir File tmpDir) throws IOException {
+        Aggregator aggregator = new Aggregator(JOB_ID, CONTRACT_NUM, tmpDir.getAbsolutePath(), MAX_MEGA, STREAMING_DIR,
+                FINISHED_DIR, MULTIPLIER);
+        String jobDir = tmpDir.getAbsolutePath() + File.separator + JOB_ID;
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 3; i++) {
+            try (ClaimsStream stream = new ClaimsStream(JOB_ID, tmpDir.getAbsolutePath(), DATA, STREAMING_DIR, FINISHED_DIR, 0, true)) {
+                String line = getAlphaNumericString(100) + "\n";
+                expected.append(line);
+                stream.write(line);
+            }
+        }
+        try (ClaimsStream stream = new ClaimsStream(JOB_ID, tmpDir.getAbsolutePath(), DATA, STREAMING_DIR, FINISHED_DIR)) {
+            String line = getAlphaNumericString(100) + "\n";
+            expected.append(line);
+            stream.write(line);
+        }
+        JobHelper.workerFinishJob(jobDir + File.separator + STREAMING_DIR);
+
+        // Compressed output - gzip members are copied in as they are, plain files are compressed
+        aggregator.setCompressed(true);
+        assertEquals(PERFORMED, aggregator.aggregate(DATA));
+        assertEquals(NOT_PERFORMED, aggregator.aggregate(DATA));
+        String combined = FileUtilsTest.gunzip(Path.of(jobDir, CONTRACT_NUM + "_0001.ndjson.gz"));
+        assertEquals(expected.length(), combined.length());
+        for (String line : expected.toString().split("\n")) {
+            assertTrue(combined.contains(line));
+        }
+
+        // Plain output - compressed files are decompressed
+        String line = getAlphaNumericString(100) + "\n";
+        try (ClaimsStream stream = new ClaimsStream(JOB_ID, tmpDir.getAbsolutePath(), FileOutputType.DATA_COMPRESSED, STREAMING_DIR, FINISHED_DIR)) {
+            stream.write(line);
+        }
+        JobHelper.workerFinishJob(jobDir + File.separator + STREAMING_DIR);
+        aggregator.setCompressed(false);
+        aggregator.setSummarizeParts(true);
+        assertEquals(PERFORMED, aggregator.aggregate(DATA));
+        assertEquals(line, Files.readString(Path.of(jobDir, CONTRACT_NUM + DATA_1_EXT)));
+
+        // The summary describes the decompressed data in the part
+        CombineResult summary = aggregator.getPartSummaries().get(CONTRACT_NUM + DATA_1_EXT);
+        assertEquals(line.length(), summary.getByteCount());
+        assertEquals(1, summary.getRecordCount());
+    }
+
+    @Test
+    void splitOversizeFiles(@TempDir File tmpDir) throws IOException {
+        Aggregator aggregator = new Aggregator(JOB_ID, CONTRACT_NUM, tmpDir.getAbsolutePath(), MAX_MEGA, STREAMING_DIR,
+                FINISHED_DIR, MULTIPLIER);
+        String jobDir = tmpDir.getAbsolutePath() + File.separator + JOB_ID;
+        String finishedDir = jobDir + File.separator + FINISHED_DIR;
+        // One beneficiary with three and a half parts worth of records
+        StringBuilder data = new StringBuilder();
+        while (data.length() < 3.5 * aggregator.getMaxFileSize()) {
+            data.append(getAlphaNumericString(1 + RANDOM.nextInt(5000))).append('\n');
+        }
+        Files.writeString(Path.of(finishedDir, F_1_NDJSON), data);
+        Files.writeString(Path.of(finishedDir, F_2_NDJSON), getAlphaNumericString(100 * 1024) + "\n");
+        assertTrue(new File(jobDir, STREAMING_DIR).delete());
+
+        int aggregations = 0;
+        while (aggregator.aggregate(DATA) == PERFORMED) {
+            aggregations++;
+        }
+        assertEquals(4, aggregations);
+        List<File> parts = FileUtils.listFiles(jobDir, DATA);
+        assertEquals(4, parts.size());
+        long records = 0;
+        for (File part : parts) {
+            assertTrue(part.length() <= aggregator.getMaxFileSize());
+            records += Files.readAllLines(part.toPath()).size();
+        }
+        assertEquals(data.chars().filter(c -> c == '\n').count() + 1, records);
+        assertTrue(FileUtils.listFiles(finishedDir, DATA).isEmpty());
+
+        // Without splitting the big file is a part of its own
+        Aggregator unsplit = new Aggregator("job456", CONTRACT_NUM, tmpDir.getAbsolutePath(), MAX_MEGA, STREAMING_DIR,
+                FINISHED_DIR, MULTIPLIER);
+        unsplit.setSplitOversizeFiles(false);
+        String unsplitDir = tmpDir.getAbsolutePath() + File.separator + "job456";
+        Files.writeString(Path.of(unsplitDir, FINISHED_DIR, F_1_NDJSON), data);
+        assertTrue(new File(unsplitDir, STREAMING_DIR).delete());
+        assertEquals(PERFORMED, unsplit.aggregate(DATA));
+        assertEquals(data.length(), new File(unsplitDir, CONTRACT_NUM + DATA_1_EXT).length());
+    }
+
+    @Test
+    void deduplicate(@TempDir File tmpDir) throws IOException {
+        Aggregator aggregator = new Aggregator(JOB_ID, CONTRACT_NUM, tmpDir.getAbsolutePath(), MAX_MEGA, STREAMING_DIR,
+                FINISHED_DIR, MULTIPLIER);
+        aggregator.setSeenEobIds(new EobIdSet());
+        String jobDir = tmpDir.getAbsolutePath() + File.separator + JOB_ID;
+        String finishedDir = jobDir + File.separator + FINISHED_DIR;
+        // A retried batch wrote eobs 2 and 3 a second time
+        Files.writeString(Path.of(finishedDir, F_1_NDJSON), eob(1) + eob(2) + eob(3));
+        Files.writeString(Path.of(finishedDir, F_2_NDJSON), eob(2) + eob(3) + eob(4));
+        Files.writeString(Path.of(finishedDir, F_3_NDJSON), "{\"resourceType\":\"OperationOutcome\"}\n");
+        assertTrue(new File(jobDir, STREAMING_DIR).delete());
+
+        assertEquals(PERFORMED, aggregator.aggregate(DATA));
+        List<String> lines = Files.readAllLines(Path.of(jobDir, CONTRACT_NUM + DATA_1_EXT));
+        assertEquals(5, lines.size());
+        for (int i = 1; i <= 4; i++) {
+            assertTrue(lines.contains(eob(i).trim()));
+        }
+        assertEquals(2, aggregator.getStats().getDuplicatesDropped());
+    }
+
+    @Test
+    void writeToObjectStore(@TempDir File tmpDir) throws IOException {
+        Aggregator aggregator = new Aggregator(JOB_ID, CONTRACT_NUM, tmpDir.getAbsolutePath(), MAX_MEGA, STREAMING_DIR,
+                FINISHED_DIR, MULTIPLIER);
+        LocalS3StandIn s3 = new LocalS3StandIn();
+        aggregator.setPartSink(new S3MultipartPartSink(s3, "bucket", JOB_ID + "/", null));
+        aggregator.setSummarizeParts(true);
+        String jobDir = tmpDir.getAbsolutePath() + File.separator + JOB_ID;
+        String finishedDir = jobDir + File.separator + FINISHED_DIR;
+        writeToFile(finishedDir + File.separator + F_1_NDJSON, 300);
+        writeToFile(finishedDir + File.separator + F_2_NDJSON, 400);
+        // Biggest file first
+        String expected = Files.readString(Path.of(finishedDir, F_2_NDJSON)) + Files.readString(Path.of(finishedDir, F_1_NDJSON));
+        assertTrue(new File(jobDir, STREAMING_DIR).delete());
+
+        assertEquals(PERFORMED, aggregator.aggregate(DATA));
+        assertEquals(NOT_PERFORMED, aggregator.aggregate(DATA));
+        // The part went straight to the object store, nothing was written to the job directory
+        assertFalse(new File(jobDir, CONTRACT_NUM + DATA_1_EXT).exists());
+        byte[] part = s3.getObject("bucket", JOB_ID + "/" + CONTRACT_NUM + DATA_1_EXT);
+        assertEquals(expected, new String(part, StandardCharsets.UTF_8));
+        assertEquals(part.length, aggregator.getPartSummaries().get(CONTRACT_NUM + DATA_1_EXT).getByteCount());
+        assertEquals(0, s3.getOpenUploads());
+        assertTrue(FileUtils.listFiles(finishedDir, DATA).isEmpty());
+    }
+
+    @Test
+    void indexParts(@TempDir File tmpDir) throws IOException {
+        Aggregator aggregator = new Aggregator(JOB_ID, CONTRACT_NUM, tmpDir.getAbsolutePath(), MAX_MEGA, STREAMING_DIR,
+                FINISHED_DIR, MULTIPLIER);
+        aggregator.setIndexInterval(10);
+        aggregator.setIndexPatients(true);
+        String jobDir = tmpDir.getAbsolutePath() + File.separator + JOB_ID;
+        String finishedDir = jobDir + File.separator + FINISHED_DIR;
+        StringBuilder data = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            data.append(PartIndexTest.eob(i, "-" + i / 5));
+        }
+        Files.writeString(Path.of(finishedDir, F_1_NDJSON), data.toString());
+        assertTrue(new File(jobDir, STREAMING_DIR).delete());
+
+        assertEquals(PERFORMED, aggregator.aggregate(DATA));
+        Path part = Path.of(jobDir, CONTRACT_NUM + DATA_1_EXT);
+        assertTrue(Files.exists(Path.of(jobDir, PartIndex.getSidecarName(CONTRACT_NUM + DATA_1_EXT))));
+        try (IndexedPartReader reader = new IndexedPartReader(part)) {
+            assertEquals(100, reader.getRecordCount());
+            assertEquals(data.indexOf(PartIndexTest.eob(35, "-7")), reader.getRecordOffset(35));
+            assertEquals(data.indexOf(PartIndexTest.eob(60, "-12")), reader.getPatientOffset("-12"));
+        }
+    }
+
+    private static String eob(int id) {
+        return "{\"resourceType\":\"ExplanationOfBenefit\",\"id\":\"carrier-" + id + "\",\"status\":\"active\"}\n";
+    }
+
+    @Test
+    void resumeFromJournal(@TempDir File tmpDir) throws IOException {
+        Aggregator aggregator = new Aggregator(JOB_ID, CONTRACT_NUM, tmpDir.getAbsolutePath(), MAX_MEGA, STREAMING_DIR,
+                FINISHED_DIR, MULTIPLIER);
+        String jobDir = tmpDir.getAbsolutePath() + File.separator + JOB_ID;
+        String finishedDir = jobDir + File.separator + FINISHED_DIR;
+        writeToFile(finishedDir + File.separator + F_1_NDJSON, 100);
+        writeToFile(finishedDir + File.separator + F_2_NDJSON, 200);
+        writeToFile(finishedDir + File.separator + F_3_NDJSON, 300);
+        String expected = Files.readString(Path.of(finishedDir, F_1_NDJSON)) + Files.readString(Path.of(finishedDir, F_2_NDJSON));
+
+        // The last aggregator finished part 1 but died before deleting f3, and died part way through writing part 2
+        Path journalFile = Path.of(jobDir, AggregationJournal.FILE_NAME);
+        try (AggregationJournal journal = new AggregationJournal(journalFile)) {
+            journal.partPlanned(DATA, CONTRACT_NUM + DATA_1_EXT, List.of(new File(finishedDir, F_3_NDJSON)));
+            journal.partCompleted(CONTRACT_NUM + DATA_1_EXT);
+            journal.partPlanned(DATA, CONTRACT_NUM + DATA_2_EXT,
+                    List.of(new File(finishedDir, F_1_NDJSON), new File(finishedDir, F_2_NDJSON)));
+        }
+        Files.writeString(Path.of(jobDir, CONTRACT_NUM + DATA_1_EXT), "part 1");
+        Files.writeString(Path.of(jobDir, CONTRACT_NUM + DATA_2_EXT), "half of part 2 that is longer than part 2 will be");
+
+        try (AggregationJournal journal = new AggregationJournal(journalFile)) {
+            assertEquals(1, aggregator.resume(journal));
+            assertEquals("part 1", Files.readString(Path.of(jobDir, CONTRACT_NUM + DATA_1_EXT)));
+            assertEquals(expected, Files.readString(Path.of(jobDir, CONTRACT_NUM + DATA_2_EXT)));
+            assertTrue(FileUtils.listFiles(finishedDir, DATA).isEmpty());
+            assertTrue(journal.read().stream().allMatch(AggregationJournal.JournaledPart::isCompleted));
+
+            // New parts carry on from the journal
+            assertEquals(CONTRACT_NUM + "_0003.ndjson", aggregator.getNextFilePart(DATA));
+            assertEquals(CONTRACT_NUM + "_0001_error.ndjson", aggregator.getNextFilePart(ERROR));
+        }
+    }
+
+    @Test
+    void stats(@TempDir File tmpDir) throws IOException {
+        Aggregator aggregator = new Aggregator(JOB_ID, CONTRACT_NUM, tmpDir.getAbsolutePath(), MAX_MEGA, STREAMING_DIR,
+                FINISHED_DIR, MULTIPLIER);
+        String jobDir = tmpDir.getAbsolutePath() + File.separator + JOB_ID;
+        writeToFile(jobDir + File.separator + STREAMING_DIR + File.separator + "tmp_1.ndjson", 300);
+        writeToFile(jobDir + File.separator + FINISHED_DIR + File.separator + F_1_NDJSON, 1000);
+        assertEquals(NOT_PERFORMED, aggregator.aggregate(DATA));
+
+        AggregatorStats stats = aggregator.getStats();
+        assertEquals(300, stats.getBytesPendingStreaming());
+        assertEquals(1000, stats.getBytesPendingFinished());
+        assertFalse(stats.isDoneStreaming());
+        assertEquals(-1, stats.getStreamEndToAggregatedMillis());
+
+        JobHelper.workerFinishJob(jobDir + File.separator + STREAMING_DIR);
+        assertEquals(PERFORMED, aggregator.aggregate(DATA));
+        stats = aggregator.getStats();
+        assertEquals(0, stats.getBytesPendingStreaming());
+        assertEquals(0, stats.getBytesPendingFinished());
+        assertEquals(1, stats.getPartsWritten());
+        assertEquals(1000, stats.getBytesCombined());
+        assertTrue(stats.isDoneStreaming());
+        assertFalse(stats.isAggregated());
+        assertTrue(stats.getStreamEndToAggregatedMillis() >= 0);
+    }
+
     @Test
     void aggregate(@TempDir File tmpDir) throws IOException {
         Aggregator aggregator = new Aggregator(JOB_ID, CONTRACT_NUM, tmpDir.getAbsolutePath(), MAX_MEGA, STREAMING_DIR,
@@ -169,6 +524,62 @@ class AggregatorTest {
         assertTrue(aggregator.okayToDoAggregation(DATA));
     }
 
+    @Test
+    void sealForAge(@TempDir File tmpDir) throws IOException {
+        Aggregator aggregator = new Aggregator(JOB_ID, CONTRACT_NUM, tmpDir.getAbsolutePath(), MAX_MEGA, STREAMING_DIR,
+                FINISHED_DIR, MULTIPLIER);
+        aggregator.setMaxPendingMillis(60_000);
+        String jobDir = tmpDir.getAbsolutePath() + File.separator + JOB_ID;
+        String jobDoneDir = jobDir + File.separator + FINISHED_DIR;
+        long longAgo = System.currentTimeMillis() - 120_000;
+
+        // Old enough, but too little for a part
+        writeToFile(jobDoneDir + File.separator + F_1_NDJSON, 100 * 1024);
+        assertTrue(new File(jobDoneDir, F_1_NDJSON).setLastModified(longAgo));
+        assertFalse(aggregator.okayToDoAggregation(DATA));
+        assertEquals(NOT_PERFORMED, aggregator.aggregate(DATA));
+        assertEquals(Long.MAX_VALUE, aggregator.getMillisUntilSealing());
+
+        // Now there's a quarter of a part, sealed with the newer file
+        writeToFile(jobDoneDir + File.separator + F_2_NDJSON, 200 * 1024);
+        assertTrue(aggregator.okayToDoAggregation(DATA));
+        assertEquals(PERFORMED, aggregator.aggregate(DATA));
+        assertEquals(300 * 1024, new File(jobDir, CONTRACT_NUM + DATA_1_EXT).length());
+
+        // Nothing old is waiting
+        writeToFile(jobDoneDir + File.separator + F_3_NDJSON, 300 * 1024);
+        assertEquals(NOT_PERFORMED, aggregator.aggregate(DATA));
+        long untilSealing = aggregator.getMillisUntilSealing();
+        assertTrue(untilSealing > 0 && untilSealing <= 60_000);
+
+        // The oldest files go first, and only as many as fit in a part. A part that can't be written isn't counted
+        writeToFile(jobDoneDir + File.separator + F_4_NDJSON, 800 * 1024);
+        assertTrue(new File(jobDoneDir, F_4_NDJSON).setLastModified(longAgo));
+        aggregator.setPartSink(new AggregatedPartSink() {
+            @Override
+            public PartOutput create(String partName) throws IOException {
+                throw new IOException("No room for " + partName);
+            }
+
+            @Override
+            public String getLocation(String partName) {
+                return partName;
+            }
+        });
+        assertThrows(IOException.class, () -> aggregator.aggregate(DATA));
+        assertEquals(1, aggregator.getStats().getPartsSealedForAge());
+        aggregator.setPartSink(new LocalPartSink(Path.of(jobDir)));
+        assertEquals(PERFORMED, aggregator.aggregate(DATA));
+        // The failed part used up its number
+        assertEquals(800 * 1024, new File(jobDir, CONTRACT_NUM + "_0003.ndjson").length());
+        assertTrue(new File(jobDoneDir, F_3_NDJSON).exists());
+        assertEquals(NOT_PERFORMED, aggregator.aggregate(DATA));
+
+        AggregatorStats stats = aggregator.getStats();
+        assertEquals(2, stats.getPartsSealedForAge());
+        assertTrue(stats.getOldestPendingMillis() < 60_000);
+    }
+
     @Test
     void getBestFiles(@TempDir File tmpDir) throws IOException {
         Aggregator aggregator = new Aggregator(JOB_ID, CONTRACT_NUM, tmpDir.getAbsolutePath(), MAX_MEGA, STREAMING_DIR,
@@ -0,0 +1,101 @@
+package gov.cms.ab2d.aggregator;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static gov.cms.ab2d.aggregator.FileOutputType.DATA;
+import static gov.cms.ab2d.aggregator.FileOutputType.ERROR;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ClaimsStreamFactoryTest {
+    private static final String JOB_ID = "job1";
+    private static final String STREAM_DIR = "streaming";
+    private static final String FINISH_DIR = "finished";
+
+    @Test
+    void streamsFromManyThreads(@TempDir File tmpDir) throws Exception {
+        StreamBufferPool pool = new StreamBufferPool(1024, 16, true);
+        ClaimsStreamFactory factory = new ClaimsStreamFactory(JOB_ID, tmpDir.getAbsolutePath(), STREAM_DIR, FINISH_DIR, pool);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        Set<String> expected = ConcurrentHashMap.newKeySet();
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                int thread = t;
+                futures.add(executor.submit(() -> {
+                    for (int batch = 0; batch < 25; batch++) {
+                        try (ClaimsStream stream = factory.newStream(DATA)) {
+                            // Records both smaller and bigger than the buffer
+                            for (int i = 0; i < 5; i++) {
+                                String record = thread + "-" + batch + "-" + AggregatorTest.getAlphaNumericString(i * 500);
+                                expected.add(record);
+                                stream.writeRecord(record);
+                            }
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        assertEquals(200, factory.getStreamsOpened());
+        File[] finished = Path.of(tmpDir.getAbsolutePath(), JOB_ID, FINISH_DIR).toFile().listFiles();
+        assertEquals(200, finished.length);
+        Set<String> read = new HashSet<>();
+        for (File file : finished) {
+            assertTrue(file.getName().startsWith("tmp_"));
+            assertEquals(DATA, FileOutputType.getFileType(file.getName()));
+            read.addAll(Files.readAllLines(file.toPath()));
+        }
+        assertEquals(expected, read);
+        assertEquals(0, Path.of(tmpDir.getAbsolutePath(), JOB_ID, STREAM_DIR).toFile().list().length);
+        // Streams reuse the buffers, at most one per thread is ever allocated
+        assertTrue(pool.getAllocations() <= 8);
+        assertEquals(pool.getAllocations(), pool.getFreeBuffers());
+    }
+
+    @Test
+    void compressedAndTakenNames(@TempDir File tmpDir) throws IOException {
+        ClaimsStreamFactory factory = new ClaimsStreamFactory(JOB_ID, tmpDir.getAbsolutePath(), STREAM_DIR, FINISH_DIR,
+                new StreamBufferPool(512, 1, false));
+        // A file left over with the name the next stream would get
+        File taken = Path.of(tmpDir.getAbsolutePath(), JOB_ID, STREAM_DIR,
+                factory.getNamePrefix() + "1" + ERROR.getCompressedType().getSuffix()).toFile();
+        assertTrue(taken.createNewFile());
+
+        StringBuilder expected = new StringBuilder();
+        File file;
+        try (ClaimsStream stream = factory.newStream(ERROR, true)) {
+            assertNotEquals(taken, stream.getFile());
+            for (int i = 0; i < 300; i++) {
+                String line = AggregatorTest.getAlphaNumericString(i) + "\n";
+                expected.append(line);
+                stream.write(line);
+            }
+            file = stream.getFile();
+        }
+        File finished = Path.of(tmpDir.getAbsolutePath(), JOB_ID, FINISH_DIR, file.getName()).toFile();
+        assertEquals(expected.toString(), FileUtilsTest.gunzip(finished.toPath()));
+        assertEquals(0, taken.length());
+    }
+}
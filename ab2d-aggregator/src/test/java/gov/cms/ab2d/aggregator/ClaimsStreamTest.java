@@ -1,12 +1,22 @@
 package gov.cms.ab2d.aggregator;
 
+import gov.cms.ab2d.fhir.FhirVersion;
+import org.hl7.fhir.r4.model.ExplanationOfBenefit;
+import org.hl7.fhir.r4.model.Patient;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 
 import static gov.cms.ab2d.aggregator.FileOutputType.DATA;
+import static gov.cms.ab2d.aggregator.FileOutputType.ERROR;
+import static gov.cms.ab2d.aggregator.FileOutputType.ERROR_COMPRESSED;
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
@@ -31,6 +41,84 @@ class ClaimsStreamTest {
         }
     }
 
+    @Test
+    void testCompressedStream(@TempDir File tmpDirFolder) throws IOException {
+        StringBuilder expected = new StringBuilder();
+        File finished;
+        try (ClaimsStream stream = new ClaimsStream(JOB_ID, tmpDirFolder.getAbsolutePath(), ERROR, STREAM_DIR, FINISH_DIR, MIB, true)) {
+            for (int i = 0; i < 1000; i++) {
+                String line = AggregatorTest.getAlphaNumericString(i) + "\n";
+                expected.append(line);
+                stream.write(line);
+            }
+            assertTrue(stream.getFile().getName().endsWith(ERROR_COMPRESSED.getSuffix()));
+            finished = stream.getFile();
+        }
+        finished = new File(finished.getParentFile().getParentFile(), FINISH_DIR + File.separator + finished.getName());
+        assertEquals(expected.toString(), FileUtilsTest.gunzip(finished.toPath()));
+        assertTrue(Files.size(finished.toPath()) < expected.length());
+
+        // Deflaters are reused, make sure the next stream isn't affected by the last one
+        try (ClaimsStream stream = new ClaimsStream(JOB_ID, tmpDirFolder.getAbsolutePath(), ERROR_COMPRESSED, STREAM_DIR, FINISH_DIR)) {
+            stream.write("abc\n");
+            stream.close();
+            assertEquals("abc\n", FileUtilsTest.gunzip(stream.getFile().toPath()));
+        }
+
+        // Nothing written means an empty file the aggregator will throw away
+        try (ClaimsStream stream = new ClaimsStream(JOB_ID, tmpDirFolder.getAbsolutePath(), ERROR_COMPRESSED, STREAM_DIR, FINISH_DIR)) {
+            stream.close();
+            assertEquals(0, Files.size(stream.getFile().toPath()));
+        }
+    }
+
+    @Test
+    void testWriteRecords(@TempDir File tmpDirFolder) throws IOException {
+        // Long enough to overflow the encoder's buffer in the middle of a multi-byte character
+        StringBuilder longRecord = new StringBuilder(AggregatorTest.getAlphaNumericString(8 * 1024 - 1));
+        longRecord.append("\uD83D\uDE00 caf\u00e9");
+        ByteBuffer direct = ByteBuffer.allocateDirect(20);
+        direct.put("direct".getBytes(StandardCharsets.UTF_8)).flip();
+        ByteBuffer slice = ByteBuffer.wrap("xxsliced\nxx".getBytes(StandardCharsets.UTF_8), 2, 7).slice();
+
+        try (ClaimsStream stream = new ClaimsStream(JOB_ID, tmpDirFolder.getAbsolutePath(), DATA, STREAM_DIR, FINISH_DIR)) {
+            stream.writeRecord("bytes".getBytes(StandardCharsets.UTF_8));
+            stream.writeRecord("framed\n".getBytes(StandardCharsets.UTF_8));
+            stream.writeRecord(direct);
+            stream.writeRecord(slice);
+            stream.writeRecord(longRecord);
+            stream.writeRecord("lone \uD83D");
+            stream.writeRecord("");
+            assertEquals(0, direct.remaining());
+            assertEquals(0, slice.remaining());
+            stream.close();
+
+            String expected = "bytes\nframed\ndirect\nsliced\n" + longRecord + "\nlone ?\n\n";
+            assertEquals(expected, Files.readString(stream.getFile().toPath()));
+            assertEquals(expected.getBytes(StandardCharsets.UTF_8).length, stream.getBytesWritten());
+        }
+    }
+
+    @Test
+    void testWriteResources(@TempDir File tmpDirFolder) throws IOException {
+        Patient patient = new Patient();
+        patient.setId("patient-1");
+        patient.addName().setFamily("Z\u00fcrich");
+        ExplanationOfBenefit eob = new ExplanationOfBenefit();
+        eob.setId("eob-1");
+
+        try (ClaimsStream stream = new ClaimsStream(JOB_ID, tmpDirFolder.getAbsolutePath(), DATA, STREAM_DIR, FINISH_DIR)) {
+            stream.writeRecord(patient, FhirVersion.R4);
+            stream.writeRecord(eob, FhirVersion.R4);
+            stream.close();
+
+            String expected = FhirVersion.R4.getJsonParser().encodeResourceToString(patient) + "\n"
+                    + FhirVersion.R4.getJsonParser().encodeResourceToString(eob) + "\n";
+            assertEquals(expected, Files.readString(stream.getFile().toPath()));
+            assertEquals(expected.getBytes(StandardCharsets.UTF_8).length, stream.getBytesWritten());
+        }
+    }
+
     @Test
     void testCreateAndWriteToStream(@TempDir File tmpDirFolder) {
         ClaimsStream savedStream = null;
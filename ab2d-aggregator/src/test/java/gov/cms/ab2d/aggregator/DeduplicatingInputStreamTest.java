@@ -0,0 +1,77 @@
+package gov.cms.ab2d.aggregator;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class DeduplicatingInputStreamTest {
+
+    @Test
+    void findId() {
+        assertEquals("carrier-1", id("{\"resourceType\":\"ExplanationOfBenefit\",\"id\":\"carrier-1\",\"meta\":{}}"));
+        // Nested ids and values that look like keys don't count
+        assertEquals("top", id("{\"meta\":{\"id\":\"nested\"},\"list\":[{\"id\":\"x\"}],\"type\":\"id\",\"id\":\"top\"}"));
+        assertEquals("a\\\"b", id("{ \"note\" : \"an \\\"id\\\" here\", \"id\" : \"a\\\"b\" }"));
+        assertNull(id("{\"resourceType\":\"OperationOutcome\"}"));
+        assertNull(id("{\"id\":12}"));
+        assertNull(id("not json"));
+    }
+
+    @Test
+    void dropDuplicates() throws IOException {
+        EobIdSet seen = new EobIdSet();
+        seen.add("eob-0");
+        String big = "x".repeat(200_000);
+        String input = record("eob-0", "already written")
+                + record("eob-1", big)
+                + record("eob-2", "b")
+                + record("eob-1", "again")
+                + "{\"resourceType\":\"ExplanationOfBenefit\"}\n"
+                + "{\"resourceType\":\"ExplanationOfBenefit\"}\n"
+                + "{\"id\":\"eob-3\"}";
+        String expected = record("eob-1", big)
+                + record("eob-2", "b")
+                + "{\"resourceType\":\"ExplanationOfBenefit\"}\n"
+                + "{\"resourceType\":\"ExplanationOfBenefit\"}\n"
+                + "{\"id\":\"eob-3\"}";
+        assertEquals(expected, read(input, seen));
+        assertEquals(2, seen.getDuplicates());
+
+        // Everything has been seen now
+        assertEquals("", read(record("eob-2", "c") + record("eob-3", "d"), seen));
+        assertEquals("", read("", seen));
+
+        // One byte at a time
+        try (InputStream in = new DeduplicatingInputStream(new ByteArrayInputStream(
+                (record("eob-4", "e") + record("eob-4", "f")).getBytes(StandardCharsets.UTF_8)), seen)) {
+            StringBuilder read = new StringBuilder();
+            for (int b = in.read(); b != -1; b = in.read()) {
+                read.append((char) b);
+            }
+            assertEquals(record("eob-4", "e"), read.toString());
+        }
+    }
+
+    private static String id(String json) {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        int[] id = DeduplicatingInputStream.findId(bytes, bytes.length);
+        return id == null ? null : new String(bytes, id[0], id[1] - id[0], StandardCharsets.UTF_8);
+    }
+
+    private static String record(String id, String value) {
+        return "{\"resourceType\":\"ExplanationOfBenefit\",\"id\":\"" + id + "\",\"value\":\"" + value + "\"}\n";
+    }
+
+    private static String read(String input, EobIdSet seen) throws IOException {
+        try (InputStream in = new DeduplicatingInputStream(
+                new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8)), seen)) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+}
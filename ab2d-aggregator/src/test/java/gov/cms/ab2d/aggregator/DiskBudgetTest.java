@@ -0,0 +1,95 @@
+package gov.cms.ab2d.aggregator;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static gov.cms.ab2d.aggregator.Aggregator.AggregatorResult.PERFORMED;
+import static gov.cms.ab2d.aggregator.FileOutputType.DATA;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DiskBudgetTest {
+    private static final String STREAM_DIR = "streaming";
+    private static final String FINISH_DIR = "finished";
+
+    @Test
+    void blockUntilDrained(@TempDir File tmpDir) throws Exception {
+        // One budget for two jobs, like a budget for the whole host
+        DiskBudget budget = new DiskBudget(100, 40);
+        String job1 = new File(tmpDir, "job1").getAbsolutePath();
+        String job2 = new File(tmpDir, "job2").getAbsolutePath();
+        budget.register(job1, 10);
+        budget.register(job2, 0);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            DiskBudget.fileFinished(job1, 50);
+            DiskBudget.fileFinished(job2, 30);
+            assertFalse(budget.isDraining());
+            DiskBudget.acquire(job2);
+
+            DiskBudget.fileFinished(job2, 20);
+            assertTrue(DiskBudget.isDraining(job1));
+            Future<?> blocked = executor.submit(() -> {
+                DiskBudget.acquire(job2);
+                return null;
+            });
+            assertThrows(TimeoutException.class, () -> blocked.get(200, TimeUnit.MILLISECONDS));
+
+            // Under the high water mark isn't enough, it has to get down to the low water mark
+            DiskBudget.filesAggregated(job1, 50);
+            assertThrows(TimeoutException.class, () -> blocked.get(100, TimeUnit.MILLISECONDS));
+            DiskBudget.filesAggregated(job2, 30);
+            blocked.get(5, TimeUnit.SECONDS);
+            assertEquals(30, budget.getUsedBytes());
+            assertEquals(1, budget.getBlockedAcquires());
+            assertTrue(budget.getBlockedMillis() >= 250);
+
+            // What a job still has counted is given back when it's done
+            budget.unregister(job2);
+            assertEquals(10, budget.getUsedBytes());
+            assertNull(DiskBudget.forJob(job2));
+            budget.unregister(job1);
+            assertEquals(0, budget.getUsedBytes());
+        } finally {
+            executor.shutdownNow();
+        }
+        assertThrows(IllegalArgumentException.class, () -> new DiskBudget(100, 101));
+    }
+
+    @Test
+    void aggregateWhenDraining(@TempDir File tmpDir) throws IOException {
+        String jobId = "job3";
+        Aggregator aggregator = new Aggregator(jobId, "Z0001", tmpDir.getAbsolutePath(), 1, STREAM_DIR,
+                FINISH_DIR, 10);
+        DiskBudget budget = new DiskBudget(250 * 1024, 0);
+        budget.register(aggregator.getMainDirectory(), 0);
+        try {
+            for (int i = 0; i < 3; i++) {
+                try (ClaimsStream stream = new ClaimsStream(jobId, tmpDir.getAbsolutePath(), DATA, STREAM_DIR, FINISH_DIR)) {
+                    stream.write(AggregatorTest.getAlphaNumericString(100 * 1024) + "\n");
+                }
+            }
+            assertTrue(budget.isDraining());
+
+            // Far less than 10 parts worth, but the writers are waiting so it is aggregated anyway
+            assertTrue(aggregator.okayToDoAggregation(DATA));
+            assertEquals(PERFORMED, aggregator.aggregate(DATA));
+            assertFalse(budget.isDraining());
+            assertEquals(0, budget.getUsedBytes());
+            assertEquals(0, aggregator.getStats().getWritersBlockedMillis());
+        } finally {
+            budget.unregister(aggregator.getMainDirectory());
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package gov.cms.ab2d.aggregator;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class EobIdSetTest {
+
+    @Test
+    void addAndGrow() {
+        EobIdSet ids = new EobIdSet(10);
+        long initialMemory = ids.getMemoryBytes();
+        for (int i = 0; i < 100_000; i++) {
+            assertTrue(ids.add("carrier-" + i));
+        }
+        for (int i = 0; i < 100_000; i += 10) {
+            assertFalse(ids.add("carrier-" + i));
+        }
+        assertEquals(100_000, ids.size());
+        assertEquals(10_000, ids.getDuplicates());
+        assertTrue(ids.getMemoryBytes() > initialMemory);
+        assertTrue(ids.getMemoryBytes() <= 100_000 * 32L);
+
+        // Ids that differ only in type or in bytes past the first block
+        assertTrue(ids.add("inpatient-1"));
+        assertTrue(ids.add("outpatient-1"));
+        assertTrue(ids.add("a-very-long-claim-id-0000000000001"));
+        assertTrue(ids.add("a-very-long-claim-id-0000000000002"));
+        assertTrue(ids.add(""));
+        assertFalse(ids.add(""));
+
+        byte[] line = "xxcarrier-5yy".getBytes(StandardCharsets.UTF_8);
+        assertFalse(ids.add(line, 2, 9));
+    }
+
+    @Test
+    void murmur3() {
+        byte[] hello = "hello".getBytes(StandardCharsets.UTF_8);
+        assertArrayEquals(new long[] {0xcbd8a7b341bd9b02L, 0x5b1e906a48ae1d19L}, EobIdSet.murmur3(hello, 0, hello.length));
+    }
+}
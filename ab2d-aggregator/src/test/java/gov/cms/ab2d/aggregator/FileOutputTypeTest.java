@@ -8,6 +8,8 @@ import static gov.cms.ab2d.aggregator.FileOutputType.ERROR;
 import static gov.cms.ab2d.aggregator.FileOutputType.ERROR_COMPRESSED;
 import static gov.cms.ab2d.aggregator.FileOutputType.UNKNOWN;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.io.File;
 
@@ -27,6 +29,16 @@ class FileOutputTypeTest {
         assertEquals(UNKNOWN, FileOutputType.getFileType((String) null));
     }
 
+    @Test
+    void compressedType() {
+        assertEquals(DATA_COMPRESSED, DATA.getCompressedType());
+        assertEquals(ERROR_COMPRESSED, ERROR.getCompressedType());
+        assertEquals(DATA_COMPRESSED, DATA_COMPRESSED.getCompressedType());
+        assertEquals(UNKNOWN, UNKNOWN.getCompressedType());
+        assertTrue(ERROR_COMPRESSED.isCompressed());
+        assertFalse(DATA.isCompressed());
+    }
+
     @Test
     void testActualFile() {
         File file1 = new File("abc." + ERROR.getSuffix());
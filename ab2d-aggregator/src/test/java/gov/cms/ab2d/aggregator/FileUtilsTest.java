@@ -1,16 +1,27 @@
 package gov.cms.ab2d.aggregator;
 
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HexFormat;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import static gov.cms.ab2d.aggregator.FileOutputType.DATA;
+import static gov.cms.ab2d.aggregator.FileOutputType.DATA_COMPRESSED;
 import static gov.cms.ab2d.aggregator.FileOutputType.ERROR;
 import static gov.cms.ab2d.aggregator.FileUtils.createADir;
 import static gov.cms.ab2d.aggregator.FileUtils.deleteAllInDir;
@@ -75,6 +86,128 @@ class FileUtilsTest {
         }
     }
 
+    @Test
+    void combineFilesCompressed(@TempDir File tmpDir) throws IOException {
+        String data1 = AggregatorTest.getAlphaNumericString(10000) + "\n";
+        String data2 = AggregatorTest.getAlphaNumericString(3) + "\n";
+        String data3 = AggregatorTest.getAlphaNumericString(25000) + "\n";
+        List<File> files = List.of(createFile(tmpDir, FILE_1 + DATA.getSuffix(), data1).toFile(),
+                createFile(tmpDir, FILE_2 + DATA.getSuffix(), data2).toFile(),
+                createFile(tmpDir, "file3" + DATA.getSuffix(), data3).toFile());
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            // Small blocks so there are lots of gzip members that cross file boundaries
+            String outFile = tmpDir.getAbsolutePath() + File.separator + "out" + DATA_COMPRESSED.getSuffix();
+            long size = FileUtils.combineFilesCompressed(files, outFile, executor, 4096);
+            assertEquals(Files.size(Path.of(outFile)), size);
+            assertEquals(data1 + data2 + data3, gunzip(Path.of(outFile)));
+
+            // Compressing on this thread gives the same data
+            String outFile2 = tmpDir.getAbsolutePath() + File.separator + "out2" + DATA_COMPRESSED.getSuffix();
+            FileUtils.combineFilesCompressed(files, outFile2, null, FileUtils.DEFAULT_GZIP_BLOCK_SIZE);
+            assertEquals(data1 + data2 + data3, gunzip(Path.of(outFile2)));
+
+            // Nothing to combine is still a valid gzip file
+            String outFile3 = tmpDir.getAbsolutePath() + File.separator + "out3" + DATA_COMPRESSED.getSuffix();
+            FileUtils.combineFilesCompressed(new ArrayList<>(), outFile3, executor, 4096);
+            assertEquals("", gunzip(Path.of(outFile3)));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void combineFilesWithSummary(@TempDir File tmpDir) throws Exception {
+        // Big enough to take a few reads, with a compressed file and a last record without a new line
+        String data1 = AggregatorTest.getAlphaNumericString(3 * 1024 * 1024) + "\n" + AggregatorTest.getAlphaNumericString(10) + "\n";
+        String data2 = "x\ny\n";
+        String data3 = AggregatorTest.getAlphaNumericString(25);
+        Path compressed = Path.of(tmpDir.getAbsolutePath(), FILE_2 + DATA_COMPRESSED.getSuffix());
+        try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(compressed))) {
+            out.write(data2.getBytes(StandardCharsets.UTF_8));
+        }
+        List<File> files = List.of(createFile(tmpDir, FILE_1 + DATA.getSuffix(), data1).toFile(), compressed.toFile(),
+                createFile(tmpDir, "file3" + DATA.getSuffix(), data3).toFile());
+
+        Path outFile = Path.of(tmpDir.getAbsolutePath(), "out" + DATA.getSuffix());
+        CombineResult result = FileUtils.combineFilesWithSummary(files, outFile.toString());
+        byte[] written = Files.readAllBytes(outFile);
+        assertEquals(data1 + data2 + data3, new String(written, StandardCharsets.UTF_8));
+        assertEquals(written.length, result.getByteCount());
+        assertEquals(5, result.getRecordCount());
+        assertEquals(HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(written)), result.getSha256());
+
+        // Writing over a longer file leaves nothing of it behind the new data
+        CombineResult again = FileUtils.combineFilesWithSummary(List.of(files.get(2)), outFile.toString());
+        assertEquals(data3, Files.readString(outFile));
+        assertEquals(Files.size(outFile), again.getByteCount());
+
+        // Nothing to combine, nothing to count
+        CombineResult empty = FileUtils.combineFilesWithSummary(List.of(), tmpDir.getAbsolutePath() + "/empty");
+        assertEquals(0, empty.getByteCount());
+        assertEquals(0, empty.getRecordCount());
+        assertEquals("e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855", empty.getSha256());
+    }
+
+    @Test
+    void splitAtRecords(@TempDir File tmpDir) throws IOException {
+        StringBuilder data = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            data.append(AggregatorTest.getAlphaNumericString(1 + i * 7)).append('\n');
+        }
+        // A last record bigger than a piece and without a new line
+        data.append(AggregatorTest.getAlphaNumericString(5000));
+        Path file = createFile(tmpDir, FILE_1 + ERROR.getSuffix(), data.toString());
+
+        List<File> pieces = FileUtils.splitAtRecords(file.toFile(), 1000);
+        assertFalse(pieces.isEmpty());
+        assertTrue(Files.size(file) <= 1000);
+        StringBuilder joined = new StringBuilder();
+        for (int i = pieces.size() - 1; i >= 0; i--) {
+            // Pieces come off the end of the file and only the record without a new line is over the limit
+            File piece = pieces.get(i);
+            assertEquals(ERROR, FileOutputType.getFileType(piece.getName()));
+            String content = Files.readString(piece.toPath());
+            assertTrue(content.length() <= 1000 || (i == 0 && content.indexOf('\n') < 0));
+            joined.append(content);
+        }
+        String head = Files.readString(file);
+        assertTrue(head.endsWith("\n"));
+        assertEquals(data.toString(), head + joined);
+
+        // Small enough already, or one record that can't be split
+        assertTrue(FileUtils.splitAtRecords(file.toFile(), 1000).isEmpty());
+        Path oneRecord = createFile(tmpDir, FILE_2 + DATA.getSuffix(), AggregatorTest.getAlphaNumericString(3000) + "\n");
+        assertTrue(FileUtils.splitAtRecords(oneRecord.toFile(), 1000).isEmpty());
+        assertEquals(3001, Files.size(oneRecord));
+    }
+
+    @Test
+    void recoverSplits(@TempDir File tmpDir) throws IOException {
+        // Interrupted before the file was truncated, the piece is still in the file
+        createFile(tmpDir, FILE_1 + DATA.getSuffix(), "a\nb\n");
+        createFile(tmpDir, FILE_1 + DATA.getSuffix() + ".2" + FileUtils.SPLIT_SUFFIX, "b\n");
+        // Interrupted after the file was truncated, the piece only exists on its own
+        createFile(tmpDir, FILE_2 + DATA.getSuffix(), "c\n");
+        createFile(tmpDir, FILE_2 + DATA.getSuffix() + ".2" + FileUtils.SPLIT_SUFFIX, "d\n");
+
+        List<File> kept = FileUtils.recoverSplits(tmpDir);
+        assertEquals(1, kept.size());
+        assertEquals(FILE_2 + "_at2" + DATA.getSuffix(), kept.get(0).getName());
+        assertEquals("d\n", Files.readString(kept.get(0).toPath()));
+        String[] names = tmpDir.list();
+        assertNotNull(names);
+        assertEquals(3, names.length);
+        assertEquals("a\nb\n", Files.readString(Path.of(tmpDir.getAbsolutePath(), FILE_1 + DATA.getSuffix())));
+    }
+
+    static String gunzip(Path file) throws IOException {
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(file))) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
     @Test
     void getSizeOfFiles() throws IOException {
         File fulltmpdir = createADir(System.getProperty(JAVA_TMPDIR) + "/abc");
@@ -0,0 +1,120 @@
+package gov.cms.ab2d.aggregator;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static gov.cms.ab2d.aggregator.FileOutputType.DATA;
+import static gov.cms.ab2d.aggregator.FileOutputType.DATA_COMPRESSED;
+import static gov.cms.ab2d.aggregator.FileOutputType.ERROR;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FinishedFileIndexTest {
+    private static final String JOB_ID = "job1";
+    private static final String STREAM_DIR = "streaming";
+    private static final String FINISH_DIR = "finished";
+
+    @Test
+    void testScanning(@TempDir File tmpDir) throws IOException {
+        FinishedFileIndex index = new FinishedFileIndex(tmpDir.getAbsolutePath());
+        assertFalse(index.isEventFed());
+        index.refresh();
+        assertEquals(0, index.getSize(DATA));
+
+        AggregatorTest.writeToFile(tmpDir.getAbsolutePath() + File.separator + "f1.ndjson", 100);
+        AggregatorTest.writeToFile(tmpDir.getAbsolutePath() + File.separator + "f2.ndjson", 10);
+        AggregatorTest.writeToFile(tmpDir.getAbsolutePath() + File.separator + "f1_error.ndjson", 5);
+        AggregatorTest.writeToFile(tmpDir.getAbsolutePath() + File.separator + "f3.ndjson", 0);
+        AggregatorTest.writeToFile(tmpDir.getAbsolutePath() + File.separator + "notes.txt", 50);
+        index.refresh();
+
+        assertEquals(110, index.getSize(DATA));
+        assertEquals(5, index.getSize(ERROR));
+        List<FileReferenceHolder> sorted = index.getSortedFiles(DATA);
+        assertEquals(3, sorted.size());
+        assertEquals("f3.ndjson", sorted.get(0).getFile().getName());
+        assertEquals("f2.ndjson", sorted.get(1).getFile().getName());
+        assertEquals("f1.ndjson", sorted.get(2).getFile().getName());
+
+        List<File> empty = index.removeEmptyFiles();
+        assertEquals(1, empty.size());
+        assertEquals("f3.ndjson", empty.get(0).getName());
+
+        // Files that disappear are forgotten
+        Files.delete(Path.of(tmpDir.getAbsolutePath(), "f1.ndjson"));
+        index.refresh();
+        assertEquals(10, index.getSize(DATA));
+
+        index.remove(List.of(new File(tmpDir.getAbsolutePath() + File.separator + "f2.ndjson")));
+        assertEquals(0, index.getSize(DATA));
+    }
+
+    @Test
+    void testEventFed(@TempDir File tmpDir) throws IOException {
+        FinishedFileIndex index = new FinishedFileIndex(tmpDir.getAbsolutePath());
+        AggregatorTest.writeToFile(tmpDir.getAbsolutePath() + File.separator + "f1.ndjson", 100);
+        index.setEventFed(true);
+
+        // The first refresh still scans since the index starts out stale
+        index.refresh();
+        assertEquals(100, index.getSize(DATA));
+
+        // Event fed indexes don't go looking for files
+        AggregatorTest.writeToFile(tmpDir.getAbsolutePath() + File.separator + "f2.ndjson", 10);
+        index.refresh();
+        assertEquals(100, index.getSize(DATA));
+
+        index.fileCreated(Path.of(tmpDir.getAbsolutePath(), "f2.ndjson"));
+        index.fileFinished(new File(tmpDir.getAbsolutePath() + File.separator + "f3_error.ndjson"), 7);
+        assertEquals(110, index.getSize(DATA));
+        assertEquals(7, index.getSize(ERROR));
+
+        // Unless told they are stale. The error file doesn't really exist so it is forgotten
+        index.markStale();
+        index.refresh();
+        assertEquals(110, index.getSize(DATA));
+        assertEquals(0, index.getSize(ERROR));
+    }
+
+    @Test
+    void testFedByClaimsStream(@TempDir File tmpDir) throws IOException {
+        Aggregator aggregator = new Aggregator(JOB_ID, "contract", tmpDir.getAbsolutePath(), 1, STREAM_DIR, FINISH_DIR, 2);
+        FinishedFileIndex index = aggregator.getIndex();
+        try (JobSignal signal = JobSignal.register(aggregator.getMainDirectory())) {
+            signal.attach(index);
+            assertTrue(index.isEventFed());
+            index.refresh();
+
+            try (ClaimsStream stream = new ClaimsStream(JOB_ID, tmpDir.getAbsolutePath(), DATA, STREAM_DIR, FINISH_DIR)) {
+                stream.write("abcdefghi\n");
+            }
+            assertEquals(10, index.getSize(DATA));
+            assertEquals(1, aggregator.getBestFiles(DATA).size());
+
+            // A gzip stream is indexed with the size of its data and the size of its file
+            ClaimsStream gzipped = new ClaimsStream(JOB_ID, tmpDir.getAbsolutePath(), DATA_COMPRESSED, STREAM_DIR, FINISH_DIR);
+            gzipped.write("a".repeat(10_000) + "\n");
+            gzipped.close();
+            File compressed = gzipped.getFile();
+            FileReferenceHolder reference = index.getSortedFiles(DATA_COMPRESSED).get(0);
+            assertEquals(10_001, reference.getSize());
+            assertEquals(compressed.length(), reference.getDiskSize());
+            assertTrue(reference.getDiskSize() < reference.getSize());
+
+            // Found by a scan, the file is read to get the size of its data
+            FinishedFileIndex scanned = new FinishedFileIndex(compressed.getParent());
+            scanned.refresh();
+            reference = scanned.getSortedFiles(DATA_COMPRESSED).get(0);
+            assertEquals(10_001, reference.getSize());
+            assertEquals(compressed.length(), reference.getDiskSize());
+        }
+        assertFalse(index.isEventFed());
+    }
+}
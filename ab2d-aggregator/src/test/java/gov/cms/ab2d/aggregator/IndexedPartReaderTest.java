@@ -0,0 +1,72 @@
+package gov.cms.ab2d.aggregator;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static gov.cms.ab2d.aggregator.PartIndexTest.eob;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class IndexedPartReaderTest {
+
+    @Test
+    void seekToRecordsAndPatients(@TempDir Path tmpDir) throws IOException {
+        List<String> records = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            records.add(eob(i, "-" + (i / 4)));
+        }
+        Path part = writePart(tmpDir, records, 64);
+
+        try (IndexedPartReader reader = new IndexedPartReader(part)) {
+            assertEquals(1000, reader.getRecordCount());
+            assertEquals(String.join("", records.subList(130, 200)), read(reader.openRecords(130, 200)));
+            assertEquals(records.get(999), read(reader.openAtRecord(999)));
+            assertEquals("", read(reader.openAtRecord(1000)));
+            assertEquals(String.join("", records.subList(0, 3)), read(reader.openRecords(0, 3)));
+
+            InputStream patient = reader.openAtPatient("-101");
+            assertEquals(String.join("", records.subList(404, 1000)), read(patient));
+            assertNull(reader.openAtPatient("-5000"));
+
+            String whole = String.join("", records);
+            assertEquals(whole.substring(12345), read(reader.openAtOffset(12345)));
+            // Streams don't share a position
+            InputStream first = reader.openRecords(10, 11);
+            InputStream second = reader.openRecords(20, 21);
+            assertEquals(records.get(20), read(second));
+            assertEquals(records.get(10), read(first));
+        }
+    }
+
+    private static Path writePart(Path dir, List<String> records, int interval) throws IOException {
+        Path part = dir.resolve("Z0001_0001.ndjson");
+        try (FileChannel channel = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            IndexingChannel indexing = new IndexingChannel(channel, interval, true);
+            for (String record : records) {
+                indexing.write(ByteBuffer.wrap(record.getBytes(StandardCharsets.UTF_8)));
+            }
+            try (OutputStream out = Files.newOutputStream(dir.resolve(PartIndex.getSidecarName(part.getFileName().toString())))) {
+                indexing.toIndex().write(out);
+            }
+        }
+        return part;
+    }
+
+    private static String read(InputStream in) throws IOException {
+        try (in) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package gov.cms.ab2d.aggregator;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static gov.cms.ab2d.aggregator.FileOutputType.DATA;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class JobCoordinatorTest {
+    private static final String JOB_ID = "job1";
+    private static final String STREAM_DIR = "streaming";
+    private static final String FINISH_DIR = "finished";
+
+    @Test
+    void inProcess(@TempDir File tmpDir) throws Exception {
+        String jobDir = tmpDir.getAbsolutePath() + File.separator + JOB_ID;
+        JobHelper.workerSetUpJobDirectories(JOB_ID, tmpDir.getAbsolutePath(), STREAM_DIR, FINISH_DIR);
+        AggregatorCallable callable = new AggregatorCallable(tmpDir.getAbsolutePath(), JOB_ID, "contract", 1,
+                STREAM_DIR, FINISH_DIR, 2);
+        callable.setTriggerMode(AggregatorCallable.TriggerMode.IN_PROCESS);
+        // Only the signal should wake the aggregator up
+        callable.setWaitMillis(60_000);
+        callable.setCoordinator(InProcessJobCoordinator.register(jobDir));
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (InProcessJobCoordinator coordinator = InProcessJobCoordinator.register(jobDir + File.separator + ".")) {
+            Future<Integer> future = executor.submit(callable);
+            for (int i = 0; i < 10; i++) {
+                try (ClaimsStream stream = new ClaimsStream(JOB_ID, tmpDir.getAbsolutePath(), DATA, STREAM_DIR, FINISH_DIR)) {
+                    stream.write(AggregatorTest.getAlphaNumericString(1000) + "\n");
+                }
+            }
+            assertFalse(coordinator.awaitAggregation(10, TimeUnit.MILLISECONDS));
+            coordinator.streamingDone();
+            assertTrue(coordinator.awaitAggregation(10, TimeUnit.SECONDS));
+            assertEquals(1, future.get());
+            assertTrue(callable.getStats().isAggregated());
+        } finally {
+            executor.shutdown();
+        }
+        // The directories are left alone, empty
+        assertTrue(Path.of(jobDir, STREAM_DIR).toFile().isDirectory());
+        assertEquals(0, Path.of(jobDir, FINISH_DIR).toFile().list().length);
+        assertTrue(Path.of(jobDir, "contract_0001.ndjson").toFile().exists());
+        // Unregistered once closed
+        assertNotSame(callable.getCoordinator(), InProcessJobCoordinator.register(jobDir));
+        InProcessJobCoordinator.register(jobDir).close();
+    }
+
+    @Test
+    void inProcessOrder(@TempDir File tmpDir) {
+        try (InProcessJobCoordinator coordinator = InProcessJobCoordinator.register(tmpDir.getAbsolutePath())) {
+            assertSame(coordinator, InProcessJobCoordinator.register(tmpDir.getAbsolutePath()));
+            assertThrows(IllegalStateException.class, coordinator::aggregationDone);
+            coordinator.streamingDone();
+            assertTrue(coordinator.isStreamingDone());
+            assertFalse(coordinator.isAggregationDone());
+            coordinator.aggregationDone();
+            assertTrue(coordinator.isAggregationDone());
+        }
+    }
+
+    @Test
+    void fileSystem(@TempDir File tmpDir) throws Exception {
+        String jobDir = tmpDir.getAbsolutePath() + File.separator + JOB_ID;
+        JobHelper.workerSetUpJobDirectories(JOB_ID, tmpDir.getAbsolutePath(), STREAM_DIR, FINISH_DIR);
+        FileSystemJobCoordinator coordinator = new FileSystemJobCoordinator(jobDir, STREAM_DIR, FINISH_DIR, 5);
+        assertFalse(coordinator.isStreamingDone());
+        coordinator.streamingDone();
+        assertTrue(coordinator.isStreamingDone());
+        assertFalse(Path.of(jobDir, STREAM_DIR).toFile().exists());
+        assertFalse(coordinator.awaitAggregation(20, TimeUnit.MILLISECONDS));
+        coordinator.aggregationDone();
+        assertFalse(Path.of(jobDir, FINISH_DIR).toFile().exists());
+        assertTrue(coordinator.awaitAggregation(20, TimeUnit.MILLISECONDS));
+    }
+}
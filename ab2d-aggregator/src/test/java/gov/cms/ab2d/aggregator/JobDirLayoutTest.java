@@ -0,0 +1,157 @@
+package gov.cms.ab2d.aggregator;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static gov.cms.ab2d.aggregator.FileOutputType.DATA;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class JobDirLayoutTest {
+    private static final String JOB_ID = "job1";
+    private static final String STREAM_DIR = "streaming";
+    private static final String FINISH_DIR = "finished";
+
+    @Test
+    void shardNames() {
+        JobDirLayout layout = JobDirLayout.sharded(16);
+        assertEquals(16, layout.getDirectories(new File("finished")).size());
+        assertEquals("finished" + File.separator + "00", layout.getDirectories(new File("finished")).get(0).getPath());
+        assertEquals(2, layout.getShard("abc.ndjson").length());
+        assertEquals(layout.getShard("abc.ndjson"), layout.getShard("abc.ndjson"));
+        assertEquals(3, JobDirLayout.sharded(JobDirLayout.MAX_SHARDS).getShard("abc.ndjson").length());
+        assertEquals("", JobDirLayout.flat().getShard("abc.ndjson"));
+        assertEquals(new File("finished", "abc.ndjson"), JobDirLayout.flat().locate(new File("finished"), "abc.ndjson"));
+        assertThrows(IllegalArgumentException.class, () -> JobDirLayout.sharded(1));
+        assertThrows(IllegalArgumentException.class, () -> JobDirLayout.sharded(JobDirLayout.MAX_SHARDS + 1));
+    }
+
+    @Test
+    void savedWithTheJob(@TempDir File tmpDir) throws Exception {
+        String jobDir = tmpDir.getAbsolutePath() + File.separator + JOB_ID;
+        assertFalse(JobDirLayout.forJob(jobDir).isSharded());
+        JobHelper.workerSetUpJobDirectories(JOB_ID, tmpDir.getAbsolutePath(), STREAM_DIR, FINISH_DIR, JobDirLayout.sharded(8));
+        assertEquals("shards=8", Files.readString(Path.of(jobDir, JobDirLayout.FILE_NAME)).trim());
+        assertTrue(Path.of(jobDir, FINISH_DIR, "07").toFile().isDirectory());
+        assertTrue(Path.of(jobDir, STREAM_DIR, "00").toFile().isDirectory());
+        JobDirLayout layout = JobDirLayout.forJob(jobDir);
+        assertEquals(8, layout.getShards());
+        assertSame(layout, JobDirLayout.forJob(jobDir + File.separator + "."));
+
+        // Setting the job up flat again takes the layout away
+        JobHelper.workerSetUpJobDirectories(JOB_ID, tmpDir.getAbsolutePath(), STREAM_DIR, FINISH_DIR, JobDirLayout.flat());
+        assertFalse(Path.of(jobDir, JobDirLayout.FILE_NAME).toFile().exists());
+        assertFalse(JobDirLayout.forJob(jobDir).isSharded());
+    }
+
+    @Test
+    void forgottenWhenTheJobIsDone(@TempDir File tmpDir) throws Exception {
+        String jobDir = tmpDir.getAbsolutePath() + File.separator + JOB_ID;
+        JobHelper.workerSetUpJobDirectories(JOB_ID, tmpDir.getAbsolutePath(), STREAM_DIR, FINISH_DIR, JobDirLayout.sharded(4));
+        JobDirLayout layout = JobDirLayout.forJob(jobDir);
+        assertSame(layout, JobDirLayout.forJob(jobDir));
+
+        // The aggregator reads the saved layout again after the worker is done
+        JobHelper.workerFinishJob(jobDir + File.separator + STREAM_DIR);
+        JobDirLayout reread = JobDirLayout.forJob(jobDir);
+        assertNotSame(layout, reread);
+        assertEquals(4, reread.getShards());
+
+        // Once the job is aggregated nothing is left of the layout
+        JobHelper.aggregatorFinishJob(jobDir + File.separator + FINISH_DIR);
+        assertFalse(Path.of(jobDir, JobDirLayout.FILE_NAME).toFile().exists());
+        assertFalse(JobDirLayout.forJob(jobDir).isSharded());
+    }
+
+    @Test
+    void notCachedBeforeItIsSaved(@TempDir File tmpDir) throws Exception {
+        String jobDir = tmpDir.getAbsolutePath() + File.separator + JOB_ID;
+        JobHelper.workerSetUpJobDirectories(JOB_ID, tmpDir.getAbsolutePath(), STREAM_DIR, FINISH_DIR);
+        assertFalse(JobDirLayout.forJob(jobDir).isSharded());
+
+        // Another node saves the layout after we looked
+        Files.writeString(Path.of(jobDir, JobDirLayout.FILE_NAME), "shards=8\n");
+        assertEquals(8, JobDirLayout.forJob(jobDir).getShards());
+
+        try (InProcessJobCoordinator coordinator = InProcessJobCoordinator.register(jobDir)) {
+            coordinator.streamingDone();
+            coordinator.aggregationDone();
+        }
+        assertFalse(Path.of(jobDir, JobDirLayout.FILE_NAME).toFile().exists());
+        assertFalse(JobDirLayout.forJob(jobDir).isSharded());
+    }
+
+    @Test
+    void streamsIntoShards(@TempDir File tmpDir) throws Exception {
+        String jobDir = tmpDir.getAbsolutePath() + File.separator + JOB_ID;
+        JobDirLayout layout = JobDirLayout.sharded(4);
+        JobHelper.workerSetUpJobDirectories(JOB_ID, tmpDir.getAbsolutePath(), STREAM_DIR, FINISH_DIR, layout);
+        File finished = new File(jobDir, FINISH_DIR);
+        for (int i = 0; i < 10; i++) {
+            try (ClaimsStream stream = new ClaimsStream(JOB_ID, tmpDir.getAbsolutePath(), DATA, STREAM_DIR, FINISH_DIR)) {
+                stream.write(AggregatorTest.getAlphaNumericString(100) + "\n");
+            }
+        }
+        ClaimsStreamFactory factory = new ClaimsStreamFactory(JOB_ID, tmpDir.getAbsolutePath(), STREAM_DIR, FINISH_DIR);
+        for (int i = 0; i < 10; i++) {
+            try (ClaimsStream stream = factory.newStream(DATA)) {
+                stream.write(AggregatorTest.getAlphaNumericString(100) + "\n");
+            }
+        }
+
+        // Nothing is left flat, every file is in the shard its name hashes to
+        assertEquals(4, finished.list().length);
+        List<File> files = FileUtils.listFiles(finished.getAbsolutePath(), DATA, layout);
+        assertEquals(20, files.size());
+        Set<File> shards = new HashSet<>();
+        for (File file : files) {
+            assertEquals(layout.locate(finished, file.getName()).getAbsoluteFile(), file.getAbsoluteFile());
+            shards.add(file.getParentFile());
+        }
+        assertTrue(shards.size() > 1);
+        assertEquals(0, FileUtils.listFiles(new File(jobDir, STREAM_DIR).getAbsolutePath(), DATA, layout).size());
+    }
+
+    @Test
+    void aggregatesFromShards(@TempDir File tmpDir) throws Exception {
+        String jobDir = tmpDir.getAbsolutePath() + File.separator + JOB_ID;
+        JobHelper.workerSetUpJobDirectories(JOB_ID, tmpDir.getAbsolutePath(), STREAM_DIR, FINISH_DIR, JobDirLayout.sharded(16));
+        AggregatorCallable callable = new AggregatorCallable(tmpDir.getAbsolutePath(), JOB_ID, "contract", 1,
+                STREAM_DIR, FINISH_DIR, 2);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        long written = 0;
+        try {
+            Future<Integer> future = executor.submit(callable);
+            for (int i = 0; i < 50; i++) {
+                try (ClaimsStream stream = new ClaimsStream(JOB_ID, tmpDir.getAbsolutePath(), DATA, STREAM_DIR, FINISH_DIR)) {
+                    String record = AggregatorTest.getAlphaNumericString(50_000) + "\n";
+                    stream.write(record);
+                    written += record.length();
+                }
+            }
+            JobHelper.workerFinishJob(jobDir + File.separator + STREAM_DIR);
+            future.get(60, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdown();
+        }
+        assertFalse(new File(jobDir, FINISH_DIR).exists());
+        List<File> parts = FileUtils.listFiles(jobDir, DATA);
+        assertTrue(parts.size() > 1);
+        assertEquals(written, parts.stream().mapToLong(File::length).sum());
+    }
+}
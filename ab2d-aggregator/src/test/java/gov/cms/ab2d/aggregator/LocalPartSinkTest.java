@@ -0,0 +1,39 @@
+package gov.cms.ab2d.aggregator;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+class LocalPartSinkTest {
+    private static final String PART = "Z0001_0001.ndjson";
+
+    @Test
+    void sealAndDiscard(@TempDir File tmpDir) throws IOException {
+        LocalPartSink sink = new LocalPartSink(tmpDir.toPath());
+        Path part = tmpDir.toPath().resolve(PART);
+        Files.writeString(part, "left over from an interrupted aggregation that is longer");
+
+        try (AggregatedPartSink.PartOutput output = sink.create(PART)) {
+            output.getChannel().write(ByteBuffer.wrap("record\n".getBytes(StandardCharsets.UTF_8)));
+            assertEquals(7, output.getSize());
+            output.seal(true);
+        }
+        assertEquals("record\n", Files.readString(part));
+        assertEquals(part.toString(), sink.getLocation(PART));
+
+        // Not sealed, so it is thrown away
+        try (AggregatedPartSink.PartOutput output = sink.create(PART)) {
+            output.getChannel().write(ByteBuffer.wrap("half a rec".getBytes(StandardCharsets.UTF_8)));
+        }
+        assertFalse(Files.exists(part));
+    }
+}
@@ -0,0 +1,128 @@
+package gov.cms.ab2d.aggregator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An in memory object store that checks multipart uploads the way S3 does: chunks other than the last must be at
+ * least 5 MB, chunk numbers go from 1 to 10,000 and the ETags given to complete an upload must match the chunks.
+ * Objects only show up once their upload is completed.
+ */
+class LocalS3StandIn implements MultipartUploadClient {
+    private final Map<String, byte[]> objects = new ConcurrentHashMap<>();
+    private final Map<String, SortedMap<Integer, byte[]>> uploads = new ConcurrentHashMap<>();
+    private final AtomicInteger chunksUploaded = new AtomicInteger();
+    private final AtomicInteger maxConcurrentChunks = new AtomicInteger();
+    private final AtomicInteger concurrentChunks = new AtomicInteger();
+
+    // Fail the upload of this chunk number, 0 to never fail
+    private volatile int failChunk;
+
+    @Override
+    public String createMultipartUpload(String bucket, String key) {
+        String uploadId = UUID.randomUUID().toString();
+        uploads.put(uploadId, new ConcurrentSkipListMap<>());
+        return uploadId;
+    }
+
+    @Override
+    public String uploadPart(String bucket, String key, String uploadId, int chunkNumber, ByteBuffer data)
+            throws IOException {
+        int concurrent = concurrentChunks.incrementAndGet();
+        maxConcurrentChunks.accumulateAndGet(concurrent, Math::max);
+        try {
+            SortedMap<Integer, byte[]> chunks = uploads.get(uploadId);
+            if (chunks == null) {
+                throw new IOException("NoSuchUpload " + uploadId);
+            }
+            if (chunkNumber < 1 || chunkNumber > 10_000) {
+                throw new IOException("InvalidArgument chunk number " + chunkNumber);
+            }
+            if (chunkNumber == failChunk) {
+                throw new IOException("InternalError uploading chunk " + chunkNumber);
+            }
+            byte[] bytes = new byte[data.remaining()];
+            data.duplicate().get(bytes);
+            chunks.put(chunkNumber, bytes);
+            chunksUploaded.incrementAndGet();
+            return eTag(bytes);
+        } finally {
+            concurrentChunks.decrementAndGet();
+        }
+    }
+
+    @Override
+    public void completeMultipartUpload(String bucket, String key, String uploadId, List<String> eTags)
+            throws IOException {
+        SortedMap<Integer, byte[]> chunks = uploads.remove(uploadId);
+        if (chunks == null) {
+            throw new IOException("NoSuchUpload " + uploadId);
+        }
+        if (eTags.isEmpty() || eTags.size() != chunks.size()) {
+            throw new IOException("InvalidPart " + eTags.size() + " ETags for " + chunks.size() + " chunks");
+        }
+        ByteArrayOutputStream object = new ByteArrayOutputStream();
+        int chunkNumber = 1;
+        for (Map.Entry<Integer, byte[]> chunk : chunks.entrySet()) {
+            if (chunk.getKey() != chunkNumber || !eTag(chunk.getValue()).equals(eTags.get(chunkNumber - 1))) {
+                throw new IOException("InvalidPart " + chunkNumber);
+            }
+            if (chunkNumber < chunks.size() && chunk.getValue().length < S3MultipartPartSink.MIN_CHUNK_SIZE) {
+                throw new IOException("EntityTooSmall " + chunkNumber);
+            }
+            object.write(chunk.getValue());
+            chunkNumber++;
+        }
+        objects.put(bucket + "/" + key, object.toByteArray());
+    }
+
+    @Override
+    public void abortMultipartUpload(String bucket, String key, String uploadId) throws IOException {
+        if (uploads.remove(uploadId) == null) {
+            throw new IOException("NoSuchUpload " + uploadId);
+        }
+    }
+
+    byte[] getObject(String bucket, String key) {
+        return objects.get(bucket + "/" + key);
+    }
+
+    Map<String, byte[]> getObjects() {
+        return objects;
+    }
+
+    int getOpenUploads() {
+        return uploads.size();
+    }
+
+    int getChunksUploaded() {
+        return chunksUploaded.get();
+    }
+
+    int getMaxConcurrentChunks() {
+        return maxConcurrentChunks.get();
+    }
+
+    void setFailChunk(int failChunk) {
+        this.failChunk = failChunk;
+    }
+
+    private static String eTag(byte[] bytes) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("MD5").digest(bytes));
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+}
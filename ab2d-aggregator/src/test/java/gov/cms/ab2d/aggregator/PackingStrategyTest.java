@@ -0,0 +1,91 @@
+package gov.cms.ab2d.aggregator;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static gov.cms.ab2d.aggregator.Aggregator.AggregatorResult.PERFORMED;
+import static gov.cms.ab2d.aggregator.FileOutputType.DATA;
+import static gov.cms.ab2d.aggregator.FileOutputType.ERROR;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PackingStrategyTest {
+    private static final String JOB_ID = "job1";
+    private static final String STREAM_DIR = "streaming";
+    private static final String FINISH_DIR = "finished";
+
+    @Test
+    void testGreedy() {
+        List<PlannedPart> parts = new GreedyPackingStrategy().plan(files(2, 3, 5, 9), 13);
+        assertEquals(1, parts.size());
+        assertEquals(List.of(9L, 3L), sizes(parts.get(0)));
+        assertEquals(12, parts.get(0).getSize());
+
+        assertTrue(new GreedyPackingStrategy().plan(files(), 13).isEmpty());
+        assertEquals(List.of(20L), sizes(new GreedyPackingStrategy().plan(files(2, 20), 13).get(0)));
+    }
+
+    @Test
+    void testBestFit() {
+        List<PlannedPart> parts = new BestFitPackingStrategy().plan(files(1, 2, 3, 4, 6, 7, 8, 20), 10);
+        // 20 on its own, 8 + 2, 7 + 3, 6 + 4, then 1
+        assertEquals(5, parts.size());
+        assertEquals(List.of(20L), sizes(parts.get(0)));
+        assertEquals(10, parts.get(1).getSize());
+        assertEquals(10, parts.get(2).getSize());
+        assertEquals(10, parts.get(3).getSize());
+        assertEquals(List.of(1L), sizes(parts.get(4)));
+
+        // 4 goes into the part with the least room that can hold it, the fullest part is first
+        parts = new BestFitPackingStrategy().plan(files(1, 6, 4, 7), 10);
+        assertEquals(2, parts.size());
+        assertEquals(List.of(6L, 4L), sizes(parts.get(0)));
+        assertEquals(List.of(7L, 1L), sizes(parts.get(1)));
+
+        assertTrue(new BestFitPackingStrategy().plan(files(), 10).isEmpty());
+    }
+
+    @Test
+    void testAggregateWithBestFit(@TempDir File tmpDir) throws IOException {
+        Aggregator aggregator = new Aggregator(JOB_ID, "contract", tmpDir.getAbsolutePath(), 1, STREAM_DIR, FINISH_DIR, 2);
+        aggregator.setPackingStrategy(new BestFitPackingStrategy());
+        String finishedDir = aggregator.getMainDirectory() + File.separator + FINISH_DIR;
+        int[] kbs = {600, 500, 400, 300, 200, 100, 900, 24};
+        for (int i = 0; i < kbs.length; i++) {
+            AggregatorTest.writeToFile(finishedDir + File.separator + "f" + i + ".ndjson", kbs[i] * 1024);
+        }
+        JobHelper.workerFinishJob(aggregator.getMainDirectory() + File.separator + STREAM_DIR);
+        int parts = 0;
+        while (aggregator.aggregate(DATA) == PERFORMED) {
+            parts++;
+        }
+        // 3024 KB fits in 3 full parts of 1024 KB
+        assertEquals(3, parts);
+        PackingReport report = aggregator.getPackingReport();
+        assertEquals(3, report.getParts(DATA));
+        assertEquals(3024 * 1024, report.getBytes(DATA));
+        assertEquals(3024.0 / 3072.0, report.getFillRatio(DATA), 0.0001);
+        assertEquals(0, report.getFillRatio(ERROR));
+        assertEquals(report.getFillRatio(DATA), report.getFillRatio(), 0.0001);
+    }
+
+    private static List<FileReferenceHolder> files(long... sizes) {
+        List<FileReferenceHolder> files = new ArrayList<>();
+        for (int i = 0; i < sizes.length; i++) {
+            files.add(new FileReferenceHolder(new File("f" + i + ".ndjson"), sizes[i]));
+        }
+        files.sort(Comparator.comparingLong(FileReferenceHolder::getSize));
+        return files;
+    }
+
+    private static List<Long> sizes(PlannedPart part) {
+        return part.getReferences().stream().map(FileReferenceHolder::getSize).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,126 @@
+package gov.cms.ab2d.aggregator;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static gov.cms.ab2d.aggregator.FileOutputType.DATA;
+import static gov.cms.ab2d.aggregator.FileOutputType.DATA_COMPRESSED;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PartFileReaderTest {
+
+    @Test
+    void wholePartAndRanges(@TempDir Path tmpDir) throws IOException {
+        String data = AggregatorTest.getAlphaNumericString(100_000);
+        Path part = tmpDir.resolve("Z0001_0001" + DATA.getSuffix());
+        Files.writeString(part, data);
+
+        try (PartFileReader reader = new PartFileReader(part)) {
+            assertEquals(DATA, reader.getType());
+            assertFalse(reader.isCompressed());
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            assertEquals(100_000, reader.transferTo(Channels.newChannel(out)));
+            assertEquals(data, out.toString(StandardCharsets.UTF_8));
+
+            out.reset();
+            assertEquals(5000, reader.transferTo(Channels.newChannel(out), 1234, 5000));
+            assertEquals(data.substring(1234, 6234), out.toString(StandardCharsets.UTF_8));
+
+            // Cut short at the end of the part
+            out.reset();
+            assertEquals(10, reader.transferTo(Channels.newChannel(out), 99_990, 1000));
+            assertEquals(data.substring(99_990), out.toString(StandardCharsets.UTF_8));
+
+            assertEquals(105_010, reader.getBytesSent());
+            assertThrows(IllegalArgumentException.class, () -> reader.transferTo(Channels.newChannel(out), -1, 10));
+        }
+    }
+
+    @Test
+    void fallBackToMappedBuffer(@TempDir Path tmpDir) throws IOException {
+        String data = AggregatorTest.getAlphaNumericString(50_000);
+        Path part = tmpDir.resolve("Z0001_0001" + DATA.getSuffix());
+        Files.writeString(part, data);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        StallingChannel target = new StallingChannel(Channels.newChannel(out));
+        try (PartFileReader reader = new PartFileReader(part)) {
+            assertEquals(50_000, reader.transferTo(target));
+        }
+        assertEquals(data, out.toString(StandardCharsets.UTF_8));
+        assertTrue(target.stalls > 0);
+    }
+
+    @Test
+    void gzipParts(@TempDir File tmpDir) throws IOException {
+        String data1 = AggregatorTest.getAlphaNumericString(20_000) + "\n";
+        String data2 = AggregatorTest.getAlphaNumericString(30_000) + "\n";
+        File f1 = new File(tmpDir, "f1.ndjson");
+        File f2 = new File(tmpDir, "f2.ndjson");
+        Files.writeString(f1.toPath(), data1);
+        Files.writeString(f2.toPath(), data2);
+        Path part = tmpDir.toPath().resolve("Z0001_0001" + DATA_COMPRESSED.getSuffix());
+        // Small blocks so the part is several gzip members
+        FileUtils.combineFilesCompressed(List.of(f1, f2), part.toString(), null, 4096);
+
+        try (PartFileReader reader = new PartFileReader(part)) {
+            assertTrue(reader.isCompressed());
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            assertEquals(Files.size(part), reader.transferTo(Channels.newChannel(compressed)));
+            assertEquals(data1 + data2, FileUtilsTest.gunzip(part));
+
+            ByteArrayOutputStream plain = new ByteArrayOutputStream();
+            assertEquals(data1.length() + data2.length(), reader.transferDecompressed(Channels.newChannel(plain)));
+            assertEquals(data1 + data2, plain.toString(StandardCharsets.UTF_8));
+            assertEquals(Files.size(part) + data1.length() + data2.length(), reader.getBytesSent());
+        }
+    }
+
+    /**
+     * Takes nothing on every other write, the way a busy target might
+     */
+    private static final class StallingChannel implements WritableByteChannel {
+        private final WritableByteChannel out;
+        private boolean stallNext = true;
+        private int stalls;
+
+        private StallingChannel(WritableByteChannel out) {
+            this.out = out;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            if (stallNext) {
+                stallNext = false;
+                stalls++;
+                return 0;
+            }
+            stallNext = true;
+            return out.write(src);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return out.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+}
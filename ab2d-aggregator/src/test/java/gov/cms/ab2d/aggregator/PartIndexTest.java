@@ -0,0 +1,88 @@
+package gov.cms.ab2d.aggregator;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PartIndexTest {
+
+    static String eob(int id, String patient) {
+        return "{\"resourceType\":\"ExplanationOfBenefit\",\"id\":\"carrier-" + id
+                + "\",\"patient\":{\"reference\":\"Patient/" + patient + "\"},\"status\":\"active\"}\n";
+    }
+
+    @Test
+    void samplesAndPatients() throws IOException {
+        StringBuilder data = new StringBuilder();
+        for (int i = 0; i < 25; i++) {
+            data.append(eob(i, "-" + (100 - i / 3)));
+        }
+        byte[] bytes = data.toString().getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        IndexingChannel channel = new IndexingChannel(Channels.newChannel(written), 10, true);
+        // Odd sized writes so records and patient references are split between them
+        for (int off = 0; off < bytes.length; off += 7) {
+            channel.write(ByteBuffer.wrap(bytes, off, Math.min(7, bytes.length - off)));
+        }
+        assertArrayEquals(bytes, written.toByteArray());
+
+        PartIndex index = channel.toIndex();
+        assertEquals(25, index.getRecordCount());
+        assertEquals(bytes.length, index.getByteCount());
+        assertEquals(3, index.getSampleOffsets().length);
+        assertEquals(data.indexOf(eob(20, "-94")), index.getSampledOffset(23));
+        assertEquals(20, index.getSampledRecord(23));
+
+        // Patient -96 has records 12, 13 and 14
+        int patient = index.findPatient("-96");
+        assertTrue(patient >= 0);
+        assertEquals(12, index.getPatientRecord(patient));
+        assertEquals(data.indexOf(eob(12, "-96")), index.getPatientOffset(patient));
+        assertTrue(index.findPatient("-50") < 0);
+        assertEquals(9, index.getPatientIds().length);
+    }
+
+    @Test
+    void roundTrip() throws IOException {
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        IndexingChannel channel = new IndexingChannel(Channels.newChannel(written), 1, true);
+        // A record without a patient, and a last record without a new line
+        String data = "{\"resourceType\":\"OperationOutcome\"}\n" + eob(1, "-7") + eob(2, "-7").trim();
+        channel.write(ByteBuffer.wrap(data.getBytes(StandardCharsets.UTF_8)));
+        PartIndex index = channel.toIndex();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        index.write(out);
+        PartIndex read = PartIndex.read(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(3, read.getRecordCount());
+        assertEquals(data.length(), read.getByteCount());
+        assertArrayEquals(index.getSampleOffsets(), read.getSampleOffsets());
+        assertArrayEquals(new String[] {"-7"}, read.getPatientIds());
+        assertEquals(1, read.getPatientRecord(0));
+        assertEquals(data.indexOf(eob(1, "-7")), read.getPatientOffset(0));
+
+        assertThrows(IOException.class, () -> PartIndex.read(new ByteArrayInputStream(data.getBytes(StandardCharsets.UTF_8))));
+    }
+
+    @Test
+    void withoutPatients() throws IOException {
+        IndexingChannel channel = new IndexingChannel(Channels.newChannel(new ByteArrayOutputStream()), 1000, false);
+        channel.write(ByteBuffer.wrap((eob(1, "-1") + eob(2, "-2")).getBytes(StandardCharsets.UTF_8)));
+        PartIndex index = channel.toIndex();
+        assertEquals(2, index.getRecordCount());
+        assertArrayEquals(new long[] {0}, index.getSampleOffsets());
+        assertFalse(index.hasPatients());
+        assertThrows(IllegalArgumentException.class, () -> new IndexingChannel(Channels.newChannel(new ByteArrayOutputStream()), 0, false));
+    }
+}
@@ -0,0 +1,126 @@
+package gov.cms.ab2d.aggregator;
+
+import gov.cms.ab2d.fhir.FhirVersion;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static gov.cms.ab2d.aggregator.Aggregator.ONE_MEGA_BYTE;
+import static gov.cms.ab2d.aggregator.FileOutputType.DATA;
+import static gov.cms.ab2d.aggregator.FileOutputType.ERROR_COMPRESSED;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RollingPartWriterTest {
+    private static final String JOB_ID = "job1";
+    private static final String CONTRACT = "Z0001";
+
+    @Test
+    void writeFromManyThreads(@TempDir File tmpDir) throws Exception {
+        Set<String> expected = new HashSet<>();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try (RollingPartWriter writer = new RollingPartWriter(JOB_ID, CONTRACT, tmpDir.getAbsolutePath(), DATA, 1)) {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                List<String> records = new ArrayList<>();
+                for (int i = 0; i < 300; i++) {
+                    records.add(t + "-" + i + "-" + AggregatorTest.getAlphaNumericString(1000 + i));
+                }
+                expected.addAll(records);
+                int thread = t;
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < records.size(); i++) {
+                        // Mix the ways of writing a record
+                        if (i % 2 == 0) {
+                            writer.writeRecord(records.get(i));
+                        } else {
+                            writer.writeRecord((records.get(i) + (thread % 2 == 0 ? "\n" : "")).getBytes(StandardCharsets.UTF_8));
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        File jobDir = new File(tmpDir, JOB_ID);
+        String[] names = jobDir.list();
+        assertTrue(names.length > 1);
+        Set<String> written = new HashSet<>();
+        for (int i = 1; i <= names.length; i++) {
+            File part = new File(jobDir, CONTRACT + "_000" + i + DATA.getSuffix());
+            assertTrue(part.exists());
+            assertTrue(part.length() <= ONE_MEGA_BYTE);
+            // Records are never split across parts
+            List<String> lines = Files.readAllLines(part.toPath());
+            lines.forEach(line -> assertTrue(expected.contains(line)));
+            written.addAll(lines);
+        }
+        assertEquals(expected, written);
+    }
+
+    @Test
+    void writeCompressedResources(@TempDir File tmpDir) throws IOException {
+        Patient patient = new Patient();
+        patient.setId("patient-1");
+        String json = FhirVersion.R4.getJsonParser().encodeResourceToString(patient);
+
+        RollingPartWriter writer = new RollingPartWriter(JOB_ID, CONTRACT, tmpDir.getAbsolutePath(), ERROR_COMPRESSED, 1);
+        try (writer) {
+            writer.writeRecord(patient, FhirVersion.R4);
+            writer.writeRecord(AggregatorTest.getAlphaNumericString(ONE_MEGA_BYTE + 10));
+            writer.writeRecord(patient, FhirVersion.R4);
+        }
+        assertThrows(IOException.class, () -> writer.writeRecord("closed"));
+
+        // The oversized record gets a part to itself
+        List<File> files = writer.getFiles();
+        assertEquals(3, files.size());
+        assertEquals(CONTRACT + "_0001" + ERROR_COMPRESSED.getSuffix(), files.get(0).getName());
+        assertEquals(json + "\n", FileUtilsTest.gunzip(files.get(0).toPath()));
+        assertEquals(ONE_MEGA_BYTE + 11, FileUtilsTest.gunzip(files.get(1).toPath()).length());
+        assertEquals(json + "\n", FileUtilsTest.gunzip(files.get(2).toPath()));
+        assertEquals(3, writer.getPackingReport().getParts(ERROR_COMPRESSED));
+    }
+
+    @Test
+    void existingPartsAreKept(@TempDir File tmpDir) throws IOException {
+        File jobDir = new File(tmpDir, JOB_ID);
+        assertTrue(jobDir.mkdir());
+        File existing = new File(jobDir, Aggregator.getPartFileName(CONTRACT, 1, DATA));
+        Files.writeString(existing.toPath(), "already here\n");
+        try (RollingPartWriter writer = new RollingPartWriter(JOB_ID, CONTRACT, tmpDir.getAbsolutePath(), DATA, 1)) {
+            writer.writeRecord(AggregatorTest.getAlphaNumericString(2 * ONE_MEGA_BYTE));
+            writer.writeRecord("small");
+            assertEquals(2, writer.getFiles().size());
+            assertEquals(Aggregator.getPartFileName(CONTRACT, 2, DATA), writer.getFiles().get(0).getName());
+        }
+        assertEquals("already here\n", Files.readString(existing.toPath()));
+        assertEquals("small\n", Files.readString(new File(jobDir, Aggregator.getPartFileName(CONTRACT, 3, DATA)).toPath()));
+    }
+
+    @Test
+    void noRecordsNoParts(@TempDir File tmpDir) throws IOException {
+        try (RollingPartWriter writer = new RollingPartWriter(JOB_ID, CONTRACT, tmpDir.getAbsolutePath(), DATA, 1)) {
+            assertTrue(writer.getFiles().isEmpty());
+        }
+        assertEquals(0, new File(tmpDir, JOB_ID).list().length);
+    }
+}
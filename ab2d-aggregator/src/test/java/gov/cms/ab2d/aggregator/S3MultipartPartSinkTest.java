@@ -0,0 +1,93 @@
+package gov.cms.ab2d.aggregator;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static gov.cms.ab2d.aggregator.S3MultipartPartSink.MIN_CHUNK_SIZE;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class S3MultipartPartSinkTest {
+    private static final String BUCKET = "ab2d-parts";
+    private static final String PREFIX = "job123/";
+    private static final String PART = "Z0001_0001.ndjson";
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    @Test
+    void uploadInChunks() throws IOException {
+        LocalS3StandIn s3 = new LocalS3StandIn();
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            S3MultipartPartSink sink = new S3MultipartPartSink(s3, BUCKET, PREFIX, executor, MIN_CHUNK_SIZE, 2);
+            byte[] data = new byte[3 * MIN_CHUNK_SIZE + 12345];
+            RANDOM.nextBytes(data);
+            try (AggregatedPartSink.PartOutput output = sink.create(PART)) {
+                // Writes of odd sizes that don't line up with the chunks
+                int position = 0;
+                while (position < data.length) {
+                    int length = Math.min(data.length - position, 1 + RANDOM.nextInt(2 * 1024 * 1024));
+                    assertEquals(length, output.getChannel().write(ByteBuffer.wrap(data, position, length)));
+                    position += length;
+                }
+                assertEquals(data.length, output.getSize());
+                assertNull(s3.getObject(BUCKET, PREFIX + PART));
+                output.seal(true);
+            }
+            assertArrayEquals(data, s3.getObject(BUCKET, PREFIX + PART));
+            assertEquals(4, s3.getChunksUploaded());
+            assertTrue(s3.getMaxConcurrentChunks() <= 2);
+            assertEquals(0, s3.getOpenUploads());
+            assertEquals("s3://ab2d-parts/job123/" + PART, sink.getLocation(PART));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void emptyPart() throws IOException {
+        LocalS3StandIn s3 = new LocalS3StandIn();
+        S3MultipartPartSink sink = new S3MultipartPartSink(s3, BUCKET, PREFIX, null);
+        try (AggregatedPartSink.PartOutput output = sink.create(PART)) {
+            output.seal(false);
+        }
+        assertEquals(0, s3.getObject(BUCKET, PREFIX + PART).length);
+    }
+
+    @Test
+    void abortUnsealed() throws IOException {
+        LocalS3StandIn s3 = new LocalS3StandIn();
+        S3MultipartPartSink sink = new S3MultipartPartSink(s3, BUCKET, PREFIX, null, MIN_CHUNK_SIZE, 1);
+        try (AggregatedPartSink.PartOutput output = sink.create(PART)) {
+            output.getChannel().write(ByteBuffer.allocate(MIN_CHUNK_SIZE + 1));
+            assertEquals(1, s3.getChunksUploaded());
+        }
+        assertNull(s3.getObject(BUCKET, PREFIX + PART));
+        assertEquals(0, s3.getOpenUploads());
+
+        // A chunk that can't be uploaded fails the part, which is then aborted
+        s3.setFailChunk(2);
+        AggregatedPartSink.PartOutput failing = sink.create(PART);
+        byte[] data = new byte[2 * MIN_CHUNK_SIZE];
+        Arrays.fill(data, (byte) 'x');
+        assertThrows(IOException.class, () -> {
+            failing.getChannel().write(ByteBuffer.wrap(data));
+            failing.seal(false);
+        });
+        failing.close();
+        assertNull(s3.getObject(BUCKET, PREFIX + PART));
+        assertEquals(0, s3.getOpenUploads());
+
+        assertThrows(IllegalArgumentException.class,
+                () -> new S3MultipartPartSink(s3, BUCKET, PREFIX, null, MIN_CHUNK_SIZE - 1, 1));
+    }
+}
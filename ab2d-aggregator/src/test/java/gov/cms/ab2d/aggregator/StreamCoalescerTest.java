@@ -0,0 +1,211 @@
+package gov.cms.ab2d.aggregator;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import static gov.cms.ab2d.aggregator.FileOutputType.DATA;
+import static gov.cms.ab2d.aggregator.FileOutputType.DATA_COMPRESSED;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class StreamCoalescerTest {
+    private static final String JOB_ID = "job1";
+    private static final String STREAM_DIR = "streaming";
+    private static final String FINISH_DIR = "finished";
+
+    @Test
+    void coalescesSmallStreams(@TempDir File tmpDir) throws Exception {
+        String jobDir = tmpDir.getAbsolutePath() + File.separator + JOB_ID;
+        File finished = new File(jobDir, FINISH_DIR);
+        StreamCoalescer coalescer = StreamCoalescer.register(jobDir, STREAM_DIR, FINISH_DIR, 1024, 10 * 1024, 60_000);
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 5; i++) {
+            try (ClaimsStream stream = new ClaimsStream(JOB_ID, tmpDir.getAbsolutePath(), DATA, STREAM_DIR, FINISH_DIR)) {
+                String record = i + AggregatorTest.getAlphaNumericString(100);
+                stream.writeRecord(record);
+                expected.append(record).append('\n');
+                assertNull(stream.getFile());
+            }
+        }
+        // Empty streams are dropped
+        try (ClaimsStream stream = new ClaimsStream(JOB_ID, tmpDir.getAbsolutePath(), DATA, STREAM_DIR, FINISH_DIR)) {
+            assertNull(stream.getFile());
+        }
+        // Big ones get a file of their own as soon as they are too big to coalesce
+        File big;
+        try (ClaimsStream stream = new ClaimsStream(JOB_ID, tmpDir.getAbsolutePath(), DATA, STREAM_DIR, FINISH_DIR, 100)) {
+            stream.writeRecord(AggregatorTest.getAlphaNumericString(2000));
+            assertNotNull(stream.getFile());
+            big = stream.getFile();
+            assertTrue(big.exists());
+        }
+        assertEquals(1, FileUtils.listFiles(finished.getAbsolutePath(), DATA).size());
+        assertEquals(5, coalescer.getStreamsCoalesced());
+        assertEquals(expected.length(), coalescer.getBufferedBytes());
+        assertEquals(0, new File(jobDir, STREAM_DIR).list().length);
+
+        // Finishing the job writes out the rest before the aggregator can see that the worker is done
+        JobHelper.workerFinishJob(jobDir + File.separator + STREAM_DIR);
+        assertNull(StreamCoalescer.forJob(jobDir));
+        assertEquals(1, coalescer.getFilesWritten());
+        List<File> files = FileUtils.listFiles(finished.getAbsolutePath(), DATA);
+        assertEquals(2, files.size());
+        File coalesced = files.stream().filter(f -> !f.getName().equals(big.getName())).findFirst().orElseThrow();
+        assertEquals(expected.toString(), Files.readString(coalesced.toPath()));
+        assertThrows(IllegalArgumentException.class, () -> StreamCoalescer.register(jobDir, STREAM_DIR, FINISH_DIR,
+                2048, 1024, 60_000));
+    }
+
+    @Test
+    void flushesWhenFull(@TempDir File tmpDir) throws Exception {
+        String jobDir = tmpDir.getAbsolutePath() + File.separator + JOB_ID;
+        File finished = new File(jobDir, FINISH_DIR);
+        ClaimsStreamFactory factory = new ClaimsStreamFactory(JOB_ID, tmpDir.getAbsolutePath(), STREAM_DIR, FINISH_DIR);
+        StringBuilder expected = new StringBuilder();
+        try (StreamCoalescer coalescer = StreamCoalescer.register(jobDir, STREAM_DIR, FINISH_DIR, 1024, 2048, 60_000)) {
+            for (int i = 0; i < 20; i++) {
+                try (ClaimsStream stream = factory.newStream(DATA_COMPRESSED)) {
+                    String record = i + AggregatorTest.getAlphaNumericString(500);
+                    stream.writeRecord(record);
+                    expected.append(record).append('\n');
+                }
+            }
+            assertEquals(20, coalescer.getStreamsCoalesced());
+            assertTrue(coalescer.getFilesWritten() > 0);
+        }
+        // Each file is the gzip members of its streams, one after the other
+        StringBuilder read = new StringBuilder();
+        List<File> files = FileUtils.listFiles(finished.getAbsolutePath(), DATA_COMPRESSED);
+        files.sort((a, b) -> a.getName().length() != b.getName().length()
+                ? Integer.compare(a.getName().length(), b.getName().length()) : a.getName().compareTo(b.getName()));
+        for (File file : files) {
+            try (InputStream in = new GZIPInputStream(Files.newInputStream(file.toPath()))) {
+                read.append(new String(in.readAllBytes(), StandardCharsets.UTF_8));
+            }
+        }
+        assertEquals(expected.toString(), read.toString());
+        // No stream needed a streaming file
+        assertEquals(0, factory.getStreamsOpened());
+    }
+
+    @Test
+    void flushesOnTime(@TempDir File tmpDir) throws Exception {
+        String jobDir = tmpDir.getAbsolutePath() + File.separator + JOB_ID;
+        File finished = new File(jobDir, FINISH_DIR);
+        try (StreamCoalescer coalescer = StreamCoalescer.register(jobDir, STREAM_DIR, FINISH_DIR, 1024, 1024 * 1024, 50)) {
+            try (ClaimsStream stream = new ClaimsStream(JOB_ID, tmpDir.getAbsolutePath(), DATA, STREAM_DIR, FINISH_DIR)) {
+                stream.writeRecord("{}");
+            }
+            long deadline = System.currentTimeMillis() + 10_000;
+            while (coalescer.getFilesWritten() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+            assertEquals(1, coalescer.getFilesWritten());
+            assertEquals(0, coalescer.getBufferedBytes());
+        }
+        List<File> files = FileUtils.listFiles(finished.getAbsolutePath(), DATA);
+        assertEquals(1, files.size());
+        assertEquals("{}\n", Files.readString(files.get(0).toPath()));
+    }
+
+    @Test
+    void retriedOnTime(@TempDir File tmpDir) throws Exception {
+        String jobDir = tmpDir.getAbsolutePath() + File.separator + JOB_ID;
+        File finished = new File(jobDir, FINISH_DIR);
+        try (StreamCoalescer coalescer = StreamCoalescer.register(jobDir, STREAM_DIR, FINISH_DIR, 1024, 1024 * 1024, 50)) {
+            try (ClaimsStream stream = new ClaimsStream(JOB_ID, tmpDir.getAbsolutePath(), DATA, STREAM_DIR, FINISH_DIR)) {
+                stream.writeRecord("{}");
+            }
+            // The timed flush can't move the file to the finished directory
+            assertTrue(finished.delete());
+            assertTrue(finished.createNewFile());
+            Thread.sleep(200);
+            assertEquals(0, coalescer.getFilesWritten());
+
+            // A later timed flush writes it out without anything else being added
+            assertTrue(finished.delete());
+            assertTrue(finished.mkdir());
+            long deadline = System.currentTimeMillis() + 10_000;
+            while (coalescer.getFilesWritten() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+            assertEquals(1, coalescer.getFilesWritten());
+            assertEquals(0, coalescer.getBufferedBytes());
+        }
+    }
+
+    @Test
+    void keptUntilWritten(@TempDir File tmpDir) throws Exception {
+        String jobDir = tmpDir.getAbsolutePath() + File.separator + JOB_ID;
+        File finished = new File(jobDir, FINISH_DIR);
+        StreamCoalescer coalescer = StreamCoalescer.register(jobDir, STREAM_DIR, FINISH_DIR, 1024, 1024 * 1024, 60_000);
+        try (ClaimsStream stream = new ClaimsStream(JOB_ID, tmpDir.getAbsolutePath(), DATA, STREAM_DIR, FINISH_DIR)) {
+            stream.writeRecord("{}");
+        }
+        // Nothing can be moved to the finished directory
+        assertTrue(finished.delete());
+        assertTrue(finished.createNewFile());
+        String streamingDir = jobDir + File.separator + STREAM_DIR;
+        assertThrows(UncheckedIOException.class, () -> JobHelper.workerFinishJob(streamingDir));
+        assertSame(coalescer, StreamCoalescer.forJob(jobDir));
+        assertEquals(3, coalescer.getBufferedBytes());
+        assertTrue(new File(streamingDir).exists());
+
+        // Finishing the job again writes it out
+        assertTrue(finished.delete());
+        assertTrue(finished.mkdir());
+        JobHelper.workerFinishJob(streamingDir);
+        assertNull(StreamCoalescer.forJob(jobDir));
+        List<File> files = FileUtils.listFiles(finished.getAbsolutePath(), DATA);
+        assertEquals(1, files.size());
+        assertEquals("{}\n", Files.readString(files.get(0).toPath()));
+    }
+
+    @Test
+    void aggregatesCoalescedStreams(@TempDir File tmpDir) throws Exception {
+        String jobDir = tmpDir.getAbsolutePath() + File.separator + JOB_ID;
+        JobHelper.workerSetUpJobDirectories(JOB_ID, tmpDir.getAbsolutePath(), STREAM_DIR, FINISH_DIR);
+        StreamCoalescer.register(jobDir, STREAM_DIR, FINISH_DIR);
+        AggregatorCallable callable = new AggregatorCallable(tmpDir.getAbsolutePath(), JOB_ID, "contract", 1,
+                STREAM_DIR, FINISH_DIR, 2);
+        callable.setTriggerMode(AggregatorCallable.TriggerMode.IN_PROCESS);
+        long written = 0;
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (InProcessJobCoordinator coordinator = InProcessJobCoordinator.register(jobDir)) {
+            callable.setCoordinator(coordinator);
+            Future<Integer> future = executor.submit(callable);
+            for (int i = 0; i < 1000; i++) {
+                try (ClaimsStream stream = new ClaimsStream(JOB_ID, tmpDir.getAbsolutePath(), DATA, STREAM_DIR, FINISH_DIR)) {
+                    String record = AggregatorTest.getAlphaNumericString(i % 2 == 0 ? 500 : 0);
+                    if (!record.isEmpty()) {
+                        stream.writeRecord(record);
+                        written += record.length() + 1;
+                    }
+                }
+            }
+            coordinator.streamingDone();
+            assertTrue(coordinator.awaitAggregation(30, TimeUnit.SECONDS));
+            assertEquals(1, future.get());
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(written, Files.size(Path.of(jobDir, "contract_0001.ndjson")));
+    }
+}
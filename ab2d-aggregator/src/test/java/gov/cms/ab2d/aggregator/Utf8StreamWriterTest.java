@@ -0,0 +1,37 @@
+package gov.cms.ab2d.aggregator;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class Utf8StreamWriterTest {
+
+    @Test
+    void splitSurrogatePairs() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Utf8StreamWriter writer = new Utf8StreamWriter(out, 16);
+
+        // The two halves of the pair arrive in different writes
+        String smile = "\uD83D\uDE00";
+        writer.write("ab" + smile.charAt(0));
+        writer.write(smile.charAt(1));
+        writer.append(new StringBuilder("cd"));
+        writer.endRecord();
+        assertEquals("ab" + smile + "cd", out.toString(StandardCharsets.UTF_8));
+
+        // A high surrogate with nothing after it is replaced like String.getBytes does
+        out.reset();
+        writer.write("x\uD83D".toCharArray());
+        writer.write("\uD83D");
+        writer.write("y");
+        writer.endRecord();
+        writer.write("\uD83D");
+        writer.endRecord();
+        assertEquals("x??y?", out.toString(StandardCharsets.UTF_8));
+        assertEquals(13, writer.getBytesWritten());
+    }
+}
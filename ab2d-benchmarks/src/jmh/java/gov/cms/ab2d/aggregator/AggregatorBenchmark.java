@@ -0,0 +1,71 @@
+package gov.cms.ab2d.aggregator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static gov.cms.ab2d.aggregator.Aggregator.ONE_MEGA_BYTE;
+import static gov.cms.ab2d.aggregator.FileOutputType.DATA;
+
+/**
+ * Picking the next files to combine out of a finished directory with many files in it. Only the sizes of the files
+ * matter, so they are created empty and extended to a random size between a few kilobytes and a couple of megabytes.
+ * Each call rescans the finished directory, the same as when the aggregator isn't being told about new files.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class AggregatorBenchmark {
+    private static final String JOB_ID = "benchmark";
+    private static final String STREAMING = "streaming";
+    private static final String FINISHED = "finished";
+    private static final int MAX_MEGA_BYTES = 200;
+
+    @Param({"100", "1000"})
+    private int fileCount;
+
+    @Param({"greedy", "bestFit"})
+    private String packing;
+
+    private File baseDir;
+    private Aggregator aggregator;
+
+    @Setup(Level.Trial)
+    public void createFiles() throws IOException {
+        baseDir = Files.createTempDirectory("best-files").toFile();
+        aggregator = new Aggregator(JOB_ID, "Z0000", baseDir.getAbsolutePath(), MAX_MEGA_BYTES, STREAMING, FINISHED, 1);
+        aggregator.setPackingStrategy("bestFit".equals(packing) ? new BestFitPackingStrategy() : new GreedyPackingStrategy());
+        File finished = new File(new File(baseDir, JOB_ID), FINISHED);
+        Random random = new Random(fileCount);
+        for (int i = 0; i < fileCount; i++) {
+            try (RandomAccessFile file = new RandomAccessFile(new File(finished, "f" + i + DATA.getSuffix()), "rw")) {
+                file.setLength(4096 + random.nextInt(2 * ONE_MEGA_BYTE));
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void cleanUp() {
+        FileUtils.deleteAllInDir(baseDir);
+    }
+
+    @Benchmark
+    public List<File> getBestFiles() {
+        return aggregator.getBestFiles(DATA);
+    }
+}
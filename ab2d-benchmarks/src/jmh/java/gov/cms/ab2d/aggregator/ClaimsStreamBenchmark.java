@@ -0,0 +1,76 @@
+package gov.cms.ab2d.aggregator;
+
+import gov.cms.ab2d.benchmarks.BenchmarkData;
+import gov.cms.ab2d.fhir.FhirVersion;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static gov.cms.ab2d.aggregator.FileOutputType.DATA;
+
+/**
+ * Writing one sample EOB to a ClaimsStream, either as an NDJSON string the caller already encoded or as a resource
+ * the stream encodes itself. Each iteration writes to a new stream so the files don't grow without limit.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ClaimsStreamBenchmark {
+    private static final String JOB_ID = "benchmark";
+
+    @Param({"false", "true"})
+    private boolean compressed;
+
+    private File baseDir;
+    private List<String> records;
+    private List<IBaseResource> eobs;
+    private ClaimsStream stream;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void loadData() throws IOException {
+        baseDir = Files.createTempDirectory("claims-stream").toFile();
+        records = BenchmarkData.getEobRecords();
+        eobs = BenchmarkData.getEobs(FhirVersion.R4, BenchmarkData.R4_EOB_BUNDLE);
+    }
+
+    @Setup(Level.Iteration)
+    public void openStream() throws IOException {
+        stream = new ClaimsStream(JOB_ID, baseDir.getAbsolutePath(), DATA, "streaming", "finished", 0, compressed);
+    }
+
+    @TearDown(Level.Iteration)
+    public void closeStream() throws IOException {
+        stream.close();
+        FileUtils.deleteAllInDir(new File(baseDir, JOB_ID));
+    }
+
+    @TearDown(Level.Trial)
+    public void cleanUp() {
+        FileUtils.deleteAllInDir(baseDir);
+    }
+
+    @Benchmark
+    public void write() throws IOException {
+        stream.write(records.get(next++ % records.size()));
+    }
+
+    @Benchmark
+    public void writeResource() throws IOException {
+        stream.writeRecord(eobs.get(next++ % eobs.size()), FhirVersion.R4);
+    }
+}
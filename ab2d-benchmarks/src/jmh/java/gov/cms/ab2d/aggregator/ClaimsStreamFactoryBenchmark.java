@@ -0,0 +1,82 @@
+package gov.cms.ab2d.aggregator;
+
+import gov.cms.ab2d.benchmarks.BenchmarkData;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static gov.cms.ab2d.aggregator.FileOutputType.DATA;
+
+/**
+ * Opening a stream for a batch of patients, writing the batch and closing it, from many threads at once the way
+ * the worker does. Compares creating each ClaimsStream directly with getting it from a ClaimsStreamFactory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Threads(8)
+public class ClaimsStreamFactoryBenchmark {
+    private static final String JOB_ID = "benchmark";
+    private static final String STREAMING = "streaming";
+    private static final String FINISHED = "finished";
+
+    private File baseDir;
+    private List<String> records;
+    private ClaimsStreamFactory factory;
+
+    @Setup(Level.Trial)
+    public void loadData() throws IOException {
+        baseDir = Files.createTempDirectory("claims-stream-factory").toFile();
+        records = BenchmarkData.getEobRecords();
+    }
+
+    @Setup(Level.Iteration)
+    public void createFactory() throws IOException {
+        factory = new ClaimsStreamFactory(JOB_ID, baseDir.getAbsolutePath(), STREAMING, FINISHED);
+    }
+
+    @TearDown(Level.Iteration)
+    public void cleanUpFiles() {
+        FileUtils.deleteAllInDir(new File(baseDir, JOB_ID));
+    }
+
+    @TearDown(Level.Trial)
+    public void cleanUp() {
+        FileUtils.deleteAllInDir(baseDir);
+    }
+
+    @Benchmark
+    public File direct() throws IOException {
+        try (ClaimsStream stream = new ClaimsStream(JOB_ID, baseDir.getAbsolutePath(), DATA, STREAMING, FINISHED)) {
+            writeBatch(stream);
+            return stream.getFile();
+        }
+    }
+
+    @Benchmark
+    public File fromFactory() throws IOException {
+        try (ClaimsStream stream = factory.newStream(DATA)) {
+            writeBatch(stream);
+            return stream.getFile();
+        }
+    }
+
+    private void writeBatch(ClaimsStream stream) throws IOException {
+        for (String record : records) {
+            stream.write(record);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package gov.cms.ab2d.aggregator;
+
+import gov.cms.ab2d.benchmarks.BenchmarkData;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Combining finished stream files into a part. The files are filled with the sample EOBs until they reach the
+ * file size, which is about what a worker hands the aggregator for a contract with many beneficiaries.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class FileUtilsBenchmark {
+    @Param({"10", "100"})
+    private int fileCount;
+
+    @Param({"1048576"})
+    private int fileSize;
+
+    private File dir;
+    private List<File> files;
+    private String outFile;
+
+    @Setup(Level.Trial)
+    public void writeFiles() throws IOException {
+        dir = Files.createTempDirectory("combine-files").toFile();
+        List<String> records = BenchmarkData.getEobRecords();
+        files = new ArrayList<>();
+        for (int i = 0; i < fileCount; i++) {
+            Path file = dir.toPath().resolve("f" + i + ".ndjson");
+            try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+                long size = 0;
+                for (int r = 0; size < fileSize; r++) {
+                    String record = records.get(r % records.size());
+                    writer.write(record);
+                    size += record.length();
+                }
+            }
+            files.add(file.toFile());
+        }
+        outFile = new File(dir, "part.ndjson").getAbsolutePath();
+    }
+
+    @TearDown(Level.Trial)
+    public void cleanUp() {
+        FileUtils.deleteAllInDir(dir);
+    }
+
+    @Benchmark
+    public void combineFiles() throws IOException {
+        // Every invocation writes the same bytes, so the part is simply overwritten
+        FileUtils.combineFiles(files, outFile);
+    }
+}
@@ -0,0 +1,86 @@
+package gov.cms.ab2d.benchmarks;
+
+import gov.cms.ab2d.fhir.BundleUtils;
+import gov.cms.ab2d.fhir.FhirVersion;
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IDomainResource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Loads the sample data shared with the unit tests. The eobdata files come from ab2d-filters and the bb-test-data
+ * files from ab2d-bfd, see the jmh source set in build.gradle.
+ */
+public final class BenchmarkData {
+    // STU3 EOB bundles as returned by BFD
+    public static final String[] STU3_EOB_BUNDLES = {
+        "bb-test-data/eob/20010000001115.json",
+        "bb-test-data/eob/20010000001116.json",
+        "bb-test-data/eob/20140000008325.json",
+        "bb-test-data/eob/20140000009893.json"
+    };
+    public static final String R4_EOB_BUNDLE = "bb-test-data/r4/eobbundle.json";
+    public static final String STU3_PATIENT_BUNDLE = "bb-test-data/patient/bundle/patientbundle.json";
+    public static final String R4_PATIENT_BUNDLE = "bb-test-data/r4/patient.json";
+
+    private BenchmarkData() { }
+
+    /**
+     * Parse a resource from the classpath
+     *
+     * @param version - the FHIR version of the resource
+     * @param fileInClassPath - the file name and path in the classpath
+     * @return the resource
+     */
+    public static IBaseResource parse(FhirVersion version, String fileInClassPath) {
+        try (InputStream inputStream = BenchmarkData.class.getClassLoader().getResourceAsStream(fileInClassPath)) {
+            if (inputStream == null) {
+                throw new IllegalArgumentException("Benchmark data " + fileInClassPath + " is not in the classpath");
+            }
+            return version.getJsonParser().parseResource(inputStream);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * @param version - the FHIR version of the bundles
+     * @param bundles - the bundles in the classpath
+     * @return every ExplanationOfBenefit in the bundles
+     */
+    public static List<IBaseResource> getEobs(FhirVersion version, String... bundles) {
+        List<IBaseResource> eobs = new ArrayList<>();
+        for (String bundle : bundles) {
+            eobs.addAll(BundleUtils.getEobResources(BundleUtils.getEntries((IBaseBundle) parse(version, bundle))));
+        }
+        return eobs;
+    }
+
+    /**
+     * @param version - the FHIR version of the bundle
+     * @param bundle - the bundle in the classpath
+     * @return every Patient in the bundle
+     */
+    public static List<IDomainResource> getPatients(FhirVersion version, String bundle) {
+        return BundleUtils.getPatientStream((IBaseBundle) parse(version, bundle), version)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * @return the STU3 and R4 sample EOBs encoded as NDJSON records, new line included
+     */
+    public static List<String> getEobRecords() {
+        List<String> records = new ArrayList<>();
+        getEobs(FhirVersion.STU3, STU3_EOB_BUNDLES)
+                .forEach(eob -> records.add(FhirVersion.STU3.getJsonParser().encodeResourceToString(eob) + "\n"));
+        getEobs(FhirVersion.R4, R4_EOB_BUNDLE)
+                .forEach(eob -> records.add(FhirVersion.R4.getJsonParser().encodeResourceToString(eob) + "\n"));
+        return records;
+    }
+}
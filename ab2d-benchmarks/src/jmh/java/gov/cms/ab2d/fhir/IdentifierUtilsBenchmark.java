@@ -0,0 +1,40 @@
+package gov.cms.ab2d.fhir;
+
+import gov.cms.ab2d.benchmarks.BenchmarkData;
+import org.hl7.fhir.instance.model.api.IDomainResource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pulling the beneficiary id and MBIs out of the sample patients BFD returns
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class IdentifierUtilsBenchmark {
+    @Param({"R4", "STU3"})
+    private FhirVersion version;
+
+    private IDomainResource patient;
+
+    @Setup(Level.Trial)
+    public void loadData() {
+        String bundle = version == FhirVersion.R4 ? BenchmarkData.R4_PATIENT_BUNDLE : BenchmarkData.STU3_PATIENT_BUNDLE;
+        patient = BenchmarkData.getPatients(version, bundle).get(0);
+    }
+
+    @Benchmark
+    public List<PatientIdentifier> getIdentifiers() {
+        return IdentifierUtils.getIdentifiers(patient);
+    }
+}
@@ -0,0 +1,41 @@
+package gov.cms.ab2d.fhir;
+
+import gov.cms.ab2d.benchmarks.BenchmarkData;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The reflective getter calls that let the FHIR utilities work on any version of a resource. They are made
+ * several times for every EOB a job returns.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class VersionsBenchmark {
+    @Param({"R4", "STU3"})
+    private FhirVersion version;
+
+    private IBaseResource eob;
+
+    @Setup(Level.Trial)
+    public void loadData() {
+        eob = version == FhirVersion.R4
+                ? BenchmarkData.getEobs(version, BenchmarkData.R4_EOB_BUNDLE).get(0)
+                : BenchmarkData.getEobs(version, BenchmarkData.STU3_EOB_BUNDLES).get(0);
+    }
+
+    @Benchmark
+    public Object invokeGetMethod() {
+        return Versions.invokeGetMethod(eob, "getBillablePeriod");
+    }
+}
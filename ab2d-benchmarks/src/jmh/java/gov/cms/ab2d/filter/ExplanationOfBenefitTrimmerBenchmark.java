@@ -0,0 +1,46 @@
+package gov.cms.ab2d.filter;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Trimming each kind of sample EOB down to the data AB2D is allowed to return. The trimmers copy the EOB before
+ * cleaning it out, so the same parsed EOB is trimmed on every call.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ExplanationOfBenefitTrimmerBenchmark {
+    // The claim types that have both an R4 and an STU3 sample in eobdata
+    @Param({"Carrier", "DME", "HHA", "Hospice", "Inpatient", "Outpatient", "SNF"})
+    private String claimType;
+
+    private IBaseResource r4Eob;
+    private IBaseResource stu3Eob;
+
+    @Setup(Level.Trial)
+    public void loadData() {
+        r4Eob = EOBLoadUtilities.getR4EOBFromFileInClassPath("eobdata/EOB-for-" + claimType + "-R4.json");
+        stu3Eob = EOBLoadUtilities.getSTU3EOBFromFileInClassPath("eobdata/EOB-for-" + claimType + "-Claims.json");
+    }
+
+    @Benchmark
+    public IBaseResource getBenefitR4() {
+        return ExplanationOfBenefitTrimmerR4.getBenefit(r4Eob);
+    }
+
+    @Benchmark
+    public IBaseResource getBenefitSTU3() {
+        return ExplanationOfBenefitTrimmerSTU3.getBenefit(stu3Eob);
+    }
+}
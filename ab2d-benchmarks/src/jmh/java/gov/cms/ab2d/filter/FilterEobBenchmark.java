@@ -0,0 +1,51 @@
+package gov.cms.ab2d.filter;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Filtering trimmed sample EOBs by the beneficiary's enrollment and the contract's attestation, with the billable
+ * period check turned on the way it is for real jobs.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FilterEobBenchmark {
+    @Param({"Carrier-R4", "Inpatient-R4", "Carrier-Claims", "Inpatient-Claims"})
+    private String eobFile;
+
+    private IBaseResource eob;
+    private List<FilterOutByDate.DateRange> dateRanges;
+    private Date earliestDate;
+    private Date attTime;
+
+    @Setup(Level.Trial)
+    public void loadData() {
+        String file = "eobdata/EOB-for-" + eobFile + ".json";
+        eob = eobFile.endsWith("R4")
+                ? ExplanationOfBenefitTrimmerR4.getBenefit(EOBLoadUtilities.getR4EOBFromFileInClassPath(file))
+                : ExplanationOfBenefitTrimmerSTU3.getBenefit(EOBLoadUtilities.getSTU3EOBFromFileInClassPath(file));
+        // Enrolled and attested long enough that every sample passes the checks
+        dateRanges = List.of(FilterOutByDate.getDateRange(1, 1990, 12, 2099));
+        earliestDate = FilterOutByDate.getStartOfMonth(1, 1990);
+        attTime = FilterOutByDate.getStartOfMonth(1, 1990);
+    }
+
+    @Benchmark
+    public Optional<IBaseResource> filter() {
+        return FilterEob.filter(eob, dateRanges, earliestDate, attTime, false);
+    }
+}
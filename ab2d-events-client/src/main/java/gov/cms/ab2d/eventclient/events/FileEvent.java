@@ -45,6 +45,20 @@ public class FileEvent extends LoggableEvent {
         }
     }
 
+    /**
+     * Use this when the checksum was already worked out while the file was written (for example by the
+     * aggregator's combineFilesWithSummary) so the file doesn't have to be read again
+     */
+    public FileEvent(String organization, String jobId, File file, FileStatus status, String fileHash) {
+        super(OffsetDateTime.now(), organization, jobId);
+        this.status = status;
+        this.fileHash = fileHash;
+        if (file != null) {
+            this.fileName = file.getAbsolutePath();
+            this.fileSize = file.length();
+        }
+    }
+
     private String generateChecksum(File file) {
         try (FileInputStream fileInputStream = new FileInputStream(file)) {
             return hashIt(fileInputStream);
@@ -24,6 +24,14 @@ class FileEventTest {
     });
   }
 
+  @Test
+  void testConstructorWithHash() {
+    File file = new File("src/test/resources/application.properties");
+    fileEvent = new FileEvent("CMS", "1234", file, FileEvent.FileStatus.CLOSE, "abc123");
+    assertEquals("abc123", fileEvent.getFileHash());
+    assertEquals(file.length(), fileEvent.getFileSize());
+  }
+
   @Test
   void testAsMessage() {
     fileEvent = new FileEvent();